@@ -0,0 +1,67 @@
+package api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Кольцо консистентного хеширования: каждый узел занимает {@link #VIRTUAL_NODES} точек кольца, ключ
+ * принадлежит первой точке по часовой стрелке от своего хеша. При добавлении узла к нему переходит
+ * примерно 1/n ключей, остальные остаются на месте. Кольцо неизменяемое: {@link #with} возвращает новое.
+ */
+final class HashRing<N> {
+    static final int VIRTUAL_NODES = 160;
+    private final TreeMap<Long, N> points;
+    private final List<N> nodes;
+
+    HashRing() {
+        this(new TreeMap<>(), List.of());
+    }
+
+    private HashRing(TreeMap<Long, N> points, List<N> nodes) {
+        this.points = points;
+        this.nodes = nodes;
+    }
+
+    /**
+     * Кольцо с добавленным узлом. Точки узла зависят только от name, поэтому одинаковы у всех клиентов.
+     */
+    HashRing<N> with(N node, String name) {
+        TreeMap<Long, N> newPoints = new TreeMap<>(points);
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            newPoints.putIfAbsent(hash(name + "#" + i), node);
+        }
+        List<N> newNodes = new ArrayList<>(nodes);
+        newNodes.add(node);
+        return new HashRing<>(newPoints, Collections.unmodifiableList(newNodes));
+    }
+
+    N nodeFor(String key) {
+        if (points.isEmpty()) {
+            throw new IllegalStateException("В кольце нет узлов");
+        }
+        Map.Entry<Long, N> entry = points.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : points.firstEntry().getValue();
+    }
+
+    List<N> getNodes() {
+        return nodes;
+    }
+
+    // FNV-1a по символам с перемешиванием из MurmurHash3: соседние строки расходятся по всему кольцу
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
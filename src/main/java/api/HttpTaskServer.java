@@ -1,43 +1,116 @@
 package api;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import exception.*;
+import manager.FileBackedTasksManager;
 import manager.Managers;
 import manager.TaskManager;
+import manager.TaskPage;
 import task.Epic;
 import task.Subtask;
 import task.Task;
+import task.TaskType;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class HttpTaskServer {
+    // обработчики в основном ждут ответа KVServer, поэтому потоков больше, чем ядер
+    public static final int DEFAULT_WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 4;
+    // запросы, принятые до остановки, ждут ответа KVServer не дольше его таймаута
+    private static final long STOP_TIMEOUT_SECONDS = KVTaskClient.DEFAULT_REQUEST_TIMEOUT.toSeconds();
     private final static String CONTENT_TYPE = "Content-Type";
     private final static String APPLICATION_JSON = "application/json";
+    private final static String NEXT_CURSOR = "X-Next-Cursor";
     private final static String PATH = "/tasks";
     private final int PORT = 8080;
     private final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
     private final Gson gson;
     private final HttpServer httpServer;
+    private final ExecutorService executor;
+    private final TaskManager storage;
+    private final boolean virtualThreads;
+    private final boolean verbose;
 
     public HttpTaskServer() throws IOException {
+        this(DEFAULT_WORKER_THREADS, false);
+    }
+
+    public HttpTaskServer(int workerThreads, boolean virtualThreads) throws IOException {
+        this(workerThreads, virtualThreads, false);
+    }
+
+    /**
+     * Запросы обрабатываются пулом из workerThreads потоков. С virtualThreads на Java 21+ каждый запрос
+     * получает свой виртуальный поток, а на более старых версиях используется тот же пул.
+     * С verbose в консоль пишется каждый запрос. Менеджер обернут в {@link Managers#getConcurrent},
+     * так как его вызывают параллельно.
+     */
+    public HttpTaskServer(int workerThreads, boolean virtualThreads, boolean verbose) throws IOException {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("Число потоков должно быть положительным: " + workerThreads);
+        }
+        this.verbose = verbose;
         gson = Managers.getCustomGson();
-        TaskManager taskManager = Managers.getDefault();
+        storage = Managers.getDefault();
+        TaskManager taskManager = Managers.getConcurrent(storage);
+
+        ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+        this.virtualThreads = virtualExecutor != null;
+        if (virtualExecutor != null) {
+            executor = virtualExecutor;
+        } else {
+            AtomicInteger threadNumber = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(workerThreads, runnable -> {
+                Thread thread = new Thread(runnable, "http-task-server-worker-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
 
         httpServer = HttpServer.create();
         httpServer.bind(new InetSocketAddress(PORT), 0);
+        httpServer.setExecutor(executor);
         httpServer.createContext(PATH, new TaskHandler(taskManager));
     }
 
+    /**
+     * Используются ли виртуальные потоки: false, если их не запрашивали или JVM их не поддерживает.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    // проект собирается под Java 11, поэтому метод Java 21 вызывается через reflection
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            System.out.println("Виртуальные потоки недоступны в Java " + Runtime.version().feature()
+                    + ", используется пул потоков");
+            return null;
+        }
+    }
+
     private class TaskHandler implements HttpHandler {
 
         private final TaskManager taskManager;
@@ -49,20 +122,17 @@ public class HttpTaskServer {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             Endpoint endpoint = Endpoint.getEndpoint(exchange);
-            System.out.println("API: Получен запрос: " + endpoint);
+            trace("API: Получен запрос: " + endpoint);
 
             String requestBody = new String(exchange.getRequestBody().readAllBytes(), DEFAULT_CHARSET);
             Headers responseHeaders = exchange.getResponseHeaders();
             String responseString = "";
             StatusCode responseCode;
 
-            Map<String, String> params = new HashMap<>();
-            if (exchange.getRequestURI().getQuery() != null) {
-                String[] paramsSplit = exchange.getRequestURI().getQuery().split("&");
-                Arrays.stream(paramsSplit).forEach(p -> {
-                    String[] split = p.split("=");
-                    params.put(split[0], split[1]);
-                });
+            Map<String, String> params = parseParams(exchange.getRequestURI().getQuery());
+            if (params == null) {
+                writeResponse(exchange, "", StatusCode.BAD_REQUEST);
+                return;
             }
 
             Task task;
@@ -216,6 +286,36 @@ public class HttpTaskServer {
                     responseHeaders.add(CONTENT_TYPE, APPLICATION_JSON);
                     responseCode = StatusCode.OK;
                     break;
+                case GET_PRIORITIZED_TASKS_RANGE:
+                    try {
+                        LocalDateTime from = params.containsKey("from") ? LocalDateTime.parse(params.get("from")) : null;
+                        LocalDateTime to = params.containsKey("to") ? LocalDateTime.parse(params.get("to")) : null;
+                        if (params.containsKey("limit")) {
+                            TaskPage page = taskManager.getPrioritizedTasksPage(from, to, params.get("cursor"),
+                                    Integer.parseInt(params.get("limit")));
+                            responseString = gson.toJson(page.getTasks());
+                            if (page.hasNext()) {
+                                responseHeaders.add(NEXT_CURSOR, page.getNextCursor());
+                            }
+                        } else {
+                            responseString = gson.toJson(taskManager.getPrioritizedTasks(from, to));
+                        }
+                        responseHeaders.add(CONTENT_TYPE, APPLICATION_JSON);
+                        responseCode = StatusCode.OK;
+                    } catch (DateTimeParseException | NumberFormatException | ManagerTaskBadInputException e) {
+                        responseCode = StatusCode.BAD_REQUEST;
+                    }
+                    break;
+                case POST_BATCH:
+                    try {
+                        List<Task> batch = parseBatch(requestBody);
+                        responseString = gson.toJson(taskManager.createAll(batch));
+                        responseHeaders.add(CONTENT_TYPE, APPLICATION_JSON);
+                        responseCode = StatusCode.OK_CREATED;
+                    } catch (JsonParseException | IllegalStateException | IllegalArgumentException | ManagerTaskException e) {
+                        responseCode = StatusCode.BAD_REQUEST;
+                    }
+                    break;
                 default:
                     responseString = "";
                     responseCode = StatusCode.NOT_FOUND;
@@ -223,6 +323,45 @@ public class HttpTaskServer {
             writeResponse(exchange, responseString, responseCode);
         }
 
+        // Пустые пары (например, от завершающего &) пропускаются, пара без имени или без = - ошибка запроса
+        private Map<String, String> parseParams(String query) {
+            Map<String, String> params = new HashMap<>();
+            if (query == null) {
+                return params;
+            }
+            for (String pair : query.split("&")) {
+                if (pair.isEmpty()) {
+                    continue;
+                }
+                String[] split = pair.split("=", 2);
+                if (split.length < 2 || split[0].isEmpty()) {
+                    return null;
+                }
+                params.put(split[0], split[1]);
+            }
+            return params;
+        }
+
+        private List<Task> parseBatch(String requestBody) {
+            JsonArray items = JsonParser.parseString(requestBody).getAsJsonArray();
+            List<Task> batch = new ArrayList<>(items.size());
+            for (JsonElement item : items) {
+                JsonElement type = item.getAsJsonObject().get("type");
+                TaskType taskType = type == null ? TaskType.TASK : TaskType.valueOf(type.getAsString());
+                switch (taskType) {
+                    case SUBTASK:
+                        batch.add(gson.fromJson(item, Subtask.class));
+                        break;
+                    case EPIC:
+                        batch.add(gson.fromJson(item, Epic.class));
+                        break;
+                    default:
+                        batch.add(gson.fromJson(item, Task.class));
+                }
+            }
+            return batch;
+        }
+
         private void writeResponse(HttpExchange exchange, String responseString, StatusCode responseCode) throws IOException {
             if (responseString.isEmpty()) {
                 exchange.sendResponseHeaders(responseCode.getStatusCode(), 0);
@@ -241,8 +380,29 @@ public class HttpTaskServer {
         httpServer.start();
     }
 
+    private void trace(String message) {
+        if (verbose) {
+            System.out.println(message);
+        }
+    }
+
+    /**
+     * Перестает принимать запросы, дожидается обработки уже принятых и закрывает менеджер: отложенные
+     * и асинхронные записи в KVServer завершаются до возврата из метода.
+     */
     public void stop() {
         httpServer.stop(1);
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                System.out.println("API: Не все запросы обработаны за " + STOP_TIMEOUT_SECONDS + " с");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (storage instanceof FileBackedTasksManager) {
+            ((FileBackedTasksManager) storage).close();
+        }
     }
 
     private enum StatusCode {
@@ -285,40 +445,89 @@ public class HttpTaskServer {
 
         GET_HISTORY(RequestMethod.GET, PATH + "/history/"),
         GET_PRIORITIZED_TASKS(RequestMethod.GET, PATH),
+        GET_PRIORITIZED_TASKS_RANGE(RequestMethod.GET, PATH, "from", "to", "cursor", "limit"),
+        POST_BATCH(RequestMethod.POST, PATH + "/batch"),
 
         UNKNOWN();
 
+        // метод -> путь -> конечные точки; строится один раз, после создания констант
+        private static final Map<String, Map<String, Route>> ROUTES = compileRoutes();
+
         public static Endpoint getEndpoint(HttpExchange exchange) {
-            final String requestMethod = exchange.getRequestMethod();
-            final String requestPath = exchange.getRequestURI().getPath();
-            final String requestParams = exchange.getRequestURI().getQuery();
-
-            List<Endpoint> endpoints = Arrays.stream(Endpoint.values())
-                    .filter(e -> e != UNKNOWN)
-                    .filter(endpoint -> endpoint.getMethod() == RequestMethod.valueOf(requestMethod))
-                    .filter(endpoint -> endpoint.getPath().equals(requestPath))
-                    .filter(endpoint -> {
-                        if (requestParams == null && endpoint.getParams().isEmpty()) {
-                            return true;
-                        } else if (requestParams == null) {
-                            return false;
-                        } else if (endpoint.getParams().isEmpty()) {
-                            return false;
-                        } else {
-                            String[] splitRequestParams = requestParams.split("&");
-                            Optional<String> mismatchParam = Arrays.stream(splitRequestParams)
-                                    .map(p -> p.substring(0, p.indexOf("=")))
-                                    .filter(p -> !endpoint.getParams().contains(p)).findFirst();
-                            return mismatchParam.isEmpty();
-                        }
-                    }).collect(Collectors.toList());
-            if (endpoints.isEmpty()) {
+            return route(exchange.getRequestMethod(), exchange.getRequestURI().getPath(),
+                    exchange.getRequestURI().getQuery());
+        }
+
+        /**
+         * Конечная точка запроса или UNKNOWN. Метод и путь ищутся в таблице, имена параметров из query
+         * сравниваются с параметрами конечной точки на месте, без разбора строки, поэтому маршрутизация
+         * не создает объектов. Все параметры запроса должны быть среди параметров конечной точки.
+         */
+        public static Endpoint route(String method, String path, String query) {
+            Map<String, Route> paths = ROUTES.get(method);
+            Route route = paths != null ? paths.get(path) : null;
+            if (route == null) {
                 return UNKNOWN;
-            } else if (endpoints.size() == 1) {
-                return endpoints.get(0);
-            } else {
-                throw new RuntimeException("Конфликт конечных точек");
             }
+            int firstParam = nextParam(query, 0);
+            if (firstParam < 0) {
+                return route.withoutParams != null ? route.withoutParams : UNKNOWN;
+            }
+            for (Endpoint endpoint : route.withParams) {
+                if (endpoint.acceptsParams(query, firstParam)) {
+                    return endpoint;
+                }
+            }
+            return UNKNOWN;
+        }
+
+        private static Map<String, Map<String, Route>> compileRoutes() {
+            Map<String, Map<String, Route>> routes = new HashMap<>();
+            for (Endpoint endpoint : values()) {
+                if (endpoint == UNKNOWN) {
+                    continue;
+                }
+                Route route = routes.computeIfAbsent(endpoint.method.name(), method -> new HashMap<>())
+                        .computeIfAbsent(endpoint.path, path -> new Route());
+                route.add(endpoint);
+            }
+            return routes;
+        }
+
+        // начало следующего непустого параметра в query с позиции from или -1
+        private static int nextParam(String query, int from) {
+            if (query == null) {
+                return -1;
+            }
+            int position = from;
+            while (position < query.length() && query.charAt(position) == '&') {
+                position++;
+            }
+            return position < query.length() ? position : -1;
+        }
+
+        private boolean acceptsParams(String query, int from) {
+            for (int start = from; start >= 0; ) {
+                int end = start;
+                while (end < query.length() && query.charAt(end) != '=' && query.charAt(end) != '&') {
+                    end++;
+                }
+                if (!hasParam(query, start, end - start)) {
+                    return false;
+                }
+                int next = query.indexOf('&', end);
+                start = next < 0 ? -1 : nextParam(query, next);
+            }
+            return true;
+        }
+
+        private boolean hasParam(String query, int start, int length) {
+            for (String param : params) {
+                if (param.length() == length && query.regionMatches(start, param, 0, length)) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         private final String path;
@@ -345,7 +554,8 @@ public class HttpTaskServer {
             if (params.size() > 0) {
                 StringBuilder sb = new StringBuilder();
                 sb.append(path).append("?");
-                params.forEach((key, value) -> sb.append(key).append("=").append(value));
+                params.forEach((key, value) -> sb.append(key).append("=").append(value).append("&"));
+                sb.setLength(sb.length() - 1);
                 return sb.toString();
             } else {
                 return path;
@@ -365,5 +575,35 @@ public class HttpTaskServer {
             POST,
             DELETE
         }
+
+        /**
+         * Конечные точки с одинаковыми методом и путем: не больше одной без параметров и любое число
+         * с параметрами, если у них нет общих имен. Иначе один запрос подходил бы к двум точкам.
+         */
+        private static final class Route {
+            private Endpoint withoutParams;
+            private Endpoint[] withParams = new Endpoint[0];
+
+            private void add(Endpoint endpoint) {
+                if (endpoint.params.isEmpty()) {
+                    if (withoutParams != null) {
+                        throw conflict(withoutParams, endpoint);
+                    }
+                    withoutParams = endpoint;
+                    return;
+                }
+                for (Endpoint other : withParams) {
+                    if (!Collections.disjoint(other.params, endpoint.params)) {
+                        throw conflict(other, endpoint);
+                    }
+                }
+                withParams = Arrays.copyOf(withParams, withParams.length + 1);
+                withParams[withParams.length - 1] = endpoint;
+            }
+
+            private static IllegalStateException conflict(Endpoint first, Endpoint second) {
+                return new IllegalStateException("Конфликт конечных точек: " + first + " и " + second);
+            }
+        }
     }
 }
@@ -0,0 +1,57 @@
+package api;
+
+import java.nio.file.Path;
+
+/**
+ * Ограничение памяти {@link KVStorage}: когда ключи и значения занимают больше maxBytes, хранилище вытесняет
+ * записи по {@link Policy}, пока не освободит десятую часть бюджета. Со spillDirectory вытесненные значения
+ * переносятся на диск и возвращаются в память при чтении, без нее - удаляются.
+ * <p>
+ * Без spillDirectory удаляются только записи со сроком жизни. Бессрочные ключи (например, задачи, manifest
+ * и id-sequence {@link manager.HttpTaskManager}) не вытесняются: их удаление разрушило бы доску. Запись, после
+ * которой бессрочные ключи не поместятся в бюджет, отклоняется ({@link exception.KVStorageFullException},
+ * KVServer отвечает 413) - чтобы хранить больше, нужен spillDirectory.
+ */
+public class KVEviction {
+    public enum Policy {
+        /** Вытесняются давно не читанные записи. */
+        LRU,
+        /** Вытесняются редко читаемые записи, счетчики чтений уменьшаются вдвое при каждом вытеснении. */
+        LFU
+    }
+
+    private final long maxBytes;
+    private final Policy policy;
+    private final Path spillDirectory;
+
+    public KVEviction(long maxBytes, Policy policy) {
+        this(maxBytes, policy, null);
+    }
+
+    public KVEviction(long maxBytes, Policy policy, Path spillDirectory) {
+        if (maxBytes < 1) {
+            throw new IllegalArgumentException("Бюджет памяти должен быть положительным: " + maxBytes);
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("Не задана политика вытеснения");
+        }
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.spillDirectory = spillDirectory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Каталог для вытесненных значений или null, если они удаляются.
+     */
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+}
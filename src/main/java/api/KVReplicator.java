@@ -0,0 +1,131 @@
+package api;
+
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+/**
+ * Отправка изменений primary одной реплике в отдельном потоке, не задерживая записи. Поток ждет ревизии
+ * новее подтвержденной репликой и отправляет все изменения после нее одним запросом /replicate; номер
+ * ревизии служит порядковым номером пачки. Если реплика ждет другую ревизию, она отвечает 409 со своей
+ * ревизией в ETag, а если изменения после нее уже не хранятся, реплике отправляется полный снимок.
+ */
+final class KVReplicator {
+    private static final long RETRY_MILLIS = 1000;
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final long UNKNOWN = -1;
+
+    private final KVStorage storage;
+    private final URI replica;
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final Thread thread;
+    private String token;
+    private volatile long shipped = UNKNOWN; // ревизия, подтвержденная репликой
+    private volatile boolean stopped;
+
+    KVReplicator(KVStorage storage, URI replica) {
+        this.storage = storage;
+        this.replica = replica;
+        thread = new Thread(this::run, "kv-server-replicator-" + replica.getPort());
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+    }
+
+    URI getReplica() {
+        return replica;
+    }
+
+    /**
+     * Последняя ревизия, подтвержденная репликой, или -1, если она еще неизвестна.
+     */
+    long getShippedRevision() {
+        return shipped;
+    }
+
+    /**
+     * Вызывается после каждого изменения хранилища.
+     */
+    synchronized void wake() {
+        notifyAll();
+    }
+
+    private void run() {
+        while (!stopped) {
+            try {
+                if (token == null) {
+                    token = send(HttpRequest.newBuilder().GET().uri(URI.create(replica + "/register"))).body();
+                }
+                if (shipped == UNKNOWN) {
+                    HttpResponse<String> response = send(HttpRequest.newBuilder().GET().uri(url("/watch")));
+                    shipped = JsonParser.parseString(response.body()).getAsJsonObject().get("revision").getAsLong();
+                }
+                awaitChanges();
+                ship();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                if (stopped) {
+                    return;
+                }
+                System.out.println("Не удалось отправить изменения реплике " + replica + ": " + e.getMessage());
+                token = null;
+                shipped = UNKNOWN;
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized void awaitChanges() throws InterruptedException {
+        while (!stopped && storage.getRevision() == shipped) {
+            wait(RETRY_MILLIS);
+        }
+    }
+
+    private void ship() throws IOException, InterruptedException {
+        KVStorage.Replication replication = storage.replicationSince(shipped);
+        if (replication == null) {
+            replication = storage.replicationSnapshot();
+        }
+        HttpResponse<String> response = httpClient.send(HttpRequest.newBuilder()
+                .POST(HttpRequest.BodyPublishers.ofByteArray(replication.encode())).uri(url("/replicate"))
+                .timeout(REQUEST_TIMEOUT).build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() == 200) {
+            shipped = replication.getRevision();
+        } else if (response.statusCode() == 409) {
+            String etag = response.headers().firstValue("ETag").orElse("\"-1\"");
+            shipped = Long.parseLong(etag.substring(1, etag.length() - 1));
+        } else {
+            throw new IOException("реплика вернула код " + response.statusCode());
+        }
+    }
+
+    private URI url(String path) {
+        return URI.create(replica + path + "?API_TOKEN=" + token);
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws IOException, InterruptedException {
+        HttpResponse<String> response = httpClient.send(request.timeout(REQUEST_TIMEOUT).build(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("реплика вернула код " + response.statusCode());
+        }
+        return response;
+    }
+}
@@ -4,54 +4,139 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
+import exception.KVStorageException;
+import exception.KVStorageFullException;
 
 /**
  * Постман: https://www.getpostman.com/collections/a83b61d9e1c81c10575c
  */
 public class KVServer {
 	public static final int PORT = 8078;
+	public static final int DEFAULT_WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final long DEFAULT_WATCH_TIMEOUT_MILLIS = 30_000;
+	public static final long MAX_WATCH_TIMEOUT_MILLIS = 60_000;
+	public static final int MAX_REQUEST_BYTES = 64 * 1024 * 1024;
 	private final String apiToken;
 	private final HttpServer server;
-	private final Map<String, String> data = new HashMap<>();
+	private final ExecutorService executor;
+	private final boolean verbose;
+	private final KVStorage data;
+	private final ScheduledExecutorService watchTimeouts;
+	private final List<Watcher> watchers = new ArrayList<>();
+	private final List<KVReplicator> replicators = new CopyOnWriteArrayList<>();
 
 	public KVServer() throws IOException {
+		this(DEFAULT_WORKER_THREADS, false);
+	}
+
+	public KVServer(int workerThreads, boolean verbose) throws IOException {
+		this(workerThreads, verbose, new KVStorage());
+	}
+
+	public KVServer(int workerThreads, boolean verbose, KVStorage storage) throws IOException {
+		this(PORT, workerThreads, verbose, storage);
+	}
+
+	/**
+	 * Реплика: принимает изменения от primary через /replicate и обслуживает чтение и /watch, запись отклоняет
+	 * с кодом 403. Ревизии и версии ключей совпадают с primary.
+	 */
+	public static KVServer replica(int port, int workerThreads, boolean verbose, KVStorage storage)
+			throws IOException {
+		storage.setReplica();
+		return new KVServer(port, workerThreads, verbose, storage);
+	}
+
+	/**
+	 * Запросы обрабатываются пулом из workerThreads потоков. С verbose в консоль пишутся каждый запрос
+	 * и ошибки клиентов, без него - только сбои хранилища. Значения ключей не пишутся никогда.
+	 * Данные хранятся в storage, он закрывается в {@link #stop()}.
+	 */
+	public KVServer(int port, int workerThreads, boolean verbose, KVStorage storage) throws IOException {
+		if (workerThreads < 1) {
+			throw new IllegalArgumentException("Число потоков должно быть положительным: " + workerThreads);
+		}
+		this.verbose = verbose;
+		data = storage;
 		apiToken = generateApiToken();
-		server = HttpServer.create(new InetSocketAddress("localhost", PORT), 0);
+		AtomicInteger threadNumber = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(workerThreads, runnable -> {
+			Thread thread = new Thread(runnable, "kv-server-worker-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.setExecutor(executor);
 		server.createContext("/register", this::register);
 		server.createContext("/save", this::save);
 		server.createContext("/load", this::load);
+		server.createContext("/msave", this::multiSave);
+		server.createContext("/mload", this::multiLoad);
+		server.createContext("/watch", this::watch);
+		server.createContext("/stats", this::stats);
+		server.createContext("/keys", this::keys);
+		server.createContext("/delete", this::delete);
+		server.createContext("/replicate", this::replicate);
+		watchTimeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "kv-server-watch");
+			thread.setDaemon(true);
+			return thread;
+		});
+		data.setChangeListener(this::notifyWatchers);
 	}
 
 	private void load(HttpExchange h) throws IOException {
 		try {
-			System.out.println("\n/load");
+			trace("\n/load");
 			if (!hasAuth(h)) {
-				System.out.println("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+				trace("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
 				h.sendResponseHeaders(403, 0);
 				return;
 			}
 			if ("GET".equals(h.getRequestMethod())) {
 				String key = h.getRequestURI().getPath().substring("/load/".length());
 				if (key.isEmpty()) {
-					System.out.println("Key для загрузки пустой. key указывается в пути: /load/{key}");
+					trace("Key для загрузки пустой. key указывается в пути: /load/{key}");
 					h.sendResponseHeaders(400, 0);
 					return;
 				}
-				String value = data.get(key);
-				if (value != null) {
-					System.out.println("Получено значение для ключа " + key + ": " + value);
-					sendText(h, value);
+				if (isBehind(h)) {
+					return;
+				}
+				KVStorage.Entry entry = data.getEntry(key);
+				if (entry != null) {
+					trace("Получено значение для ключа " + key + ", байт: " + entry.getValue().length);
+					setVersion(h, entry.getVersion());
+					sendBytes(h, entry.getValue());
 				} else {
-					System.out.println("Значение для ключа " + key + " не найдено");
+					trace("Значение для ключа " + key + " не найдено");
 					h.sendResponseHeaders(404, 0);
 				}
 			} else {
-				System.out.println("/load ждёт GET-запрос, а получил " + h.getRequestMethod());
+				trace("/load ждёт GET-запрос, а получил " + h.getRequestMethod());
 				h.sendResponseHeaders(405, 0);
 			}
 		} finally {
@@ -59,32 +144,289 @@ public class KVServer {
 		}
 	}
 
+	/**
+	 * С заголовком If-Match: "версия" значение записывается, только если версия ключа не изменилась,
+	 * с If-None-Match: * - только если ключа нет. Иначе ответ 409. Новая версия возвращается в ETag.
+	 * С параметром ttl={секунды} ключ удаляется по истечении времени жизни. Значение больше бюджета
+	 * памяти хранилища - ответ 413.
+	 */
 	private void save(HttpExchange h) throws IOException {
 		try {
-			System.out.println("\n/save");
+			trace("\n/save");
 			if (!hasAuth(h)) {
-				System.out.println("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+				trace("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
 				h.sendResponseHeaders(403, 0);
 				return;
 			}
+			if (rejectReplicaWrite(h)) {
+				return;
+			}
 			if ("POST".equals(h.getRequestMethod())) {
 				String key = h.getRequestURI().getPath().substring("/save/".length());
 				if (key.isEmpty()) {
-					System.out.println("Key для сохранения пустой. key указывается в пути: /save/{key}");
+					trace("Key для сохранения пустой. key указывается в пути: /save/{key}");
+					h.sendResponseHeaders(400, 0);
+					return;
+				}
+				byte[] value = readBytes(h);
+				if (value == null) {
+					return;
+				}
+				if (value.length == 0) {
+					trace("Value для сохранения пустой. value указывается в теле запроса");
+					h.sendResponseHeaders(400, 0);
+					return;
+				}
+				Long expectedVersion;
+				try {
+					expectedVersion = readExpectedVersion(h);
+				} catch (NumberFormatException e) {
+					trace("Версия в If-Match должна быть числом в кавычках: \"1\"");
+					h.sendResponseHeaders(400, 0);
+					return;
+				}
+				Duration ttl = null;
+				String ttlParam = queryParam(h, "ttl");
+				if (ttlParam != null) {
+					try {
+						ttl = Duration.ofSeconds(Long.parseLong(ttlParam));
+					} catch (NumberFormatException e) {
+						ttl = Duration.ZERO;
+					}
+					if (ttl.isNegative() || ttl.isZero()) {
+						trace("ttl для /save должен быть положительным числом секунд");
+						h.sendResponseHeaders(400, 0);
+						return;
+					}
+				}
+				long version;
+				try {
+					if (expectedVersion == null) {
+						version = data.put(key, value, ttl);
+					} else {
+						OptionalLong written = data.putIfVersion(key, value, expectedVersion, ttl);
+						if (written.isEmpty()) {
+							KVStorage.Entry entry = data.getEntry(key);
+							trace("Версия ключа " + key + " изменилась, ожидалась " + expectedVersion);
+							setVersion(h, entry == null ? KVStorage.NO_VERSION : entry.getVersion());
+							h.sendResponseHeaders(409, 0);
+							return;
+						}
+						version = written.getAsLong();
+					}
+				} catch (KVStorageFullException e) {
+					System.out.println(e.getMessage());
+					h.sendResponseHeaders(413, 0);
+					return;
+				} catch (KVStorageException e) {
+					System.out.println(e.getMessage());
+					h.sendResponseHeaders(500, 0);
+					return;
+				}
+				trace("Значение для ключа " + key + " успешно обновлено!");
+				setVersion(h, version);
+				h.sendResponseHeaders(200, 0);
+			} else {
+				trace("/save ждёт POST-запрос, а получил: " + h.getRequestMethod());
+				h.sendResponseHeaders(405, 0);
+			}
+		} finally {
+			h.close();
+		}
+	}
+
+	/**
+	 * Сохраняет несколько ключей одним запросом: тело - JSON-объект {"ключ": "значение", ...}.
+	 */
+	private void multiSave(HttpExchange h) throws IOException {
+		try {
+			trace("\n/msave");
+			if (!hasAuth(h)) {
+				trace("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+				h.sendResponseHeaders(403, 0);
+				return;
+			}
+			if (rejectReplicaWrite(h)) {
+				return;
+			}
+			if ("POST".equals(h.getRequestMethod())) {
+				String body = readText(h);
+				if (body == null) {
+					return;
+				}
+				Map<String, String> values = new HashMap<>();
+				try {
+					JsonObject json = JsonParser.parseString(body).getAsJsonObject();
+					for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+						values.put(entry.getKey(), entry.getValue().getAsString());
+					}
+				} catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+					trace("Тело /msave должно быть JSON-объектом со строковыми значениями");
+					h.sendResponseHeaders(400, 0);
+					return;
+				}
+				if (values.isEmpty() || values.containsKey("") || values.containsValue("")) {
+					trace("Ключи и значения для сохранения не должны быть пустыми");
+					h.sendResponseHeaders(400, 0);
+					return;
+				}
+				long version;
+				try {
+					version = data.putAll(values);
+				} catch (KVStorageFullException e) {
+					System.out.println(e.getMessage());
+					h.sendResponseHeaders(413, 0);
+					return;
+				} catch (KVStorageException e) {
+					System.out.println(e.getMessage());
+					h.sendResponseHeaders(500, 0);
+					return;
+				}
+				trace("Значения для " + values.size() + " ключей успешно обновлены!");
+				setVersion(h, version);
+				h.sendResponseHeaders(200, 0);
+			} else {
+				trace("/msave ждёт POST-запрос, а получил: " + h.getRequestMethod());
+				h.sendResponseHeaders(405, 0);
+			}
+		} finally {
+			h.close();
+		}
+	}
+
+	/**
+	 * Загружает несколько ключей одним запросом: тело - JSON-массив ключей, ответ - JSON-объект с найденными
+	 * ключами и их значениями в base64. Значения отдаются как хранятся, без декодирования в строку: ключ мог
+	 * быть записан через /save произвольными байтами.
+	 */
+	private void multiLoad(HttpExchange h) throws IOException {
+		try {
+			trace("\n/mload");
+			if (!hasAuth(h)) {
+				trace("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+				h.sendResponseHeaders(403, 0);
+				return;
+			}
+			if ("POST".equals(h.getRequestMethod())) {
+				if (isBehind(h)) {
+					return;
+				}
+				String body = readText(h);
+				if (body == null) {
+					return;
+				}
+				JsonArray keys;
+				try {
+					keys = JsonParser.parseString(body).getAsJsonArray();
+				} catch (JsonParseException | IllegalStateException e) {
+					trace("Тело /mload должно быть JSON-массивом ключей");
 					h.sendResponseHeaders(400, 0);
 					return;
 				}
-				String value = readText(h);
-				if (value.isEmpty()) {
-					System.out.println("Value для сохранения пустой. value указывается в теле запроса");
+				JsonObject values = new JsonObject();
+				Base64.Encoder encoder = Base64.getEncoder();
+				for (JsonElement key : keys) {
+					KVStorage.Entry entry = data.getEntry(key.getAsString());
+					if (entry != null) {
+						values.addProperty(key.getAsString(), encoder.encodeToString(entry.getValue()));
+					}
+				}
+				trace("Найдено значений: " + values.size() + " из " + keys.size());
+				sendText(h, values.toString());
+			} else {
+				trace("/mload ждёт POST-запрос, а получил " + h.getRequestMethod());
+				h.sendResponseHeaders(405, 0);
+			}
+		} finally {
+			h.close();
+		}
+	}
+
+	/**
+	 * Long-poll изменений: GET /watch?since={ревизия}&timeout={мс} отвечает, как только появятся изменения
+	 * после ревизии since, или по истечении timeout. Ответ: {"revision": R, "reset": false, "changes":
+	 * [{"key": ..., "version": ..., "removed": false}, ...]}. reset - изменения после since не сохранились,
+	 * клиенту нужно перечитать данные целиком. Без since сразу возвращается текущая ревизия.
+	 */
+	private void watch(HttpExchange h) throws IOException {
+		boolean answered = true;
+		try {
+			trace("\n/watch");
+			if (!hasAuth(h)) {
+				trace("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+				h.sendResponseHeaders(403, 0);
+				return;
+			}
+			if (!"GET".equals(h.getRequestMethod())) {
+				trace("/watch ждёт GET-запрос, а получил " + h.getRequestMethod());
+				h.sendResponseHeaders(405, 0);
+				return;
+			}
+			String sinceParam = queryParam(h, "since");
+			String timeoutParam = queryParam(h, "timeout");
+			long since;
+			long timeoutMillis;
+			try {
+				since = sinceParam == null ? data.getRevision() : Long.parseLong(sinceParam);
+				timeoutMillis = timeoutParam == null ? DEFAULT_WATCH_TIMEOUT_MILLIS : Long.parseLong(timeoutParam);
+			} catch (NumberFormatException e) {
+				trace("since и timeout для /watch должны быть числами");
+				h.sendResponseHeaders(400, 0);
+				return;
+			}
+			timeoutMillis = Math.max(0, Math.min(timeoutMillis, MAX_WATCH_TIMEOUT_MILLIS));
+			synchronized (watchers) {
+				List<KVStorage.Change> changes = data.changesSince(since);
+				if (sinceParam != null && changes != null && changes.isEmpty() && timeoutMillis > 0) {
+					// ответ отправит запись или таймаут, поток пула не ждет
+					Watcher watcher = new Watcher(h, since);
+					watchers.add(watcher);
+					watcher.timeout = watchTimeouts.schedule(() -> expire(watcher), timeoutMillis, TimeUnit.MILLISECONDS);
+					answered = false;
+					return;
+				}
+			}
+			sendChanges(h, since);
+		} finally {
+			if (answered) {
+				h.close();
+			}
+		}
+	}
+
+	/**
+	 * Удаляет ключ: DELETE /delete/{key}. Отсутствующий ключ - не ошибка.
+	 */
+	private void delete(HttpExchange h) throws IOException {
+		try {
+			trace("\n/delete");
+			if (!hasAuth(h)) {
+				trace("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+				h.sendResponseHeaders(403, 0);
+				return;
+			}
+			if (rejectReplicaWrite(h)) {
+				return;
+			}
+			if ("DELETE".equals(h.getRequestMethod())) {
+				String key = h.getRequestURI().getPath().substring("/delete/".length());
+				if (key.isEmpty()) {
+					trace("Key для удаления пустой. key указывается в пути: /delete/{key}");
 					h.sendResponseHeaders(400, 0);
 					return;
 				}
-				data.put(key, value);
-				System.out.println("Значение для ключа " + key + " успешно обновлено!");
+				try {
+					data.remove(key);
+				} catch (KVStorageException e) {
+					System.out.println(e.getMessage());
+					h.sendResponseHeaders(500, 0);
+					return;
+				}
+				trace("Ключ " + key + " удален");
+				setVersion(h, data.getRevision());
 				h.sendResponseHeaders(200, 0);
 			} else {
-				System.out.println("/save ждёт POST-запрос, а получил: " + h.getRequestMethod());
+				trace("/delete ждёт DELETE-запрос, а получил: " + h.getRequestMethod());
 				h.sendResponseHeaders(405, 0);
 			}
 		} finally {
@@ -92,13 +434,250 @@ public class KVServer {
 		}
 	}
 
+	/**
+	 * Пачка изменений от primary в формате {@link KVStorage.Replication#encode()}. Пачка, собранная не от текущей
+	 * ревизии реплики, отклоняется с кодом 409 и текущей ревизией в ETag.
+	 */
+	private void replicate(HttpExchange h) throws IOException {
+		try {
+			trace("\n/replicate");
+			if (!hasAuth(h)) {
+				trace("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+				h.sendResponseHeaders(403, 0);
+				return;
+			}
+			if (!"POST".equals(h.getRequestMethod())) {
+				trace("/replicate ждёт POST-запрос, а получил: " + h.getRequestMethod());
+				h.sendResponseHeaders(405, 0);
+				return;
+			}
+			if (!data.isReplica()) {
+				trace("/replicate принимает только реплика");
+				h.sendResponseHeaders(403, 0);
+				return;
+			}
+			byte[] body = readBytes(h);
+			if (body == null) {
+				return;
+			}
+			KVStorage.Replication replication;
+			try {
+				replication = KVStorage.Replication.decode(body);
+			} catch (IOException e) {
+				trace("Пачка изменений повреждена: " + e.getMessage());
+				h.sendResponseHeaders(400, 0);
+				return;
+			}
+			try {
+				if (!data.applyReplication(replication)) {
+					trace("Пачка собрана от ревизии " + replication.getSince() + ", у реплики " + data.getRevision());
+					setVersion(h, data.getRevision());
+					h.sendResponseHeaders(409, 0);
+					return;
+				}
+			} catch (KVStorageException e) {
+				System.out.println(e.getMessage());
+				h.sendResponseHeaders(500, 0);
+				return;
+			}
+			trace("Применено изменений: " + replication.getRecords().size() + ", ревизия " + replication.getRevision());
+			setVersion(h, replication.getRevision());
+			h.sendResponseHeaders(200, 0);
+		} finally {
+			h.close();
+		}
+	}
+
+	/**
+	 * Начинает отправлять изменения реплике. Реплика получает все данные, которых у нее нет, и дальше
+	 * догоняет primary асинхронно: запись на primary не ждет реплик.
+	 */
+	public void addReplica(URI replica) {
+		if (data.isReplica()) {
+			throw new IllegalStateException("Реплика не может отправлять изменения другим репликам");
+		}
+		KVReplicator replicator = new KVReplicator(data, replica);
+		replicators.add(replicator);
+		replicator.start();
+	}
+
+	/**
+	 * Ревизия, до которой реплика подтвердила изменения, или -1, если она еще неизвестна.
+	 */
+	public long getReplicatedRevision(URI replica) {
+		for (KVReplicator replicator : replicators) {
+			if (replicator.getReplica().equals(replica)) {
+				return replicator.getShippedRevision();
+			}
+		}
+		throw new IllegalArgumentException("Нет такой реплики: " + replica);
+	}
+
+	// Реплика отклоняет запись: ее ревизии должны совпадать с primary
+	private boolean rejectReplicaWrite(HttpExchange h) throws IOException {
+		if (!data.isReplica()) {
+			return false;
+		}
+		trace("Сервер - реплика, запись принимает только primary");
+		h.sendResponseHeaders(403, 0);
+		return true;
+	}
+
+	// С параметром minRevision чтение ждет записи клиента: отстающий сервер отвечает 503, клиент читает у primary
+	private boolean isBehind(HttpExchange h) throws IOException {
+		String minRevision = queryParam(h, "minRevision");
+		if (minRevision == null) {
+			return false;
+		}
+		try {
+			if (data.getRevision() >= Long.parseLong(minRevision)) {
+				return false;
+			}
+		} catch (NumberFormatException e) {
+			trace("minRevision должен быть числом");
+			h.sendResponseHeaders(400, 0);
+			return true;
+		}
+		trace("Ревизия " + data.getRevision() + " меньше запрошенной " + minRevision);
+		h.sendResponseHeaders(503, 0);
+		return true;
+	}
+
+	/**
+	 * Все ключи хранилища JSON-массивом: по нему клиент переносит ключи при добавлении сервера.
+	 */
+	private void keys(HttpExchange h) throws IOException {
+		try {
+			trace("\n/keys");
+			if (!hasAuth(h)) {
+				trace("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+				h.sendResponseHeaders(403, 0);
+				return;
+			}
+			if ("GET".equals(h.getRequestMethod())) {
+				JsonArray keys = new JsonArray();
+				data.keys().forEach(keys::add);
+				trace("Ключей: " + keys.size());
+				sendText(h, keys.toString());
+			} else {
+				trace("/keys ждёт GET-запрос, а получил " + h.getRequestMethod());
+				h.sendResponseHeaders(405, 0);
+			}
+		} finally {
+			h.close();
+		}
+	}
+
+	/**
+	 * Счетчики хранилища: {"hits": ..., "misses": ..., "evictions": ..., "expirations": ..., "spillReads": ...,
+	 * "keysInMemory": ..., "keysSpilled": ..., "usedBytes": ...}.
+	 */
+	private void stats(HttpExchange h) throws IOException {
+		try {
+			trace("\n/stats");
+			if (!hasAuth(h)) {
+				trace("Запрос неавторизован, нужен параметр в query API_TOKEN со значением апи-ключа");
+				h.sendResponseHeaders(403, 0);
+				return;
+			}
+			if ("GET".equals(h.getRequestMethod())) {
+				KVStorage.Stats stats = data.getStats();
+				JsonObject json = new JsonObject();
+				json.addProperty("hits", stats.getHits());
+				json.addProperty("misses", stats.getMisses());
+				json.addProperty("evictions", stats.getEvictions());
+				json.addProperty("expirations", stats.getExpirations());
+				json.addProperty("spillReads", stats.getSpillReads());
+				json.addProperty("keysInMemory", stats.getKeysInMemory());
+				json.addProperty("keysSpilled", stats.getKeysSpilled());
+				json.addProperty("usedBytes", stats.getUsedBytes());
+				sendText(h, json.toString());
+			} else {
+				trace("/stats ждёт GET-запрос, а получил " + h.getRequestMethod());
+				h.sendResponseHeaders(405, 0);
+			}
+		} finally {
+			h.close();
+		}
+	}
+
+	private void notifyWatchers(long revision) {
+		List<Watcher> ready = new ArrayList<>();
+		synchronized (watchers) {
+			watchers.removeIf(watcher -> {
+				if (watcher.since < revision) {
+					watcher.timeout.cancel(false);
+					ready.add(watcher);
+					return true;
+				}
+				return false;
+			});
+		}
+		ready.forEach(watcher -> executor.execute(() -> answer(watcher)));
+		replicators.forEach(KVReplicator::wake);
+	}
+
+	private void expire(Watcher watcher) {
+		synchronized (watchers) {
+			if (!watchers.remove(watcher)) {
+				return;
+			}
+		}
+		executor.execute(() -> answer(watcher));
+	}
+
+	private void answer(Watcher watcher) {
+		try {
+			sendChanges(watcher.exchange, watcher.since);
+		} catch (IOException e) {
+			trace("Не удалось ответить на /watch: " + e.getMessage());
+		} finally {
+			watcher.exchange.close();
+		}
+	}
+
+	private void sendChanges(HttpExchange h, long since) throws IOException {
+		long revision = data.getRevision();
+		List<KVStorage.Change> changes = data.changesSince(since);
+		JsonObject response = new JsonObject();
+		response.addProperty("revision", changes == null || changes.isEmpty()
+				? revision : changes.get(changes.size() - 1).getVersion());
+		response.addProperty("reset", changes == null);
+		JsonArray changeArray = new JsonArray();
+		if (changes != null) {
+			for (KVStorage.Change change : changes) {
+				JsonObject json = new JsonObject();
+				json.addProperty("key", change.getKey());
+				json.addProperty("version", change.getVersion());
+				json.addProperty("removed", change.isRemoved());
+				changeArray.add(json);
+			}
+		}
+		response.add("changes", changeArray);
+		trace("Изменений после ревизии " + since + ": " + changeArray.size());
+		sendText(h, response.toString());
+	}
+
+	private static String queryParam(HttpExchange h, String name) {
+		String rawQuery = h.getRequestURI().getRawQuery();
+		if (rawQuery == null) {
+			return null;
+		}
+		for (String param : rawQuery.split("&")) {
+			if (param.startsWith(name + "=")) {
+				return param.substring(name.length() + 1);
+			}
+		}
+		return null;
+	}
+
 	private void register(HttpExchange h) throws IOException {
 		try {
-			System.out.println("\n/register");
+			trace("\n/register");
 			if ("GET".equals(h.getRequestMethod())) {
 				sendText(h, apiToken);
 			} else {
-				System.out.println("/register ждёт GET-запрос, а получил " + h.getRequestMethod());
+				trace("/register ждёт GET-запрос, а получил " + h.getRequestMethod());
 				h.sendResponseHeaders(405, 0);
 			}
 		} finally {
@@ -112,7 +691,21 @@ public class KVServer {
 	}
 
 	public void stop() {
+		replicators.forEach(KVReplicator::stop);
 		server.stop(0);
+		watchTimeouts.shutdownNow();
+		synchronized (watchers) {
+			watchers.forEach(watcher -> watcher.exchange.close());
+			watchers.clear();
+		}
+		executor.shutdown();
+		data.close();
+	}
+
+	private void trace(String message) {
+		if (verbose) {
+			trace(message);
+		}
 	}
 
 	private String generateApiToken() {
@@ -124,14 +717,90 @@ public class KVServer {
 		return rawQuery != null && (rawQuery.contains("API_TOKEN=" + apiToken) || rawQuery.contains("API_TOKEN=DEBUG"));
 	}
 
+	// null - запись без проверки версии
+	private static Long readExpectedVersion(HttpExchange h) {
+		if ("*".equals(h.getRequestHeaders().getFirst("If-None-Match"))) {
+			return KVStorage.NO_VERSION;
+		}
+		String ifMatch = h.getRequestHeaders().getFirst("If-Match");
+		if (ifMatch == null) {
+			return null;
+		}
+		if (ifMatch.length() < 2 || !ifMatch.startsWith("\"") || !ifMatch.endsWith("\"")) {
+			throw new NumberFormatException(ifMatch);
+		}
+		return Long.parseLong(ifMatch.substring(1, ifMatch.length() - 1));
+	}
+
+	private static void setVersion(HttpExchange h, long version) {
+		h.getResponseHeaders().set("ETag", "\"" + version + "\"");
+	}
+
 	protected String readText(HttpExchange h) throws IOException {
-		return new String(h.getRequestBody().readAllBytes(), UTF_8);
+		byte[] body = readBytes(h);
+		return body == null ? null : new String(body, UTF_8);
+	}
+
+	/**
+	 * Тело запроса. При известной длине читается сразу в массив нужного размера, без промежуточных буферов;
+	 * без Content-Length - частями до конца потока. Тело больше {@link #MAX_REQUEST_BYTES} отклоняется ответом
+	 * 413, и возвращается null: вызывающий больше ничего не отправляет.
+	 */
+	protected byte[] readBytes(HttpExchange h) throws IOException {
+		String contentLength = h.getRequestHeaders().getFirst("Content-Length");
+		long length = -1;
+		if (contentLength != null) {
+			try {
+				length = Long.parseLong(contentLength);
+			} catch (NumberFormatException e) {
+				// неверная длина: читаем до конца потока
+			}
+		}
+		if (length < 0) {
+			byte[] body = h.getRequestBody().readNBytes(MAX_REQUEST_BYTES + 1);
+			if (body.length > MAX_REQUEST_BYTES) {
+				return rejectTooLarge(h, "больше " + MAX_REQUEST_BYTES);
+			}
+			return body;
+		}
+		if (length > MAX_REQUEST_BYTES) {
+			return rejectTooLarge(h, contentLength);
+		}
+		byte[] body = new byte[(int) length];
+		int read = h.getRequestBody().readNBytes(body, 0, body.length);
+		if (read < body.length) {
+			throw new IOException("Тело запроса короче Content-Length: " + read + " из " + length);
+		}
+		return body;
+	}
+
+	private byte[] rejectTooLarge(HttpExchange h, String length) throws IOException {
+		trace("Тело запроса слишком большое: " + length + " байт, можно не больше " + MAX_REQUEST_BYTES);
+		h.sendResponseHeaders(413, -1);
+		return null;
 	}
 
 	protected void sendText(HttpExchange h, String text) throws IOException {
-		byte[] resp = text.getBytes(UTF_8);
+		sendBytes(h, text.getBytes(UTF_8));
+	}
+
+	/**
+	 * Отправляет массив как есть, без перекодирования.
+	 */
+	protected void sendBytes(HttpExchange h, byte[] body) throws IOException {
 		h.getResponseHeaders().add("Content-Type", "application/json");
-		h.sendResponseHeaders(200, resp.length);
-		h.getResponseBody().write(resp);
+		h.sendResponseHeaders(200, body.length);
+		h.getResponseBody().write(body);
+	}
+
+	private static class Watcher {
+		private final HttpExchange exchange;
+		private final long since;
+		private ScheduledFuture<?> timeout;
+
+		private Watcher(HttpExchange exchange, long since) {
+			this.exchange = exchange;
+			this.since = since;
+		}
 	}
 }
@@ -0,0 +1,63 @@
+package api;
+
+import exception.KVStorageException;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Каталог вытесненных значений: по файлу на значение. Файлы нужны только работающему хранилищу,
+ * поэтому удаляются при открытии и закрытии. Вызывается под блокировкой хранилища.
+ */
+final class KVSpill {
+    private static final String SUFFIX = ".spill";
+    private final Path directory;
+    private long nextId;
+
+    KVSpill(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        clear();
+    }
+
+    long write(byte[] value) {
+        long id = ++nextId;
+        try {
+            Files.write(file(id), value);
+        } catch (IOException e) {
+            throw new KVStorageException("Не удалось вытеснить значение в " + directory + ": " + e.getMessage());
+        }
+        return id;
+    }
+
+    byte[] read(long id) {
+        try {
+            return Files.readAllBytes(file(id));
+        } catch (IOException e) {
+            throw new KVStorageException("Не удалось прочитать вытесненное значение из " + directory + ": "
+                    + e.getMessage());
+        }
+    }
+
+    void delete(long id) {
+        try {
+            Files.deleteIfExists(file(id));
+        } catch (IOException e) {
+            System.out.println("Не удалось удалить " + file(id) + ": " + e.getMessage());
+        }
+    }
+
+    void clear() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private Path file(long id) {
+        return directory.resolve(id + SUFFIX);
+    }
+}
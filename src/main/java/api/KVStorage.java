@@ -0,0 +1,1325 @@
+package api;
+
+import exception.KVStorageException;
+import exception.KVStorageFullException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Хранилище KVServer. Без файла данные живут только в памяти. С файлом каждое изменение дописывается в журнал
+ * записями [длина][CRC32][операция, версия, ключ, значение], журнал воспроизводится при запуске и переписывается
+ * (сжимается), когда записей в нем становится больше compactionRecords и вдвое больше числа ключей.
+ * Сброс на диск - по {@link FsyncPolicy}; записи, пришедшие во время сброса, сбрасываются вместе следующим.
+ * <p>
+ * Каждая запись увеличивает ревизию хранилища, значение получает ее номер как версию. Версии растут
+ * и после удаления ключа, поэтому устаревшая версия никогда не совпадет с новой. Последние
+ * {@link #CHANGE_FEED_SIZE} изменений хранятся в памяти для {@link #changesSince}.
+ * <p>
+ * С {@link KVEviction} объем ключей и значений в памяти ограничен: вытесненные без каталога spill записи
+ * удаляются так же, как {@link #remove}. Значение может иметь время жизни: после него ключ не читается,
+ * а фоновый поток удаляет его раз в {@link #REAPER_INTERVAL_MILLIS} мс.
+ * <p>
+ * Изменения можно переносить в хранилище реплики: {@link #replicationSince} собирает их с текущими значениями,
+ * {@link #applyReplication} применяет с версиями primary, так что ревизии реплики и primary совпадают.
+ */
+public class KVStorage implements AutoCloseable {
+    public enum FsyncPolicy {
+        /** Запись подтверждается после сброса на диск. */
+        ALWAYS,
+        /** Журнал сбрасывается фоновым потоком раз в fsyncInterval. */
+        INTERVAL,
+        /** Сброс оставлен операционной системе. */
+        NEVER
+    }
+
+    public static final int DEFAULT_COMPACTION_RECORDS = 10_000;
+    /** Версия отсутствующего ключа. */
+    public static final long NO_VERSION = 0;
+    public static final int CHANGE_FEED_SIZE = 10_000;
+    public static final long REAPER_INTERVAL_MILLIS = 100;
+    private static final byte[] EMPTY = new byte[0];
+    private static final int COMPACTION_WRITE_RECORDS = 1024;
+    private static final byte OPERATION_PUT = 1; // без версии: формат до версионирования
+    private static final byte OPERATION_REMOVE = 2;
+    private static final byte OPERATION_PUT_VERSION = 3;
+    private static final byte OPERATION_REVISION = 4;
+    private static final byte OPERATION_REMOVE_VERSION = 5;
+    private static final byte OPERATION_PUT_EXPIRING = 6;
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final long NO_EXPIRY = 0;
+    // оценка памяти на ключ сверх символов ключа и байтов значения: объекты Entry, String и узел карты
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int LFU_INITIAL_FREQUENCY = 4; // новая запись не должна вытесняться первой
+    private static final int LFU_MAX_FREQUENCY = 1 << 20;
+
+    private final Map<String, Entry> data = new ConcurrentHashMap<>();
+    private final Path file;
+    private final FsyncPolicy fsyncPolicy;
+    private final int compactionRecords;
+    private final Object syncLock = new Object();
+    private final ScheduledExecutorService syncExecutor;
+    private FileChannel channel;
+    private long records;
+    private long revision;
+    private final ArrayDeque<Change> changes = new ArrayDeque<>();
+    private long feedStart; // ревизия, после которой известны все изменения
+    private volatile LongConsumer changeListener = newRevision -> { };
+    private volatile long writtenBatches;
+    private long syncedBatches;
+    private final KVEviction eviction;
+    private final KVSpill spill;
+    private final Map<String, Spilled> spilled = new ConcurrentHashMap<>();
+    private final PriorityQueue<Expiry> expiries = new PriorityQueue<>(Comparator.comparingLong(Expiry::getExpiresAt));
+    private ScheduledExecutorService reaper;
+    private long usedBytes;
+    private long expiringBytes; // часть usedBytes, занятая записями со сроком жизни
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long evictions;
+    private long expirations;
+    private long spillReads;
+    private volatile boolean replica;
+
+    public KVStorage() {
+        file = null;
+        fsyncPolicy = FsyncPolicy.NEVER;
+        compactionRecords = DEFAULT_COMPACTION_RECORDS;
+        syncExecutor = null;
+        eviction = null;
+        spill = null;
+    }
+
+    /**
+     * Хранилище только в памяти с ограничением объема.
+     */
+    public KVStorage(KVEviction eviction) throws IOException {
+        this(null, FsyncPolicy.NEVER, null, DEFAULT_COMPACTION_RECORDS, eviction);
+    }
+
+    public KVStorage(Path file, FsyncPolicy fsyncPolicy, Duration fsyncInterval) throws IOException {
+        this(file, fsyncPolicy, fsyncInterval, DEFAULT_COMPACTION_RECORDS);
+    }
+
+    public KVStorage(Path file, FsyncPolicy fsyncPolicy, Duration fsyncInterval, int compactionRecords)
+            throws IOException {
+        this(file, fsyncPolicy, fsyncInterval, compactionRecords, null);
+    }
+
+    /**
+     * Без file хранилище живет только в памяти, без eviction - не ограничено по объему.
+     */
+    public KVStorage(Path file, FsyncPolicy fsyncPolicy, Duration fsyncInterval, int compactionRecords,
+                     KVEviction eviction) throws IOException {
+        if (compactionRecords < 1) {
+            throw new IllegalArgumentException("Порог сжатия журнала должен быть положительным: " + compactionRecords);
+        }
+        this.file = file;
+        this.fsyncPolicy = file == null ? FsyncPolicy.NEVER : fsyncPolicy;
+        this.compactionRecords = compactionRecords;
+        this.eviction = eviction;
+        spill = eviction == null || eviction.getSpillDirectory() == null
+                ? null : new KVSpill(eviction.getSpillDirectory());
+        if (file != null) {
+            long validLength = replay();
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            channel.truncate(validLength); // отбрасываем недописанную запись
+            channel.position(validLength);
+        }
+        // журнал мог быть записан с большим бюджетом
+        evictIfNeeded(Collections.emptySet());
+        changes.clear();
+        feedStart = revision;
+        if (!expiries.isEmpty()) {
+            startReaper();
+        }
+        if (this.fsyncPolicy == FsyncPolicy.INTERVAL) {
+            syncExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "kv-storage-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long intervalMillis = Math.max(1, fsyncInterval.toMillis());
+            syncExecutor.scheduleWithFixedDelay(this::syncInBackground, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        } else {
+            syncExecutor = null;
+        }
+    }
+
+    public String get(String key) {
+        byte[] value = getBytes(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Значение в том виде, в котором хранится, без копирования. Массив нельзя изменять.
+     */
+    public byte[] getBytes(String key) {
+        Entry entry = lookup(key);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Значение ключа вместе с версией или null, если ключа нет.
+     */
+    public Entry getEntry(String key) {
+        return lookup(key);
+    }
+
+    /**
+     * Число ключей вместе с вытесненными на диск и еще не удаленными после истечения времени жизни.
+     */
+    public int size() {
+        return data.size() + spilled.size();
+    }
+
+    /**
+     * Снимок всех ключей, включая вытесненные на диск.
+     */
+    public List<String> keys() {
+        List<String> keys = new ArrayList<>(data.keySet());
+        keys.addAll(spilled.keySet());
+        return keys;
+    }
+
+    /**
+     * Делает хранилище репликой: оно меняется только через {@link #applyReplication}. Истекшие ключи не читаются,
+     * но удаляет их primary, вытеснение работает только с каталогом spill - иначе ревизии разошлись бы с primary.
+     */
+    public void setReplica() {
+        replica = true;
+    }
+
+    public boolean isReplica() {
+        return replica;
+    }
+
+    /**
+     * Изменения после since с текущими значениями ключей: каждый ключ один раз, по возрастанию версий.
+     * Null, если часть изменений уже не хранится, - тогда реплике нужен {@link #replicationSnapshot}.
+     */
+    public synchronized Replication replicationSince(long since) {
+        List<Change> feed = changesSince(since);
+        if (feed == null) {
+            return null;
+        }
+        Map<String, Long> lastChanges = new LinkedHashMap<>();
+        for (Change change : feed) {
+            lastChanges.remove(change.key); // порядок - по последнему изменению
+            lastChanges.put(change.key, change.version);
+        }
+        List<Replication.Record> replicated = new ArrayList<>(lastChanges.size());
+        lastChanges.forEach((key, version) -> replicated.add(replicationRecord(key, version)));
+        return new Replication(since, revision, false, replicated);
+    }
+
+    /**
+     * Все ключи хранилища: реплика заменяет ими свое содержимое.
+     */
+    public synchronized Replication replicationSnapshot() {
+        List<Replication.Record> replicated = new ArrayList<>(size());
+        for (String key : keys()) {
+            replicated.add(replicationRecord(key, NO_VERSION));
+        }
+        replicated.sort(Comparator.comparingLong(Replication.Record::getVersion));
+        return new Replication(NO_VERSION, revision, true, replicated);
+    }
+
+    // Вызывается под блокировкой. removedVersion - версия удаления, если ключа уже нет
+    private Replication.Record replicationRecord(String key, long removedVersion) {
+        Entry entry = data.get(key);
+        if (entry != null) {
+            return new Replication.Record(key, entry.version, entry.expiresAt, entry.value);
+        }
+        Spilled spilledEntry = spilled.get(key);
+        if (spilledEntry != null) {
+            return new Replication.Record(key, spilledEntry.version, spilledEntry.expiresAt,
+                    spill.read(spilledEntry.id));
+        }
+        return new Replication.Record(key, removedVersion, NO_EXPIRY, null);
+    }
+
+    /**
+     * Применяет изменения primary. Возвращает false без изменений, если они собраны не от текущей ревизии
+     * хранилища: пропущенные изменения нужно запросить заново.
+     */
+    public boolean applyReplication(Replication replication) {
+        long batch;
+        long latest;
+        synchronized (this) {
+            if (!replication.reset && replication.since != revision) {
+                return false;
+            }
+            List<ByteBuffer[]> logRecords = new ArrayList<>();
+            if (replication.reset) {
+                Set<String> kept = new HashSet<>();
+                replication.records.forEach(record -> kept.add(record.key));
+                for (String key : keys()) {
+                    if (!kept.contains(key)) {
+                        logRecords.add(record(OPERATION_REMOVE_VERSION, replication.revision, NO_EXPIRY, key, EMPTY));
+                        discard(key);
+                    }
+                }
+            }
+            for (Replication.Record record : replication.records) {
+                if (record.value == null) {
+                    logRecords.add(record(OPERATION_REMOVE_VERSION, record.version, NO_EXPIRY, record.key, EMPTY));
+                    discard(record.key);
+                } else {
+                    logRecords.add(putRecord(record.key, record.version, record.expiresAt, record.value));
+                    store(record.key, new Entry(record.value, record.version, record.expiresAt));
+                }
+                if (!replication.reset) {
+                    addChange(new Change(record.key, record.version, record.value == null));
+                }
+            }
+            // ревизия сохраняется отдельно: ее могло поднять удаление, не попавшее в пачку
+            logRecords.add(record(OPERATION_REVISION, replication.revision, NO_EXPIRY, "", EMPTY));
+            if (file != null) {
+                write(logRecords);
+                records += logRecords.size();
+            }
+            revision = replication.revision;
+            if (replication.reset) {
+                changes.clear();
+                feedStart = revision;
+            }
+            evictIfNeeded(Collections.emptySet());
+            latest = revision;
+            batch = ++writtenBatches;
+            compactIfNeeded();
+        }
+        sync(batch);
+        changeListener.accept(latest);
+        return true;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits.sum(), misses.sum(), evictions, expirations, spillReads, data.size(), spilled.size(),
+                usedBytes);
+    }
+
+    // Чтение из памяти идет без блокировки, вытесненное значение возвращается в память под ней
+    private Entry lookup(String key) {
+        Entry entry = data.get(key);
+        if (entry == null && spill != null) {
+            entry = unspill(key);
+        }
+        if (entry == null || isExpired(entry.expiresAt)) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (eviction != null) {
+            entry.touch();
+        }
+        return entry;
+    }
+
+    private synchronized Entry unspill(String key) {
+        Entry entry = data.get(key);
+        if (entry != null) {
+            return entry;
+        }
+        Spilled spilledEntry = spilled.get(key);
+        if (spilledEntry == null) {
+            return null;
+        }
+        entry = new Entry(spill.read(spilledEntry.id), spilledEntry.version, spilledEntry.expiresAt);
+        store(key, entry);
+        spillReads++;
+        evictIfNeeded(Set.of(key));
+        return entry;
+    }
+
+    public synchronized long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Изменения с ревизии после since, по порядку. Null, если часть этих изменений уже не хранится или since
+     * больше текущей ревизии (хранилище перезапущено и потеряло не сброшенные на диск записи).
+     */
+    public synchronized List<Change> changesSince(long since) {
+        if (since < feedStart || since > revision) {
+            return null;
+        }
+        List<Change> result = new ArrayList<>();
+        Iterator<Change> iterator = changes.descendingIterator();
+        while (iterator.hasNext()) {
+            Change change = iterator.next();
+            if (change.version <= since) {
+                break;
+            }
+            result.add(change);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Listener получает новую ревизию после каждого изменения. Вызывается в потоке записи вне блокировки.
+     */
+    public void setChangeListener(LongConsumer changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Записывает значение и возвращает его версию.
+     */
+    public long put(String key, String value) {
+        return put(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Записывает значение без копирования: массив хранится как есть и после записи не должен изменяться.
+     */
+    public long put(String key, byte[] value) {
+        return put(key, value, null);
+    }
+
+    /**
+     * Записывает значение со временем жизни ttl, null - бессрочно.
+     */
+    public long put(String key, byte[] value, Duration ttl) {
+        long expiresAt = expiresAt(ttl);
+        Map<String, byte[]> values = Map.of(key, value);
+        checkBudget(values);
+        long version;
+        long batch;
+        long latest;
+        synchronized (this) {
+            checkPinnedBudget(values, expiresAt);
+            version = revision + 1;
+            batch = append(values, version, expiresAt);
+            latest = revision;
+        }
+        sync(batch);
+        changeListener.accept(latest);
+        return version;
+    }
+
+    /**
+     * Записывает значение, только если текущая версия ключа равна expectedVersion ({@link #NO_VERSION} -
+     * ключа нет). Возвращает новую версию или пустой результат при несовпадении версий.
+     */
+    public OptionalLong putIfVersion(String key, String value, long expectedVersion) {
+        return putIfVersion(key, value.getBytes(StandardCharsets.UTF_8), expectedVersion);
+    }
+
+    public OptionalLong putIfVersion(String key, byte[] value, long expectedVersion) {
+        return putIfVersion(key, value, expectedVersion, null);
+    }
+
+    public OptionalLong putIfVersion(String key, byte[] value, long expectedVersion, Duration ttl) {
+        long expiresAt = expiresAt(ttl);
+        Map<String, byte[]> values = Map.of(key, value);
+        checkBudget(values);
+        long version;
+        long batch;
+        long latest;
+        synchronized (this) {
+            if (liveVersion(key) != expectedVersion) {
+                return OptionalLong.empty();
+            }
+            checkPinnedBudget(values, expiresAt);
+            version = revision + 1;
+            batch = append(values, version, expiresAt);
+            latest = revision;
+        }
+        sync(batch);
+        changeListener.accept(latest);
+        return OptionalLong.of(version);
+    }
+
+    /**
+     * Записывает все значения одной пачкой в журнале. Все значения получают одну версию, она и возвращается.
+     */
+    public long putAll(Map<String, String> values) {
+        Map<String, byte[]> encoded = new LinkedHashMap<>();
+        values.forEach((key, value) -> encoded.put(key, value.getBytes(StandardCharsets.UTF_8)));
+        checkBudget(encoded);
+        long version;
+        long batch;
+        long latest;
+        synchronized (this) {
+            checkPinnedBudget(encoded, NO_EXPIRY);
+            version = revision + 1;
+            batch = append(encoded, version, NO_EXPIRY);
+            latest = revision;
+        }
+        sync(batch);
+        changeListener.accept(latest);
+        return version;
+    }
+
+    public void remove(String key) {
+        long version;
+        long batch;
+        synchronized (this) {
+            if (!data.containsKey(key) && !spilled.containsKey(key)) {
+                return;
+            }
+            version = removeLogged(key);
+            batch = ++writtenBatches;
+            compactIfNeeded();
+        }
+        sync(batch);
+        changeListener.accept(version);
+    }
+
+    // Вызывается под блокировкой: удаление с записью в журнал и ленту изменений, возвращает его версию
+    private long removeLogged(String key) {
+        long version = revision + 1;
+        if (file != null) {
+            write(Collections.singletonList(record(OPERATION_REMOVE_VERSION, version, NO_EXPIRY, key, EMPTY)));
+            records++;
+        }
+        revision = version;
+        discard(key);
+        addChange(new Change(key, version, true));
+        return version;
+    }
+
+    // Вызывается под блокировкой
+    private void store(String key, Entry entry) {
+        discard(key);
+        data.put(key, entry);
+        usedBytes += sizeOf(key, entry.value);
+        if (entry.expiresAt != NO_EXPIRY) {
+            expiringBytes += sizeOf(key, entry.value);
+        }
+    }
+
+    // Вызывается под блокировкой
+    private void discard(String key) {
+        Entry entry = data.remove(key);
+        if (entry != null) {
+            usedBytes -= sizeOf(key, entry.value);
+            if (entry.expiresAt != NO_EXPIRY) {
+                expiringBytes -= sizeOf(key, entry.value);
+            }
+        }
+        Spilled spilledEntry = spilled.remove(key);
+        if (spilledEntry != null) {
+            spill.delete(spilledEntry.id);
+        }
+    }
+
+    // Версия хранимого значения, даже если его время жизни истекло
+    private long storedVersion(String key) {
+        Entry entry = data.get(key);
+        if (entry != null) {
+            return entry.version;
+        }
+        Spilled spilledEntry = spilled.get(key);
+        return spilledEntry == null ? NO_VERSION : spilledEntry.version;
+    }
+
+    private long liveVersion(String key) {
+        Entry entry = data.get(key);
+        if (entry != null) {
+            return isExpired(entry.expiresAt) ? NO_VERSION : entry.version;
+        }
+        Spilled spilledEntry = spilled.get(key);
+        return spilledEntry == null || isExpired(spilledEntry.expiresAt) ? NO_VERSION : spilledEntry.version;
+    }
+
+    private static long sizeOf(String key, byte[] value) {
+        return key.length() * 2L + value.length + ENTRY_OVERHEAD;
+    }
+
+    private void checkBudget(Map<String, byte[]> values) {
+        if (eviction == null) {
+            return;
+        }
+        long size = 0;
+        for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+            size += sizeOf(entry.getKey(), entry.getValue());
+        }
+        if (size > eviction.getMaxBytes()) {
+            throw new KVStorageFullException("Значения занимают " + size + " байт, бюджет памяти - "
+                    + eviction.getMaxBytes());
+        }
+    }
+
+    // Вызывается под блокировкой. Без spill вытесняются только записи со сроком жизни, поэтому запись,
+    // после которой бессрочные ключи не поместятся в бюджет, отклоняется: вытеснять было бы нечего
+    private void checkPinnedBudget(Map<String, byte[]> values, long expiresAt) {
+        if (eviction == null || spill != null || replica) {
+            return;
+        }
+        long pinnedBytes = usedBytes - expiringBytes;
+        for (Map.Entry<String, byte[]> value : values.entrySet()) {
+            Entry existing = data.get(value.getKey());
+            if (existing != null && existing.expiresAt == NO_EXPIRY) {
+                pinnedBytes -= sizeOf(value.getKey(), existing.value);
+            }
+            if (expiresAt == NO_EXPIRY) {
+                pinnedBytes += sizeOf(value.getKey(), value.getValue());
+            }
+        }
+        if (pinnedBytes > eviction.getMaxBytes()) {
+            throw new KVStorageFullException("Бессрочные ключи займут " + pinnedBytes + " байт, бюджет памяти - "
+                    + eviction.getMaxBytes() + ", без spillDirectory они не вытесняются");
+        }
+    }
+
+    // Вызывается под блокировкой. Записи из protectedKeys только что записаны или прочитаны и не вытесняются.
+    // Без spill удаляются только записи со сроком жизни: бессрочные ключи могут быть частью чужих данных
+    private void evictIfNeeded(Set<String> protectedKeys) {
+        if (eviction == null || usedBytes <= eviction.getMaxBytes() || (replica && spill == null)) {
+            return;
+        }
+        if (spill == null && evictableBytes(protectedKeys) == 0) {
+            return; // обход и сортировка ничего бы не вытеснили
+        }
+        boolean lfu = eviction.getPolicy() == KVEviction.Policy.LFU;
+        List<Candidate> candidates = new ArrayList<>(data.size());
+        for (Map.Entry<String, Entry> entry : data.entrySet()) {
+            Entry value = entry.getValue();
+            if (lfu) {
+                value.frequency >>= 1; // старые чтения весят меньше новых
+            }
+            if (!protectedKeys.contains(entry.getKey()) && (spill != null || value.expiresAt != NO_EXPIRY)) {
+                candidates.add(new Candidate(entry.getKey(), value));
+            }
+        }
+        candidates.sort(lfu
+                ? Comparator.comparingInt(Candidate::getFrequency).thenComparingLong(Candidate::getLastAccess)
+                : Comparator.comparingLong(Candidate::getLastAccess));
+        long target = eviction.getMaxBytes() - eviction.getMaxBytes() / 10;
+        for (Candidate candidate : candidates) {
+            if (usedBytes <= target) {
+                break;
+            }
+            evict(candidate.key, candidate.entry);
+        }
+    }
+
+    // Вызывается под блокировкой: байты записей со сроком жизни, кроме protectedKeys
+    private long evictableBytes(Set<String> protectedKeys) {
+        long bytes = expiringBytes;
+        for (String key : protectedKeys) {
+            Entry entry = data.get(key);
+            if (entry != null && entry.expiresAt != NO_EXPIRY) {
+                bytes -= sizeOf(key, entry.value);
+            }
+        }
+        return bytes;
+    }
+
+    // Вызывается под блокировкой
+    private void evict(String key, Entry entry) {
+        if (isExpired(entry.expiresAt) && !replica) {
+            removeLogged(key);
+            expirations++;
+            return;
+        }
+        if (spill != null) {
+            // сначала в spilled, затем из data: читатель без блокировки всегда найдет ключ
+            spilled.put(key, new Spilled(spill.write(entry.value), entry.version, entry.expiresAt));
+            data.remove(key);
+            usedBytes -= sizeOf(key, entry.value);
+            if (entry.expiresAt != NO_EXPIRY) {
+                expiringBytes -= sizeOf(key, entry.value);
+            }
+        } else {
+            removeLogged(key);
+        }
+        evictions++;
+    }
+
+    private static long expiresAt(Duration ttl) {
+        if (ttl == null) {
+            return NO_EXPIRY;
+        }
+        if (ttl.isNegative() || ttl.isZero()) {
+            throw new IllegalArgumentException("Время жизни должно быть положительным: " + ttl);
+        }
+        return System.currentTimeMillis() + ttl.toMillis();
+    }
+
+    private static boolean isExpired(long expiresAt) {
+        return expiresAt != NO_EXPIRY && expiresAt <= System.currentTimeMillis();
+    }
+
+    // Вызывается под блокировкой
+    private void scheduleExpiry(String key, long version, long expiresAt) {
+        if (expiries.size() > 2L * size() + COMPACTION_WRITE_RECORDS) {
+            // перезаписанные ключи оставляют в очереди устаревшие сроки
+            expiries.removeIf(expiry -> storedVersion(expiry.key) != expiry.version);
+        }
+        expiries.add(new Expiry(key, version, expiresAt));
+        if (reaper == null) {
+            startReaper();
+        }
+    }
+
+    // Вызывается под блокировкой
+    private void startReaper() {
+        reaper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kv-storage-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::reapInBackground, REAPER_INTERVAL_MILLIS, REAPER_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void reapInBackground() {
+        try {
+            reap();
+        } catch (KVStorageException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    private void reap() {
+        long batch;
+        long latest;
+        synchronized (this) {
+            if (replica) {
+                return; // удаление придет от primary
+            }
+            long now = System.currentTimeMillis();
+            boolean removed = false;
+            while (!expiries.isEmpty() && expiries.peek().expiresAt <= now) {
+                Expiry expiry = expiries.poll();
+                if (storedVersion(expiry.key) == expiry.version) {
+                    removeLogged(expiry.key);
+                    expirations++;
+                    removed = true;
+                }
+            }
+            if (!removed) {
+                return;
+            }
+            latest = revision;
+            batch = ++writtenBatches;
+            compactIfNeeded();
+        }
+        sync(batch);
+        changeListener.accept(latest);
+    }
+
+    // Вызывается под блокировкой
+    private void addChange(Change change) {
+        changes.addLast(change);
+        if (changes.size() > CHANGE_FEED_SIZE) {
+            feedStart = changes.removeFirst().version;
+        }
+    }
+
+    // Вызывается под блокировкой, возвращает номер пачки для сброса. Ревизия version публикуется только после
+    // записи в журнал: при ошибке записи она не занята и ключи не изменены
+    private long append(Map<String, byte[]> values, long version, long expiresAt) {
+        if (file != null) {
+            List<ByteBuffer[]> logRecords = new ArrayList<>(values.size());
+            values.forEach((key, value) -> logRecords.add(putRecord(key, version, expiresAt, value)));
+            write(logRecords);
+            records += values.size();
+        }
+        revision = version;
+        values.forEach((key, value) -> {
+            store(key, new Entry(value, version, expiresAt));
+            addChange(new Change(key, version, false));
+            if (expiresAt != NO_EXPIRY) {
+                scheduleExpiry(key, version, expiresAt);
+            }
+        });
+        evictIfNeeded(values.keySet());
+        long batch = ++writtenBatches;
+        compactIfNeeded();
+        return batch;
+    }
+
+    private void sync(long batch) {
+        if (file != null && fsyncPolicy == FsyncPolicy.ALWAYS) {
+            syncUpTo(batch);
+        }
+    }
+
+    /**
+     * Переписывает журнал текущим содержимым хранилища.
+     */
+    public synchronized void compact() {
+        if (file == null) {
+            return;
+        }
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel compacted = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<ByteBuffer[]> logRecords = new ArrayList<>();
+            // ревизия сохраняется отдельно: ключ с наибольшей версией мог быть удален
+            logRecords.add(record(OPERATION_REVISION, revision, NO_EXPIRY, "", EMPTY));
+            for (Map.Entry<String, Entry> entry : data.entrySet()) {
+                Entry value = entry.getValue();
+                if (isExpired(value.expiresAt)) {
+                    continue; // удаляется сборщиком, в новый журнал не переносится
+                }
+                logRecords.add(putRecord(entry.getKey(), value.version, value.expiresAt, value.value));
+                if (logRecords.size() == COMPACTION_WRITE_RECORDS) {
+                    writeFully(compacted, logRecords);
+                    logRecords.clear();
+                }
+            }
+            writeFully(compacted, logRecords);
+            for (Map.Entry<String, Spilled> entry : spilled.entrySet()) {
+                // вытесненные значения читаются с диска по одному, чтобы не поднимать их в память разом
+                Spilled value = entry.getValue();
+                if (isExpired(value.expiresAt)) {
+                    continue;
+                }
+                writeFully(compacted, Collections.singletonList(
+                        putRecord(entry.getKey(), value.version, value.expiresAt, spill.read(value.id))));
+            }
+            compacted.force(true);
+        } catch (IOException e) {
+            throw new KVStorageException("Не удалось сжать журнал " + file + ": " + e.getMessage());
+        }
+        synchronized (syncLock) {
+            try {
+                channel.close();
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                throw new KVStorageException("Не удалось заменить журнал " + file + ": " + e.getMessage());
+            }
+            syncedBatches = writtenBatches; // сжатый журнал уже сброшен на диск
+        }
+        records = size() + 1;
+    }
+
+    @Override
+    public void close() {
+        if (syncExecutor != null) {
+            // без прерывания: прерванный force закрыл бы канал
+            syncExecutor.shutdown();
+        }
+        synchronized (this) {
+            if (reaper != null) {
+                reaper.shutdown();
+            }
+            if (spill != null) {
+                try {
+                    spill.clear();
+                } catch (IOException e) {
+                    System.out.println("Не удалось очистить " + eviction.getSpillDirectory() + ": " + e.getMessage());
+                }
+            }
+            if (file == null) {
+                return;
+            }
+            synchronized (syncLock) {
+                try {
+                    if (fsyncPolicy != FsyncPolicy.NEVER) {
+                        channel.force(false);
+                    }
+                    channel.close();
+                } catch (IOException e) {
+                    throw new KVStorageException("Не удалось закрыть журнал " + file + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Возвращает длину корректной части журнала
+    private long replay() throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long fileLength = Files.size(file);
+        long validLength = 0;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+             DataInputStream input = new DataInputStream(in)) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                byte[] payload;
+                int expectedCrc;
+                try {
+                    int length = input.readInt();
+                    expectedCrc = input.readInt();
+                    if (length < 1 || length > fileLength - validLength - HEADER_SIZE) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    input.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+                applyRecord(ByteBuffer.wrap(payload));
+                records++;
+                validLength += HEADER_SIZE + payload.length;
+            }
+        }
+        return validLength;
+    }
+
+    private void applyRecord(ByteBuffer payload) {
+        byte operation = payload.get();
+        long version = hasVersion(operation) ? payload.getLong() : NO_VERSION;
+        long expiresAt = operation == OPERATION_PUT_EXPIRING ? payload.getLong() : NO_EXPIRY;
+        byte[] keyBytes = new byte[payload.getInt()];
+        payload.get(keyBytes);
+        String key = new String(keyBytes, StandardCharsets.UTF_8);
+        byte[] value = new byte[payload.getInt()];
+        payload.get(value);
+        if (operation == OPERATION_PUT) {
+            store(key, new Entry(value, ++revision, NO_EXPIRY));
+        } else if (operation == OPERATION_PUT_VERSION) {
+            store(key, new Entry(value, version, NO_EXPIRY));
+            revision = Math.max(revision, version);
+        } else if (operation == OPERATION_PUT_EXPIRING) {
+            if (isExpired(expiresAt)) {
+                discard(key);
+            } else {
+                store(key, new Entry(value, version, expiresAt));
+                expiries.add(new Expiry(key, version, expiresAt));
+            }
+            revision = Math.max(revision, version);
+        } else if (operation == OPERATION_REMOVE) {
+            discard(key);
+        } else if (operation == OPERATION_REMOVE_VERSION) {
+            discard(key);
+            revision = Math.max(revision, version);
+        } else if (operation == OPERATION_REVISION) {
+            revision = Math.max(revision, version);
+        }
+    }
+
+    private static ByteBuffer[] putRecord(String key, long version, long expiresAt, byte[] value) {
+        return record(expiresAt == NO_EXPIRY ? OPERATION_PUT_VERSION : OPERATION_PUT_EXPIRING, version, expiresAt,
+                key, value);
+    }
+
+    // Запись журнала двумя буферами: заголовок с ключом и само значение, которое не копируется
+    private static ByteBuffer[] record(byte operation, long version, long expiresAt, String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        boolean expiring = operation == OPERATION_PUT_EXPIRING;
+        int headerLength = HEADER_SIZE + 1 + (hasVersion(operation) ? Long.BYTES : 0)
+                + (expiring ? Long.BYTES : 0) + Integer.BYTES * 2 + keyBytes.length;
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        header.putInt(headerLength - HEADER_SIZE + value.length).putInt(0).put(operation);
+        if (hasVersion(operation)) {
+            header.putLong(version);
+        }
+        if (expiring) {
+            header.putLong(expiresAt);
+        }
+        header.putInt(keyBytes.length).put(keyBytes).putInt(value.length);
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), HEADER_SIZE, headerLength - HEADER_SIZE);
+        crc.update(value);
+        header.putInt(Integer.BYTES, (int) crc.getValue());
+        header.flip();
+        return new ByteBuffer[]{header, ByteBuffer.wrap(value)};
+    }
+
+    private static boolean hasVersion(byte operation) {
+        return operation == OPERATION_PUT_VERSION || operation == OPERATION_REVISION
+                || operation == OPERATION_REMOVE_VERSION || operation == OPERATION_PUT_EXPIRING;
+    }
+
+    // Вызывается под блокировкой
+    // Недописанная пачка отрезается: иначе при восстановлении журнал оборвался бы на ней вместе со следующими
+    private void write(List<ByteBuffer[]> logRecords) {
+        long start = -1;
+        try {
+            start = channel.position();
+            writeFully(channel, logRecords);
+        } catch (IOException e) {
+            if (start >= 0) {
+                try {
+                    channel.truncate(start);
+                    channel.position(start);
+                } catch (IOException ignored) {
+                    // журнал недоступен: восстановление отбросит недописанную запись
+                }
+            }
+            throw new KVStorageException("Не удалось записать журнал " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Пачка записей уходит одним вызовом write со списком буферов
+    private static void writeFully(FileChannel channel, List<ByteBuffer[]> logRecords) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[logRecords.size() * 2];
+        long remaining = 0;
+        for (int i = 0; i < logRecords.size(); i++) {
+            buffers[2 * i] = logRecords.get(i)[0];
+            buffers[2 * i + 1] = logRecords.get(i)[1];
+            remaining += buffers[2 * i].remaining() + buffers[2 * i + 1].remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    // Вызывается под блокировкой
+    private void compactIfNeeded() {
+        if (records > compactionRecords && records > 2L * size()) {
+            compact();
+        }
+    }
+
+    // Групповой сброс: один force подтверждает все пачки, записанные до него. Не берет блокировку this,
+    // иначе писатели ждали бы сброса: порядок блокировок всегда this, затем syncLock
+    private void syncUpTo(long batch) {
+        synchronized (syncLock) {
+            if (syncedBatches >= batch) {
+                return;
+            }
+            long target = writtenBatches;
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                throw new KVStorageException("Не удалось сбросить журнал " + file + " на диск: " + e.getMessage());
+            }
+            syncedBatches = target;
+        }
+    }
+
+    private void syncInBackground() {
+        try {
+            syncUpTo(writtenBatches);
+        } catch (KVStorageException e) {
+            System.out.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Значение ключа и его версия.
+     */
+    public static final class Entry {
+        private final byte[] value;
+        private final long version;
+        private final long expiresAt;
+        // счетчики вытеснения меняются читателями без блокировки и поэтому приблизительны
+        private volatile long lastAccess = System.nanoTime();
+        private volatile int frequency = LFU_INITIAL_FREQUENCY;
+
+        private Entry(byte[] value, long version, long expiresAt) {
+            this.value = value;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+
+        private void touch() {
+            lastAccess = System.nanoTime();
+            if (frequency < LFU_MAX_FREQUENCY) {
+                frequency++;
+            }
+        }
+
+        /**
+         * Хранимый массив без копирования, изменять его нельзя.
+         */
+        public byte[] getValue() {
+            return value;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Изменение ключа: новая версия или удаление.
+     */
+    public static final class Change {
+        private final String key;
+        private final long version;
+        private final boolean removed;
+
+        private Change(String key, long version, boolean removed) {
+            this.key = key;
+            this.version = version;
+            this.removed = removed;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public boolean isRemoved() {
+            return removed;
+        }
+    }
+
+    /**
+     * Счетчики хранилища с момента открытия.
+     */
+    public static final class Stats {
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long expirations;
+        private final long spillReads;
+        private final int keysInMemory;
+        private final int keysSpilled;
+        private final long usedBytes;
+
+        private Stats(long hits, long misses, long evictions, long expirations, long spillReads, int keysInMemory,
+                      int keysSpilled, long usedBytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.spillReads = spillReads;
+            this.keysInMemory = keysInMemory;
+            this.keysSpilled = keysSpilled;
+            this.usedBytes = usedBytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public long getExpirations() {
+            return expirations;
+        }
+
+        /**
+         * Сколько раз вытесненное значение было прочитано с диска.
+         */
+        public long getSpillReads() {
+            return spillReads;
+        }
+
+        public int getKeysInMemory() {
+            return keysInMemory;
+        }
+
+        public int getKeysSpilled() {
+            return keysSpilled;
+        }
+
+        /**
+         * Оценка памяти под ключи и значения.
+         */
+        public long getUsedBytes() {
+            return usedBytes;
+        }
+    }
+
+    private static final class Spilled {
+        private final long id;
+        private final long version;
+        private final long expiresAt;
+
+        private Spilled(long id, long version, long expiresAt) {
+            this.id = id;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Expiry {
+        private final String key;
+        private final long version;
+        private final long expiresAt;
+
+        private Expiry(String key, long version, long expiresAt) {
+            this.key = key;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+
+        private long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+
+    // Снимок счетчиков на момент выбора: читатели меняют их во время сортировки
+    private static final class Candidate {
+        private final String key;
+        private final Entry entry;
+        private final int frequency;
+        private final long lastAccess;
+
+        private Candidate(String key, Entry entry) {
+            this.key = key;
+            this.entry = entry;
+            this.frequency = entry.frequency;
+            this.lastAccess = entry.lastAccess;
+        }
+
+        private int getFrequency() {
+            return frequency;
+        }
+
+        private long getLastAccess() {
+            return lastAccess;
+        }
+    }
+
+    /**
+     * Пачка изменений для реплики: ключи с версиями и значениями после ревизии since до revision. У удаленного
+     * ключа значение null. С reset реплика заменяет пачкой все содержимое.
+     */
+    public static final class Replication {
+        private final long since;
+        private final long revision;
+        private final boolean reset;
+        private final List<Record> records;
+
+        private Replication(long since, long revision, boolean reset, List<Record> records) {
+            this.since = since;
+            this.revision = revision;
+            this.reset = reset;
+            this.records = records;
+        }
+
+        public long getSince() {
+            return since;
+        }
+
+        public long getRevision() {
+            return revision;
+        }
+
+        public boolean isReset() {
+            return reset;
+        }
+
+        public List<Record> getRecords() {
+            return records;
+        }
+
+        /**
+         * [since][revision][reset][число ключей], затем ключи: [версия][срок жизни][ключ][длина значения, -1 -
+         * удален][значение].
+         */
+        public byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeLong(since);
+                out.writeLong(revision);
+                out.writeBoolean(reset);
+                out.writeInt(records.size());
+                for (Record record : records) {
+                    out.writeLong(record.version);
+                    out.writeLong(record.expiresAt);
+                    out.writeUTF(record.key);
+                    if (record.value == null) {
+                        out.writeInt(-1);
+                    } else {
+                        out.writeInt(record.value.length);
+                        out.write(record.value);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e); // запись в память не бросает IOException
+            }
+            return bytes.toByteArray();
+        }
+
+        public static Replication decode(byte[] body) throws IOException {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body))) {
+                long since = in.readLong();
+                long revision = in.readLong();
+                boolean reset = in.readBoolean();
+                int count = in.readInt();
+                if (count < 0 || count > body.length) {
+                    throw new IOException("Неверное число ключей: " + count);
+                }
+                List<Record> records = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    long version = in.readLong();
+                    long expiresAt = in.readLong();
+                    String key = in.readUTF();
+                    int length = in.readInt();
+                    byte[] value = null;
+                    if (length >= 0) {
+                        value = in.readNBytes(length);
+                        if (value.length != length) {
+                            throw new EOFException("Значение ключа " + key + " обрезано");
+                        }
+                    }
+                    records.add(new Record(key, version, expiresAt, value));
+                }
+                return new Replication(since, revision, reset, records);
+            }
+        }
+
+        public static final class Record {
+            private final String key;
+            private final long version;
+            private final long expiresAt;
+            private final byte[] value;
+
+            private Record(String key, long version, long expiresAt, byte[] value) {
+                this.key = key;
+                this.version = version;
+                this.expiresAt = expiresAt;
+                this.value = value;
+            }
+
+            public String getKey() {
+                return key;
+            }
+
+            public long getVersion() {
+                return version;
+            }
+
+            /**
+             * Значение или null, если ключ удален.
+             */
+            public byte[] getValue() {
+                return value;
+            }
+        }
+    }
+}
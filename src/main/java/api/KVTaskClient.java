@@ -1,5 +1,10 @@
 package api;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import exception.KVTaskClientConflictException;
 import exception.KVTaskClientException;
 
 import java.io.IOException;
@@ -7,51 +12,784 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
+/**
+ * Клиент KVServer. Записи отправляются через sendAsync: пока запись ключа ждет отправки, новые записи того же
+ * ключа заменяют ее значение (побеждает последняя), одновременно выполняется не больше maxInFlight запросов.
+ * Несколько ожидающих записей отправляются одним запросом /msave.
+ * В синхронном режиме put дожидается записи, в асинхронном - сразу возвращает future записи.
+ * <p>
+ * С несколькими KVServer ключи распределяются между ними кольцом консистентного хеширования
+ * ({@link HashRing}), пачка /msave и /mload уходит каждому серверу своя. {@link #watch} и
+ * {@link #getRevision} работают только с одним сервером: ревизии у серверов независимы.
+ * <p>
+ * Клиент {@link #withReplicas} пишет в primary, а {@link #load}, {@link #loadBytes} и {@link #loadAll}
+ * отправляет репликам по очереди. Реплика отвечает, только если уже получила все записи этого клиента,
+ * иначе, как и при ее недоступности, значение читается у primary. {@link #loadVersioned} всегда читает
+ * primary: версия нужна для условной записи.
+ */
 public class KVTaskClient {
+    public static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    public static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+    public static final int MAX_BATCH_SIZE = 1000;
+    /** Версия отсутствующего ключа. */
+    public static final long NO_VERSION = 0;
 
-    private final URI uri;
-    private String token;
+    private volatile HashRing<Node> ring;
+    private volatile HashRing<Node> previousRing; // кольцо до добавления узла, пока ключи переносятся
+    private final Object rebalanceLock = new Object();
     private final HttpClient httpClient;
+    private final Duration requestTimeout;
+    private final boolean async;
+    private final int maxInFlight;
+    private final Map<String, PendingPut> queued = new LinkedHashMap<>();
+    private final Map<String, PendingPut> inFlight = new HashMap<>();
+    private int requestsInFlight;
 
     public KVTaskClient(URI uri) {
-        httpClient = HttpClient.newHttpClient();
-        this.uri = uri;
-        register();
+        this(List.of(uri), List.of(), DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT, false, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public KVTaskClient(URI uri, Duration connectTimeout, Duration requestTimeout) {
+        this(List.of(uri), List.of(), connectTimeout, requestTimeout, false, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Клиент нескольких KVServer: каждый ключ хранится на одном из них.
+     */
+    public KVTaskClient(List<URI> uris, Duration connectTimeout, Duration requestTimeout) {
+        this(uris, List.of(), connectTimeout, requestTimeout, false, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    private KVTaskClient(List<URI> uris, List<URI> replicas, Duration connectTimeout, Duration requestTimeout,
+                         boolean async, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Число одновременных запросов должно быть положительным: " + maxInFlight);
+        }
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("Не задан ни один KVServer");
+        }
+        if (!replicas.isEmpty() && uris.size() != 1) {
+            throw new IllegalArgumentException("Реплики поддерживаются только для одного primary");
+        }
+        httpClient = HttpClient.newBuilder().connectTimeout(connectTimeout).build();
+        this.requestTimeout = requestTimeout;
+        this.async = async;
+        this.maxInFlight = maxInFlight;
+        HashRing<Node> nodes = new HashRing<>();
+        for (URI uri : uris) {
+            Node node = register(uri);
+            for (URI replica : replicas) {
+                node.replicas.add(register(replica));
+            }
+            nodes = nodes.with(node, uri.toString());
+        }
+        ring = nodes;
+    }
+
+    /**
+     * Клиент primary KVServer и его реплик: запись - в primary, чтение - у реплик.
+     */
+    public static KVTaskClient withReplicas(URI primary, List<URI> replicas, Duration connectTimeout,
+                                            Duration requestTimeout) {
+        return new KVTaskClient(List.of(primary), replicas, connectTimeout, requestTimeout, false,
+                DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Клиент, у которого {@link #put} не ждет ответа сервера.
+     */
+    public static KVTaskClient async(URI uri, Duration connectTimeout, Duration requestTimeout, int maxInFlight) {
+        return async(List.of(uri), connectTimeout, requestTimeout, maxInFlight);
+    }
+
+    public static KVTaskClient async(List<URI> uris, Duration connectTimeout, Duration requestTimeout,
+                                    int maxInFlight) {
+        return new KVTaskClient(uris, List.of(), connectTimeout, requestTimeout, true, maxInFlight);
+    }
+
+    public boolean isAsync() {
+        return async;
     }
 
     private String sendRequest(HttpRequest request) {
+        return handleResponse(send(request));
+    }
+
+    private HttpResponse<String> send(HttpRequest request) {
+        return send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) {
         try {
-            HttpResponse.BodyHandler<String> bodyHandlers = HttpResponse.BodyHandlers.ofString();
-            HttpResponse<String> response = httpClient.send(request, bodyHandlers);
-            if (response.statusCode() == 200) {
-                return response.body();
-            } else if (response.statusCode() == 404) {
-                return null;
-            } else {
-                throw new KVTaskClientException("Во время выполнения запроса возникла ошибка: сервер вернул код состояния отличное: " + response.statusCode());
-            }
+            return httpClient.send(request, bodyHandler);
         } catch (IOException | InterruptedException e) {
             throw new KVTaskClientException("Во время выполнения запроса возникла ошибка: " + e.getMessage());
         }
     }
 
-    private void register() {
+    private static <T> T handleResponse(HttpResponse<T> response) {
+        if (response.statusCode() == 200) {
+            return response.body();
+        } else if (response.statusCode() == 404) {
+            return null;
+        } else {
+            throw new KVTaskClientException("Во время выполнения запроса возникла ошибка: сервер вернул код состояния отличное: " + response.statusCode());
+        }
+    }
+
+    private Node register(URI uri) {
         URI requestUrl = URI.create(uri + "/register");
-        HttpRequest request = HttpRequest.newBuilder().GET().uri(requestUrl).build();
-        token = sendRequest(request);
+        HttpRequest request = HttpRequest.newBuilder().GET().uri(requestUrl).timeout(requestTimeout).build();
+        return new Node(uri, sendRequest(request));
+    }
+
+    private static URI url(Node node, String path) {
+        return URI.create(node.uri + path + "?API_TOKEN=" + node.token);
+    }
+
+    private HttpRequest loadRequest(Node node, String key) {
+        return HttpRequest.newBuilder().GET().uri(url(node, "/load/" + key)).timeout(requestTimeout).build();
+    }
+
+    // Ответ /load владельца ключа. Пока идет перенос ключей, отсутствующий ключ ищется и у прежнего владельца
+    private HttpResponse<byte[]> loadResponse(String key, boolean fromReplica) {
+        awaitWrites(List.of(key));
+        Node owner = ring.nodeFor(key);
+        HttpResponse<byte[]> response = fromReplica ? loadFromReplica(owner, key) : null;
+        if (response == null) {
+            response = send(loadRequest(owner, key), HttpResponse.BodyHandlers.ofByteArray());
+        }
+        HashRing<Node> previous = previousRing;
+        if (response.statusCode() == 404 && previous != null) {
+            Node other = previous.nodeFor(key);
+            if (other == owner) {
+                other = ring.nodeFor(key);
+            }
+            if (other != owner) {
+                response = send(loadRequest(other, key), HttpResponse.BodyHandlers.ofByteArray());
+            }
+        }
+        return response;
+    }
+
+    // Null, если реплик нет, реплика недоступна или еще не получила записи этого клиента
+    private HttpResponse<byte[]> loadFromReplica(Node owner, String key) {
+        Node replica = owner.nextReplica();
+        if (replica == null) {
+            return null;
+        }
+        HttpRequest request = HttpRequest.newBuilder().GET()
+                .uri(URI.create(url(replica, "/load/" + key) + "&minRevision=" + owner.writtenRevision.get()))
+                .timeout(requestTimeout).build();
+        HttpResponse<byte[]> response;
+        try {
+            response = send(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (KVTaskClientException e) {
+            return null;
+        }
+        return response.statusCode() == 200 || response.statusCode() == 404 ? response : null;
+    }
+
+    private Node singleNode() {
+        List<Node> nodes = ring.getNodes();
+        if (nodes.size() != 1) {
+            throw new KVTaskClientException("/watch поддерживается только для одного KVServer, а задано "
+                    + nodes.size());
+        }
+        return nodes.get(0);
+    }
+
+    /**
+     * Записывает значение ключа. Future завершается, когда сервер подтвердил запись этого или более позднего
+     * значения ключа, или завершается с {@link KVTaskClientException}.
+     */
+    public CompletableFuture<Void> put(String key, String json) {
+        CompletableFuture<Void> future;
+        List<List<PendingPut>> ready;
+        synchronized (this) {
+            future = enqueue(key, json).future;
+            ready = takeReady();
+        }
+        ready.forEach(this::send);
+        return await(future);
+    }
+
+    /**
+     * Записывает несколько ключей. Ожидающие отправки записи уходят запросами /msave по
+     * {@link #MAX_BATCH_SIZE} ключей.
+     */
+    public CompletableFuture<Void> putAll(Map<String, String> values) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(values.size());
+        List<List<PendingPut>> ready;
+        synchronized (this) {
+            values.forEach((key, json) -> futures.add(enqueue(key, json).future));
+            ready = takeReady();
+        }
+        ready.forEach(this::send);
+        return await(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])));
+    }
+
+    /**
+     * Как {@link #putAll}, но future возвращает версии, под которыми сервер сохранил ключи. Если запись
+     * объединилась с более поздней, возвращается версия поздней записи; {@link #NO_VERSION}, если сервер
+     * версию не сообщил.
+     */
+    public CompletableFuture<Map<String, Long>> putAllVersioned(Map<String, String> values) {
+        List<PendingPut> puts = new ArrayList<>(values.size());
+        List<List<PendingPut>> ready;
+        synchronized (this) {
+            values.forEach((key, json) -> puts.add(enqueue(key, json)));
+            ready = takeReady();
+        }
+        ready.forEach(this::send);
+        CompletableFuture<?>[] futures = puts.stream().map(pending -> pending.future).toArray(CompletableFuture<?>[]::new);
+        return await(CompletableFuture.allOf(futures).thenApply(ignored -> {
+            Map<String, Long> versions = new LinkedHashMap<>();
+            puts.forEach(pending -> versions.put(pending.key, pending.version));
+            return versions;
+        }));
     }
 
-    public void put(String key, String json) {
-        URI requestUrl = URI.create(uri + "/save/" + key + "?API_TOKEN=" + token);
-        HttpRequest.BodyPublisher bodyPublisher = HttpRequest.BodyPublishers.ofString(json);
-        HttpRequest request = HttpRequest.newBuilder().POST(bodyPublisher).uri(requestUrl).build();
-        sendRequest(request);
+    // Вызывается под блокировкой
+    private PendingPut enqueue(String key, String json) {
+        PendingPut pending = queued.get(key);
+        if (pending != null) {
+            pending.json = json;
+        } else {
+            pending = new PendingPut(key, json);
+            queued.put(key, pending);
+        }
+        return pending;
+    }
+
+    private <T> CompletableFuture<T> await(CompletableFuture<T> future) {
+        if (!async) {
+            join(future);
+        }
+        return future;
     }
 
     public String load(String key) {
-        URI requestUrl = URI.create(uri + "/load/" + key + "?API_TOKEN=" + token);
-        HttpRequest request = HttpRequest.newBuilder().GET().uri(requestUrl).build();
-        return sendRequest(request);
+        byte[] value = handleResponse(loadResponse(key, true));
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Загружает значение как есть, без декодирования в строку. Null, если ключа нет.
+     */
+    public byte[] loadBytes(String key) {
+        return handleResponse(loadResponse(key, true));
+    }
+
+    /**
+     * Записывает значение как есть отдельным запросом /save и возвращает его версию. В отличие от
+     * {@link #put} запись не объединяется с другими: /msave принимает только строки.
+     */
+    public long putBytes(String key, byte[] value) {
+        return putBytes(key, value, null);
+    }
+
+    /**
+     * То же с временем жизни ключа на сервере, с точностью до секунды в большую сторону. Null - бессрочно.
+     */
+    public long putBytes(String key, byte[] value, Duration ttl) {
+        awaitWrites(List.of(key));
+        String ttlParam = "";
+        if (ttl != null) {
+            long millis = ttl.toMillis();
+            ttlParam = "&ttl=" + Math.max(1, millis / 1000 + (millis % 1000 == 0 ? 0 : 1));
+        }
+        Node node = ring.nodeFor(key);
+        URI requestUrl = URI.create(url(node, "/save/" + key) + ttlParam);
+        HttpRequest request = HttpRequest.newBuilder().POST(HttpRequest.BodyPublishers.ofByteArray(value))
+                .uri(requestUrl).timeout(requestTimeout).build();
+        HttpResponse<String> response = send(request);
+        handleResponse(response);
+        return node.wrote(readVersion(response));
+    }
+
+    /**
+     * Загружает значение вместе с версией. Для отсутствующего ключа значение null, версия {@link #NO_VERSION}.
+     */
+    public Versioned loadVersioned(String key) {
+        HttpResponse<byte[]> response = loadResponse(key, false);
+        byte[] value = handleResponse(response);
+        return value == null
+                ? new Versioned(null, NO_VERSION)
+                : new Versioned(new String(value, StandardCharsets.UTF_8), readVersion(response));
+    }
+
+    /**
+     * Записывает значение, только если версия ключа на сервере равна expectedVersion ({@link #NO_VERSION} -
+     * ключа нет). Запись выполняется сразу, минуя очередь, и возвращает новую версию.
+     *
+     * @throws KVTaskClientConflictException версия ключа изменилась
+     */
+    public long putIfVersion(String key, String json, long expectedVersion) {
+        awaitWrites(List.of(key));
+        Node node = ring.nodeFor(key);
+        URI requestUrl = url(node, "/save/" + key);
+        HttpRequest.Builder builder = HttpRequest.newBuilder().POST(HttpRequest.BodyPublishers.ofString(json))
+                .uri(requestUrl).timeout(requestTimeout);
+        if (expectedVersion == NO_VERSION) {
+            builder.header("If-None-Match", "*");
+        } else {
+            builder.header("If-Match", "\"" + expectedVersion + "\"");
+        }
+        HttpResponse<String> response = send(builder.build());
+        if (response.statusCode() == 409) {
+            throw new KVTaskClientConflictException("Версия ключа " + key + " изменилась: ожидалась "
+                    + expectedVersion + ", на сервере " + readVersion(response));
+        }
+        handleResponse(response);
+        return node.wrote(readVersion(response));
+    }
+
+    /**
+     * Удаляет ключ.
+     */
+    public void remove(String key) {
+        awaitWrites(List.of(key));
+        remove(ring.nodeFor(key), key);
+    }
+
+    private void remove(Node node, String key) {
+        HttpRequest request = HttpRequest.newBuilder().DELETE().uri(url(node, "/delete/" + key))
+                .timeout(requestTimeout).build();
+        HttpResponse<String> response = send(request);
+        handleResponse(response);
+        response.headers().firstValue("ETag").ifPresent(etag -> node.wrote(readVersion(response)));
+    }
+
+    private static long readVersion(HttpResponse<?> response) {
+        String etag = response.headers().firstValue("ETag").orElse(null);
+        if (etag == null || etag.length() < 2) {
+            throw new KVTaskClientException("Сервер не вернул версию ключа");
+        }
+        return Long.parseLong(etag.substring(1, etag.length() - 1));
+    }
+
+    /**
+     * Загружает несколько ключей: каждому серверу уходит один запрос /mload с его ключами, запросы выполняются
+     * параллельно. В результате только найденные ключи.
+     */
+    public Map<String, String> loadAll(Collection<String> keys) {
+        Map<String, String> values = new HashMap<>();
+        loadAllBytes(keys).forEach((key, value) -> values.put(key, new String(value, StandardCharsets.UTF_8)));
+        return values;
+    }
+
+    /**
+     * Как {@link #loadAll}, но значения возвращаются как хранятся, без декодирования в строку.
+     */
+    public Map<String, byte[]> loadAllBytes(Collection<String> keys) {
+        Map<String, byte[]> values = new HashMap<>();
+        if (keys.isEmpty()) {
+            return values;
+        }
+        awaitWrites(keys);
+        HashRing<Node> current = ring;
+        loadAll(keys, current::nodeFor, values);
+        HashRing<Node> previous = previousRing;
+        if (previous != null && values.size() < keys.size()) {
+            List<String> missing = new ArrayList<>();
+            for (String key : keys) {
+                if (!values.containsKey(key) && previous.nodeFor(key) != current.nodeFor(key)) {
+                    missing.add(key);
+                }
+            }
+            loadAll(missing, previous::nodeFor, values);
+        }
+        return values;
+    }
+
+    private void loadAll(Collection<String> keys, Function<String, Node> owners, Map<String, byte[]> values) {
+        Map<Node, JsonArray> groups = new LinkedHashMap<>();
+        for (String key : keys) {
+            groups.computeIfAbsent(owners.apply(key), node -> new JsonArray()).add(key);
+        }
+        List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>(groups.size());
+        groups.forEach((node, body) -> {
+            Node replica = node.nextReplica();
+            if (replica == null) {
+                responses.add(sendLoadAll(url(node, "/mload"), body));
+                return;
+            }
+            // отстающая или недоступная реплика - читаем у primary
+            URI replicaUrl = URI.create(url(replica, "/mload") + "&minRevision=" + node.writtenRevision.get());
+            responses.add(sendLoadAll(replicaUrl, body).handle((response, error) ->
+                    error == null && response.statusCode() == 200
+                            ? CompletableFuture.completedFuture(response)
+                            : sendLoadAll(url(node, "/mload"), body)).thenCompose(response -> response));
+        });
+        for (CompletableFuture<HttpResponse<String>> future : responses) {
+            String response;
+            try {
+                response = handleResponse(future.join());
+            } catch (CompletionException e) {
+                throw new KVTaskClientException("Во время выполнения запроса возникла ошибка: "
+                        + e.getCause().getMessage());
+            }
+            if (response != null) {
+                Base64.Decoder decoder = Base64.getDecoder();
+                JsonParser.parseString(response).getAsJsonObject().entrySet().forEach(entry ->
+                        values.put(entry.getKey(), decoder.decode(entry.getValue().getAsString())));
+            }
+        }
+    }
+
+    private CompletableFuture<HttpResponse<String>> sendLoadAll(URI requestUrl, JsonArray keys) {
+        HttpRequest request = HttpRequest.newBuilder().POST(HttpRequest.BodyPublishers.ofString(keys.toString()))
+                .uri(requestUrl).timeout(requestTimeout).build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Добавляет KVServer в кольцо и переносит на него принадлежащие ему теперь ключи: значение копируется,
+     * если новый владелец еще не получил более свежую запись, и удаляется у прежнего. Во время переноса
+     * записи уже уходят новому владельцу, а отсутствующий у него ключ читается у прежнего. Другие клиенты
+     * тех же серверов должны добавить узел так же, иначе продолжат писать прежним владельцам.
+     */
+    public void addNode(URI uri) {
+        synchronized (rebalanceLock) {
+            HashRing<Node> oldRing = ring;
+            for (Node node : oldRing.getNodes()) {
+                if (node.uri.equals(uri)) {
+                    throw new IllegalArgumentException("KVServer уже в кольце: " + uri);
+                }
+            }
+            Node target = register(uri);
+            previousRing = oldRing;
+            ring = oldRing.with(target, uri.toString());
+            try {
+                // записи, отправленные до переключения, могли уйти прежним владельцам
+                flush().exceptionally(e -> null).join();
+                for (Node source : oldRing.getNodes()) {
+                    for (String key : listKeys(source)) {
+                        if (ring.nodeFor(key) == target) {
+                            move(key, source, target);
+                        }
+                    }
+                }
+            } finally {
+                previousRing = null;
+            }
+        }
+    }
+
+    private List<String> listKeys(Node node) {
+        HttpRequest request = HttpRequest.newBuilder().GET().uri(url(node, "/keys")).timeout(requestTimeout).build();
+        List<String> keys = new ArrayList<>();
+        String response = sendRequest(request);
+        if (response != null) {
+            JsonParser.parseString(response).getAsJsonArray().forEach(key -> keys.add(key.getAsString()));
+        }
+        return keys;
+    }
+
+    private void move(String key, Node source, Node target) {
+        byte[] value = handleResponse(send(loadRequest(source, key), HttpResponse.BodyHandlers.ofByteArray()));
+        if (value == null) {
+            return;
+        }
+        HttpRequest request = HttpRequest.newBuilder().POST(HttpRequest.BodyPublishers.ofByteArray(value))
+                .uri(url(target, "/save/" + key)).header("If-None-Match", "*").timeout(requestTimeout).build();
+        HttpResponse<String> response = send(request);
+        if (response.statusCode() != 409) { // 409 - новый владелец уже получил запись
+            handleResponse(response);
+        }
+        remove(source, key);
+    }
+
+    /**
+     * Текущая ревизия сервера - начальное значение since для {@link #watch}.
+     */
+    public long getRevision() {
+        URI requestUrl = url(singleNode(), "/watch");
+        HttpRequest request = HttpRequest.newBuilder().GET().uri(requestUrl).timeout(requestTimeout).build();
+        return parseChanges(sendRequest(request)).getRevision();
+    }
+
+    /**
+     * Ждет изменений после ревизии since не дольше timeout (long-poll /watch). Если изменений не было,
+     * список изменений пуст.
+     */
+    public Changes watch(long since, Duration timeout) {
+        URI requestUrl = URI.create(url(singleNode(), "/watch") + "&since=" + since + "&timeout=" + timeout.toMillis());
+        HttpRequest request = HttpRequest.newBuilder().GET().uri(requestUrl).timeout(requestTimeout.plus(timeout))
+                .build();
+        return parseChanges(sendRequest(request));
+    }
+
+    private static Changes parseChanges(String response) {
+        if (response == null) {
+            throw new KVTaskClientException("Сервер не поддерживает /watch");
+        }
+        JsonObject json = JsonParser.parseString(response).getAsJsonObject();
+        List<Change> changes = new ArrayList<>();
+        for (JsonElement element : json.getAsJsonArray("changes")) {
+            JsonObject change = element.getAsJsonObject();
+            changes.add(new Change(change.get("key").getAsString(), change.get("version").getAsLong(),
+                    change.get("removed").getAsBoolean()));
+        }
+        return new Changes(json.get("revision").getAsLong(), json.get("reset").getAsBoolean(), changes);
+    }
+
+    // Чтение после своей записи: ждем отправки ключей, записанных этим клиентом
+    private void awaitWrites(Collection<String> keys) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        synchronized (this) {
+            for (String key : keys) {
+                PendingPut pending = queued.containsKey(key) ? queued.get(key) : inFlight.get(key);
+                if (pending != null) {
+                    futures.add(pending.future);
+                }
+            }
+        }
+        futures.forEach(future -> future.exceptionally(e -> null).join());
+    }
+
+    /**
+     * Future, завершающийся после всех записей, начатых до вызова.
+     */
+    public CompletableFuture<Void> flush() {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        synchronized (this) {
+            queued.values().forEach(pending -> futures.add(pending.future));
+            inFlight.values().forEach(pending -> futures.add(pending.future));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Ждет future записи и бросает {@link KVTaskClientException}, если запись не удалась.
+     */
+    public static void join(CompletableFuture<?> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof KVTaskClientException) {
+                throw (KVTaskClientException) e.getCause();
+            }
+            throw new KVTaskClientException("Во время выполнения запроса возникла ошибка: " + e.getCause());
+        }
+    }
+
+    // Вызывается под блокировкой: забирает записи ключей, по которым сейчас нет запроса
+    private List<List<PendingPut>> takeReady() {
+        List<List<PendingPut>> batches = new ArrayList<>();
+        HashRing<Node> current = ring;
+        while (requestsInFlight < maxInFlight) {
+            List<PendingPut> batch = new ArrayList<>();
+            Node node = null; // в пачке только ключи одного сервера
+            Iterator<PendingPut> iterator = queued.values().iterator();
+            while (batch.size() < MAX_BATCH_SIZE && iterator.hasNext()) {
+                PendingPut pending = iterator.next();
+                if (inFlight.containsKey(pending.key)) {
+                    continue;
+                }
+                Node owner = current.nodeFor(pending.key);
+                if (node == null) {
+                    node = owner;
+                } else if (owner != node) {
+                    continue;
+                }
+                iterator.remove();
+                inFlight.put(pending.key, pending);
+                pending.node = owner;
+                batch.add(pending);
+            }
+            if (batch.isEmpty()) {
+                break;
+            }
+            requestsInFlight++;
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    private void send(List<PendingPut> batch) {
+        URI requestUrl;
+        String body;
+        synchronized (this) {
+            Node node = batch.get(0).node;
+            if (batch.size() == 1) {
+                requestUrl = url(node, "/save/" + batch.get(0).key);
+                body = batch.get(0).json;
+            } else {
+                requestUrl = url(node, "/msave");
+                JsonObject values = new JsonObject();
+                batch.forEach(pending -> values.addProperty(pending.key, pending.json));
+                body = values.toString();
+            }
+        }
+        HttpRequest.BodyPublisher bodyPublisher = HttpRequest.BodyPublishers.ofString(body);
+        HttpRequest request = HttpRequest.newBuilder().POST(bodyPublisher).uri(requestUrl).timeout(requestTimeout).build();
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+            KVTaskClientException failure = null;
+            long version = NO_VERSION;
+            try {
+                if (error != null) {
+                    failure = new KVTaskClientException("Во время выполнения запроса возникла ошибка: " + error.getMessage());
+                } else {
+                    handleResponse(response);
+                    // до завершения future: чтение после записи должно увидеть ее ревизию
+                    if (response.statusCode() == 200 && response.headers().firstValue("ETag").isPresent()) {
+                        version = batch.get(0).node.wrote(readVersion(response));
+                    }
+                }
+            } catch (KVTaskClientException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new KVTaskClientException("Некорректный ответ сервера: " + e.getMessage());
+            }
+            // место запроса освобождается и futures завершаются при любом ответе, иначе очередь остановится
+            List<List<PendingPut>> ready;
+            synchronized (this) {
+                requestsInFlight--;
+                batch.forEach(pending -> inFlight.remove(pending.key));
+                ready = takeReady();
+            }
+            try {
+                ready.forEach(this::send);
+            } finally {
+                for (PendingPut pending : batch) {
+                    if (failure == null) {
+                        pending.version = version;
+                        pending.future.complete(null);
+                    } else {
+                        pending.future.completeExceptionally(failure);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Значение ключа и его версия на сервере.
+     */
+    public static final class Versioned {
+        private final String value;
+        private final long version;
+
+        private Versioned(String value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Ответ {@link #watch}: ревизия для следующего вызова и изменения до нее. При reset изменения после since
+     * не сохранились на сервере и данные нужно перечитать целиком.
+     */
+    public static final class Changes {
+        private final long revision;
+        private final boolean reset;
+        private final List<Change> changes;
+
+        private Changes(long revision, boolean reset, List<Change> changes) {
+            this.revision = revision;
+            this.reset = reset;
+            this.changes = changes;
+        }
+
+        public long getRevision() {
+            return revision;
+        }
+
+        public boolean isReset() {
+            return reset;
+        }
+
+        public List<Change> getChanges() {
+            return changes;
+        }
+    }
+
+    public static final class Change {
+        private final String key;
+        private final long version;
+        private final boolean removed;
+
+        private Change(String key, long version, boolean removed) {
+            this.key = key;
+            this.version = version;
+            this.removed = removed;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public boolean isRemoved() {
+            return removed;
+        }
+    }
+
+    private static final class Node {
+        private final URI uri;
+        private final String token;
+        private final List<Node> replicas = new ArrayList<>();
+        private final AtomicInteger nextReplica = new AtomicInteger();
+        private final AtomicLong writtenRevision = new AtomicLong(); // ревизия последней записи этого клиента
+
+        private Node(URI uri, String token) {
+            this.uri = uri;
+            this.token = token;
+        }
+
+        private Node nextReplica() {
+            if (replicas.isEmpty()) {
+                return null;
+            }
+            return replicas.get(Math.floorMod(nextReplica.getAndIncrement(), replicas.size()));
+        }
+
+        private long wrote(long revision) {
+            writtenRevision.accumulateAndGet(revision, Math::max);
+            return revision;
+        }
+    }
+
+    private static class PendingPut {
+        private final String key;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private String json;
+        private long version = NO_VERSION; // версия на сервере, до завершения future
+        private Node node; // сервер, которому отправлена запись
+
+        private PendingPut(String key, String json) {
+            this.key = key;
+            this.json = json;
+        }
     }
 }
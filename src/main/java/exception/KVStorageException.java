@@ -0,0 +1,7 @@
+package exception;
+
+public class KVStorageException extends RuntimeException {
+    public KVStorageException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package exception;
+
+public class KVStorageFullException extends KVStorageException {
+    public KVStorageFullException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package exception;
+
+public class KVTaskClientConflictException extends KVTaskClientException {
+    public KVTaskClientConflictException(String message) {
+        super(message);
+    }
+}
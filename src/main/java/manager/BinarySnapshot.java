@@ -0,0 +1,245 @@
+package manager;
+
+import exception.ManagerSaveException;
+import exception.TaskDataUndefinedException;
+import task.*;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Двоичный снимок менеджера.
+ * <pre>
+ * заголовок: "KBSN", версия (1 байт)
+ * задачи:    varint количество, затем записи
+ * запись:    тип (1 байт), varint id, статус (1 байт), имя, описание, [varint id эпика - только у подзадач],
+ *            флаги (1 байт), [zigzag varint минута эпохи UTC], [varint секунда, varint наносекунда],
+ *            [zigzag varint продолжительность]
+ * строка:    varint (длина UTF-8 + 1), 0 - null
+ * история:   varint количество, затем varint id
+ * </pre>
+ * Тип и статус записываются кодами {@link #TYPES} и {@link #STATUSES}: при их изменении нужна новая версия.
+ */
+final class BinarySnapshot {
+    static final int VERSION = 1;
+    private static final byte[] MAGIC = {'K', 'B', 'S', 'N'};
+    private static final TaskType[] TYPES = {TaskType.TASK, TaskType.EPIC, TaskType.SUBTASK};
+    private static final Status[] STATUSES = {Status.NEW, Status.DONE, Status.IN_PROGRESS};
+    private static final int HAS_START_TIME = 1;
+    private static final int HAS_DURATION = 1 << 1;
+    private static final int HAS_SECONDS = 1 << 2;
+
+    private BinarySnapshot() {
+    }
+
+    static boolean isBinary(Path file) throws IOException {
+        byte[] header = new byte[MAGIC.length];
+        try (InputStream in = Files.newInputStream(file)) {
+            return in.readNBytes(header, 0, header.length) == header.length && Arrays.equals(header, MAGIC);
+        }
+    }
+
+    static void write(Path file, Collection<Task> tasks, Collection<Subtask> subtasks, Collection<Epic> epics,
+                      List<Long> history) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            out.write(MAGIC);
+            out.write(VERSION);
+            writeVarLong(out, (long) tasks.size() + subtasks.size() + epics.size());
+            for (Task task : tasks) {
+                writeTask(out, task);
+            }
+            for (Subtask subtask : subtasks) {
+                writeTask(out, subtask);
+            }
+            for (Epic epic : epics) {
+                writeTask(out, epic);
+            }
+            writeVarLong(out, history.size());
+            for (long id : history) {
+                writeVarLong(out, id);
+            }
+        }
+    }
+
+    /**
+     * Читает снимок через отображение файла в память. Задачи передаются в taskConsumer, затем id истории
+     * в historyConsumer.
+     */
+    static void read(Path file, Consumer<Task> taskConsumer, LongConsumer historyConsumer) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new ManagerSaveException("Снимок слишком большой: " + channel.size() + " байт");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new ManagerSaveException("Файл не является двоичным снимком: " + file);
+            }
+            int version = buffer.get();
+            if (version != VERSION) {
+                throw new ManagerSaveException("Неподдерживаемая версия снимка: " + version);
+            }
+            byte[] chars = new byte[256];
+            long count = readVarLong(buffer);
+            for (long i = 0; i < count; i++) {
+                taskConsumer.accept(readTask(buffer, chars));
+            }
+            long historySize = readVarLong(buffer);
+            for (long i = 0; i < historySize; i++) {
+                historyConsumer.accept(readVarLong(buffer));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalStateException e) {
+            throw new ManagerSaveException("Снимок поврежден: " + file);
+        }
+    }
+
+    private static void writeTask(OutputStream out, Task task) throws IOException {
+        LocalDateTime startTime;
+        int duration;
+        try {
+            startTime = task.getStartTime();
+            duration = task.getDuration();
+        } catch (TaskDataUndefinedException e) {
+            startTime = Task.DEFAULT_START_TIME;
+            duration = Task.DEFAULT_DURATION;
+        }
+        out.write(code(TYPES, task.getType()));
+        writeVarLong(out, task.getId());
+        out.write(code(STATUSES, task.getStatus()));
+        writeString(out, task.getName());
+        writeString(out, task.getDescription());
+        if (task.getType() == TaskType.SUBTASK) {
+            writeVarLong(out, ((Subtask) task).getEpicId());
+        }
+        boolean hasStartTime = !startTime.equals(Task.DEFAULT_START_TIME);
+        boolean hasSeconds = hasStartTime && (startTime.getSecond() != 0 || startTime.getNano() != 0);
+        boolean hasDuration = duration != Task.DEFAULT_DURATION;
+        out.write((hasStartTime ? HAS_START_TIME : 0) | (hasSeconds ? HAS_SECONDS : 0)
+                | (hasDuration ? HAS_DURATION : 0));
+        if (hasStartTime) {
+            writeVarLong(out, zigzag(Math.floorDiv(startTime.toEpochSecond(ZoneOffset.UTC), 60)));
+        }
+        if (hasSeconds) {
+            writeVarLong(out, startTime.getSecond());
+            writeVarLong(out, startTime.getNano());
+        }
+        if (hasDuration) {
+            writeVarLong(out, zigzag(duration));
+        }
+    }
+
+    private static Task readTask(ByteBuffer buffer, byte[] chars) {
+        TaskType type = TYPES[buffer.get()];
+        long id = readVarLong(buffer);
+        Status status = STATUSES[buffer.get()];
+        String name = readString(buffer, chars);
+        String description = readString(buffer, chars);
+        Task task;
+        switch (type) {
+            case SUBTASK:
+                task = new Subtask(readVarLong(buffer));
+                break;
+            case EPIC:
+                task = new Epic();
+                break;
+            default:
+                task = new Task();
+        }
+        task.setId(id);
+        task.setStatus(status);
+        task.setName(name);
+        task.setDescription(description);
+        int flags = buffer.get();
+        if ((flags & HAS_START_TIME) != 0) {
+            long epochSecond = unzigzag(readVarLong(buffer)) * 60;
+            int nano = 0;
+            if ((flags & HAS_SECONDS) != 0) {
+                epochSecond += readVarLong(buffer);
+                nano = (int) readVarLong(buffer);
+            }
+            task.setStartTime(LocalDateTime.ofEpochSecond(epochSecond, nano, ZoneOffset.UTC));
+        }
+        if ((flags & HAS_DURATION) != 0) {
+            task.setDuration((int) unzigzag(readVarLong(buffer)));
+        }
+        return task;
+    }
+
+    private static <T> int code(T[] values, T value) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Нет кода для значения: " + value);
+    }
+
+    private static void writeString(OutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.write(0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer, byte[] chars) {
+        int length = (int) readVarLong(buffer) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = length <= chars.length ? chars : new byte[length];
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Слишком длинное varint значение");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,199 @@
+package manager;
+
+import exception.ManagerTaskException;
+import task.Epic;
+import task.Subtask;
+import task.Task;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Потокобезопасная обертка над менеджером задач. Чтения списков выполняются параллельно под read-lock,
+ * изменения - под write-lock. Получение задачи по id меняет историю просмотров (и может сохранять ее),
+ * поэтому тоже считается изменением. Проверка пересечения интервалов и вставка задачи выполняются
+ * внутри одного write-lock, то есть атомарно.
+ * <p>
+ * Для {@link HttpTaskManager} используется его собственный лок ({@link HttpTaskManager#getLock()}): под ним же
+ * менеджер применяет изменения с сервера в фоновых потоках.
+ */
+public class ConcurrentTaskManager implements TaskManager {
+    private final TaskManager delegate;
+    private final Lock readLock;
+    private final Lock writeLock;
+
+    public ConcurrentTaskManager(TaskManager delegate) {
+        this.delegate = delegate;
+        ReadWriteLock lock = delegate instanceof HttpTaskManager
+                ? ((HttpTaskManager) delegate).getLock() : new ReentrantReadWriteLock();
+        readLock = lock.readLock();
+        writeLock = lock.writeLock();
+    }
+
+    private <R> R read(Supplier<R> action) {
+        readLock.lock();
+        try {
+            return action.get();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private <R> R write(Supplier<R> action) {
+        writeLock.lock();
+        try {
+            return action.get();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void write(Runnable action) {
+        writeLock.lock();
+        try {
+            action.run();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public List<Task> getPrioritizedTasks() {
+        return read(delegate::getPrioritizedTasks);
+    }
+
+    @Override
+    public List<Task> getPrioritizedTasks(LocalDateTime from, LocalDateTime to) {
+        return read(() -> delegate.getPrioritizedTasks(from, to));
+    }
+
+    @Override
+    public TaskPage getPrioritizedTasksPage(LocalDateTime from, LocalDateTime to, String cursor, int limit)
+            throws ManagerTaskException {
+        return read(() -> delegate.getPrioritizedTasksPage(from, to, cursor, limit));
+    }
+
+    @Override
+    public List<Long> getHistory() {
+        return read(delegate::getHistory);
+    }
+
+    // Task
+    @Override
+    public Collection<Task> getTasks() {
+        return read(delegate::getTasks);
+    }
+
+    @Override
+    public void clearTasks() {
+        write(delegate::clearTasks);
+    }
+
+    @Override
+    public Task getTask(Long id) {
+        return write(() -> delegate.getTask(id));
+    }
+
+    @Override
+    public Long createTask(Task task) throws ManagerTaskException {
+        return write(() -> delegate.createTask(task));
+    }
+
+    @Override
+    public void updateTask(Task task) throws ManagerTaskException {
+        write(() -> delegate.updateTask(task));
+    }
+
+    @Override
+    public void removeTask(Long id) {
+        write(() -> delegate.removeTask(id));
+    }
+
+    // Subtask
+    @Override
+    public List<Subtask> getEpicSubtasks() {
+        return read(delegate::getEpicSubtasks);
+    }
+
+    @Override
+    public void clearSubtasks() {
+        write(delegate::clearSubtasks);
+    }
+
+    @Override
+    public Subtask getSubtask(Long id) {
+        return write(() -> delegate.getSubtask(id));
+    }
+
+    @Override
+    public Long createSubtask(Subtask subtask) throws ManagerTaskException {
+        return write(() -> delegate.createSubtask(subtask));
+    }
+
+    @Override
+    public void updateSubtask(Subtask subtask) throws ManagerTaskException {
+        write(() -> delegate.updateSubtask(subtask));
+    }
+
+    @Override
+    public void removeSubtask(Long id) {
+        write(() -> delegate.removeSubtask(id));
+    }
+
+    // Epic
+    @Override
+    public List<Epic> getEpics() {
+        return read(delegate::getEpics);
+    }
+
+    @Override
+    public void clearEpics() {
+        write(delegate::clearEpics);
+    }
+
+    @Override
+    public Epic getEpic(Long id) {
+        return write(() -> delegate.getEpic(id));
+    }
+
+    @Override
+    public Long createEpic(Epic epic) throws ManagerTaskException {
+        return write(() -> delegate.createEpic(epic));
+    }
+
+    @Override
+    public void updateEpic(Epic epic) throws ManagerTaskException {
+        write(() -> delegate.updateEpic(epic));
+    }
+
+    @Override
+    public void removeEpic(Long id) {
+        write(() -> delegate.removeEpic(id));
+    }
+
+    @Override
+    public List<Subtask> getEpicSubtasks(Long epicId) {
+        return read(() -> delegate.getEpicSubtasks(epicId));
+    }
+
+    // Batch
+    @Override
+    public List<Long> createAll(Collection<? extends Task> newTasks) throws ManagerTaskException {
+        return write(() -> delegate.createAll(newTasks));
+    }
+
+    @Override
+    public void updateAll(Collection<? extends Task> changedTasks) throws ManagerTaskException {
+        write(() -> delegate.updateAll(changedTasks));
+    }
+
+    @Override
+    public void removeAll(Collection<Long> ids) {
+        write(() -> delegate.removeAll(ids));
+    }
+}
@@ -10,47 +10,197 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
-public class FileBackedTasksManager extends InMemoryTaskManager {
+public class FileBackedTasksManager extends InMemoryTaskManager implements AutoCloseable {
 
     private static final String TABLE_HEADER = "id,type,name,status,description,epic,time,duration" + System.lineSeparator();
+    private static final String RECORD_PUT = "PUT";
+    private static final String RECORD_REMOVE = "DEL";
+    private static final String RECORD_CLEAR = "CLR";
+    private static final int LOAD_CHUNK_SIZE = 4096;
     private final Path file;
+    private final TaskJournal journal;
+    private final TaskJournal historyLog;
+    private final SnapshotFormat format;
+    private final WriteBehind.Flusher flusher;
+    private final List<String> pendingRecords = new ArrayList<>();
+    private final List<Long> pendingAccesses = new ArrayList<>();
+    private boolean entitiesChanged;
 
     public FileBackedTasksManager(Path file) {
+        this(file, null, null);
+    }
+
+    public FileBackedTasksManager(Path file, TaskJournal journal) {
+        this(file, journal, null);
+    }
+
+    /**
+     * С журналом каждое изменение дописывается в journal, а полный снимок в file сохраняется только при
+     * сжатии журнала. Без журнала (journal = null) файл перезаписывается целиком после каждого изменения.
+     * С writeBehind изменения сохраняются не сразу, а пачкой в фоновом потоке - см. {@link WriteBehind}.
+     * Формат снимка выбирается по расширению file - см. {@link SnapshotFormat}.
+     */
+    public FileBackedTasksManager(Path file, TaskJournal journal, WriteBehind writeBehind) {
         this.file = file;
+        this.journal = journal;
+        this.format = SnapshotFormat.of(file);
+        this.historyLog = file == null ? null : new TaskJournal(file.resolveSibling(file.getFileName() + ".history"));
+        this.flusher = writeBehind == null ? null : writeBehind.newFlusher(this, this::writePending);
     }
 
     public static FileBackedTasksManager loadFromFile(Path file) throws IOException {
+        return loadFromFile(file, null);
+    }
+
+    public static FileBackedTasksManager loadFromFile(Path file, TaskJournal journal) throws IOException {
+        return loadFromFile(file, journal, null);
+    }
+
+    public static FileBackedTasksManager loadFromFile(Path file, TaskJournal journal, WriteBehind writeBehind)
+            throws IOException {
+        FileBackedTasksManager manager = new FileBackedTasksManager(file, journal, writeBehind);
+        if (journal == null || Files.exists(file)) {
+            manager.loadSnapshot();
+        }
+        if (journal != null) {
+            manager.replay(journal.read());
+        }
+        manager.replayHistory(manager.historyLog.read());
+        return manager;
+    }
+
+    /**
+     * Переписывает снимок source в target в формате, соответствующем расширению target, вместе с историей
+     * из журнала истории source.
+     */
+    public static void convertSnapshot(Path source, Path target) throws IOException {
+        FileBackedTasksManager manager = loadFromFile(source);
+        manager.writeSnapshot(target, SnapshotFormat.of(target));
+    }
+
+    private void loadSnapshot() throws IOException {
+        List<Task> loaded = new ArrayList<>();
+        List<Long> history = new ArrayList<>();
+        if (BinarySnapshot.isBinary(file)) {
+            BinarySnapshot.read(file, loaded::add, history::add);
+        } else {
+            loadCsvSnapshot(loaded, history);
+        }
+        restoreAll(loaded);
+        history.forEach(id -> historyManager.add(getTaskUniversal(id)));
+    }
+
+    /**
+     * Читает файл блоками по LOAD_CHUNK_SIZE строк и разбирает блоки параллельно, пока читается следующий.
+     * Порядок задач в loaded совпадает с порядком строк файла.
+     */
+    private void loadCsvSnapshot(List<Task> loaded, List<Long> history) throws IOException {
+        List<CompletableFuture<List<Task>>> chunks = new ArrayList<>();
+        String historyLine = null;
         try (BufferedReader br = Files.newBufferedReader(file)) {
-            FileBackedTasksManager manager = new FileBackedTasksManager(file);
-            boolean nextLineIsHistory = false;
-            if (br.ready()) { // skip 1 line
-                br.readLine();
-            }
-            while (br.ready()) {
-                String line = br.readLine();
+            br.readLine(); // заголовок
+            List<String> chunk = new ArrayList<>(LOAD_CHUNK_SIZE);
+            String line;
+            while ((line = br.readLine()) != null) {
                 if (line.isEmpty()) {
-                    nextLineIsHistory = true;
-                    continue;
-                }
-                if (nextLineIsHistory) {
-                    List<Long> history = historyFromString(line);
-                    history.forEach(id -> manager.historyManager.add(manager.getTaskUniversal(id)));
+                    historyLine = br.readLine();
                     break;
-                } else {
-                    manager.createTaskFromString(line);
                 }
+                chunk.add(line);
+                if (chunk.size() == LOAD_CHUNK_SIZE) {
+                    chunks.add(parseChunk(chunk));
+                    chunk = new ArrayList<>(LOAD_CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty()) {
+                chunks.add(parseChunk(chunk));
+            }
+        }
+        for (CompletableFuture<List<Task>> chunk : chunks) {
+            try {
+                loaded.addAll(chunk.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        if (historyLine != null && !historyLine.isEmpty()) {
+            history.addAll(historyFromString(historyLine));
+        }
+    }
+
+    private static CompletableFuture<List<Task>> parseChunk(List<String> lines) {
+        return CompletableFuture.supplyAsync(() -> {
+            List<Task> parsed = new ArrayList<>(lines.size());
+            for (String line : lines) {
+                parsed.add(taskFromString(line));
+            }
+            return parsed;
+        });
+    }
+
+    private void replay(List<String> records) {
+        for (int i = 0; i < records.size(); i++) {
+            String record = records.get(i);
+            try {
+                applyRecord(record);
+            } catch (RuntimeException e) {
+                if (i == records.size() - 1) {
+                    break; // последняя запись могла остаться недописанной при аварийной остановке
+                }
+                throw new ManagerSaveException("Журнал поврежден, запись " + (i + 1) + ": " + record);
             }
-            for (Subtask subtask : manager.getEpicSubtasks()) {
-                long epicId = subtask.getEpicId();
-                Epic epic = manager.epics.get(epicId);
-                epic.addSubtaskId(subtask.getId());
+        }
+    }
+
+    private void replayHistory(List<String> accessedIds) {
+        for (String id : accessedIds) {
+            try {
+                historyManager.add(getTaskUniversal(Long.parseLong(id)));
+            } catch (NumberFormatException e) {
+                break; // недописанная последняя запись
             }
-            return manager;
+        }
+    }
+
+    private void applyRecord(String record) {
+        int separator = record.indexOf(',');
+        String type = record.substring(0, separator);
+        String value = record.substring(separator + 1);
+        switch (type) {
+            case RECORD_PUT:
+                restore(taskFromString(value));
+                break;
+            case RECORD_REMOVE:
+                super.removeAll(List.of(Long.parseLong(value)));
+                break;
+            case RECORD_CLEAR:
+                switch (TaskType.valueOf(value)) {
+                    case TASK:
+                        super.clearTasks();
+                        break;
+                    case SUBTASK:
+                        super.clearSubtasks();
+                        break;
+                    case EPIC:
+                        super.clearEpics();
+                        break;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Неизвестный тип записи: " + type);
         }
     }
 
@@ -60,11 +210,10 @@ public class FileBackedTasksManager extends InMemoryTaskManager {
     }
 
     public static String historyToString(HistoryManager manager) {
-        List<String> list = manager.getHistory().stream().map(String::valueOf).collect(Collectors.toList());
-        return String.join(",", list);
+        return String.join(",", historyToList(manager));
     }
 
-    private void createTaskFromString(String value) {
+    private static Task taskFromString(String value) {
         //0  1    2    3      4           5    6    7
         //id,type,name,status,description,epic,time,duration
         Task task;
@@ -75,15 +224,12 @@ public class FileBackedTasksManager extends InMemoryTaskManager {
         switch (type) {
             case SUBTASK:
                 task = new Subtask(Long.parseLong(split[5]));
-                subtasks.put(id, (Subtask) task);
                 break;
             case EPIC:
                 task = new Epic();
-                epics.put(id, (Epic) task);
                 break;
             default:
                 task = new Task();
-                tasks.put(id, task);
         }
         task.setId(id);
         task.setName(split[2]);
@@ -99,10 +245,32 @@ public class FileBackedTasksManager extends InMemoryTaskManager {
         } else {
             task.setDuration(Integer.parseInt(split[7]));
         }
+        return task;
     }
 
     protected void save() {
-        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+        writeSnapshot(file, format);
+        // история уже в снимке
+        historyLog.clear();
+        pendingAccesses.clear();
+    }
+
+    private void writeSnapshot(Path target, SnapshotFormat format) {
+        Path tempFile = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            if (format == SnapshotFormat.BINARY) {
+                BinarySnapshot.write(tempFile, getTasks(), getEpicSubtasks(), getEpics(), historyManager.getHistory());
+            } else {
+                writeCsvSnapshot(tempFile);
+            }
+            Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new ManagerSaveException(e.getMessage());
+        }
+    }
+
+    private void writeCsvSnapshot(Path target) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(target)) {
             writer.write(TABLE_HEADER);
             for (Task task : getTasks()) {
                 writer.write(taskToString(task) + System.lineSeparator());
@@ -115,11 +283,26 @@ public class FileBackedTasksManager extends InMemoryTaskManager {
             }
             writer.write(System.lineSeparator());
             writer.write(historyToString(historyManager));
-        } catch (IOException e) {
-            throw new ManagerSaveException(e.getMessage());
         }
     }
 
+    /**
+     * Сохраняет обращения к задачам отдельно от самих задач: id дописываются в журнал истории рядом с файлом,
+     * а при его переполнении журнал перезаписывается текущим порядком истории.
+     */
+    protected void saveHistory(List<Long> accessedIds) {
+        if (historyLog.needsCompaction()) {
+            historyLog.clear();
+            historyLog.append(historyToList(historyManager));
+            return;
+        }
+        historyLog.append(accessedIds.stream().map(String::valueOf).collect(Collectors.toList()));
+    }
+
+    private static List<String> historyToList(HistoryManager manager) {
+        return manager.getHistory().stream().map(String::valueOf).collect(Collectors.toList());
+    }
+
     private String taskToString(Task task) {
         //id,type,name,status,description,epic,time,duration
         String epicId = "";
@@ -149,100 +332,241 @@ public class FileBackedTasksManager extends InMemoryTaskManager {
                 epicId, startTime, duration);
     }
 
+    // Изменения задач: без журнала - полное сохранение, с журналом - запись в журнал.
+    // Чтение задачи меняет только историю и сохраняется отдельно от задач
+    protected void onSaved(Collection<? extends Task> changedTasks) {
+        if (journal == null) {
+            entitiesChanged = true;
+            persist();
+            return;
+        }
+        List<String> records = new ArrayList<>(changedTasks.size());
+        changedTasks.forEach(task -> records.add(RECORD_PUT + "," + taskToString(task)));
+        appendToJournal(records);
+    }
+
+    protected void onRemoved(Collection<Long> ids) {
+        if (journal == null) {
+            entitiesChanged = true;
+            persist();
+            return;
+        }
+        List<String> records = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            if (id != null) {
+                records.add(RECORD_REMOVE + "," + id);
+            }
+        }
+        appendToJournal(records);
+    }
+
+    protected void onCleared(TaskType type) {
+        if (journal == null) {
+            entitiesChanged = true;
+            persist();
+            return;
+        }
+        appendToJournal(List.of(RECORD_CLEAR + "," + type));
+    }
+
+    protected void onAccessed(Task task) {
+        if (task != null) {
+            pendingAccesses.add(task.getId());
+            persist();
+        }
+    }
+
+    private void appendToJournal(List<String> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        pendingRecords.addAll(records);
+        entitiesChanged = true;
+        persist();
+    }
+
+    private void persist() {
+        if (flusher == null) {
+            writePending();
+        } else {
+            flusher.markDirty();
+        }
+    }
+
+    private synchronized void writePending() {
+        if (entitiesChanged) {
+            if (journal == null) {
+                save();
+            } else {
+                journal.append(pendingRecords);
+                pendingRecords.clear();
+                if (journal.needsCompaction()) {
+                    save();
+                    journal.clear();
+                }
+            }
+            entitiesChanged = false;
+        }
+        if (!pendingAccesses.isEmpty()) {
+            saveHistory(pendingAccesses);
+            pendingAccesses.clear();
+        }
+    }
+
+    /**
+     * Записывает все отложенные изменения и сбрасывает журналы на диск (см. {@link TaskJournal.SyncPolicy}).
+     * Без writeBehind изменения уже записаны.
+     */
+    public void flush() {
+        if (flusher != null) {
+            flusher.flush();
+        }
+        syncJournals();
+    }
+
+    /**
+     * Записывает отложенные изменения, останавливает фоновый поток и закрывает журналы.
+     */
     @Override
-    public void clearTasks() {
+    public void close() {
+        if (flusher != null) {
+            flusher.close();
+        }
+        closeJournals();
+    }
+
+    private synchronized void syncJournals() {
+        if (journal != null) {
+            journal.sync();
+        }
+        if (historyLog != null) {
+            historyLog.sync();
+        }
+    }
+
+    private synchronized void closeJournals() {
+        if (journal != null) {
+            journal.close();
+        }
+        if (historyLog != null) {
+            historyLog.close();
+        }
+    }
+
+    // Изменения выполняются под монитором менеджера: под ним же фоновый поток записывает отложенные изменения
+    @Override
+    public synchronized void clearTasks() {
         super.clearTasks();
-        save();
+        onCleared(TaskType.TASK);
     }
 
     @Override
-    public Task getTask(Long id) {
+    public synchronized Task getTask(Long id) {
         Task task = super.getTask(id);
-        save();
+        onAccessed(task);
         return task;
     }
 
     @Override
-    public Long createTask(Task task) throws ManagerTaskException {
+    public synchronized Long createTask(Task task) throws ManagerTaskException {
         Long id = super.createTask(task);
-        save();
+        onSaved(List.of(task));
         return id;
     }
 
     @Override
-    public void updateTask(Task task) throws ManagerTaskException {
+    public synchronized void updateTask(Task task) throws ManagerTaskException {
         super.updateTask(task);
-        save();
+        onSaved(List.of(task));
     }
 
     @Override
-    public void removeTask(Long id) {
+    public synchronized void removeTask(Long id) {
         super.removeTask(id);
-        save();
+        onRemoved(id == null ? List.of() : List.of(id));
     }
 
     @Override
-    public void clearSubtasks() {
+    public synchronized void clearSubtasks() {
         super.clearSubtasks();
-        save();
+        onCleared(TaskType.SUBTASK);
     }
 
     @Override
-    public Subtask getSubtask(Long id) {
+    public synchronized Subtask getSubtask(Long id) {
         Subtask subtask = super.getSubtask(id);
-        save();
+        onAccessed(subtask);
         return subtask;
     }
 
     @Override
-    public Long createSubtask(Subtask subtask) throws ManagerTaskException {
+    public synchronized Long createSubtask(Subtask subtask) throws ManagerTaskException {
         Long id = super.createSubtask(subtask);
-        save();
+        onSaved(List.of(subtask));
         return id;
     }
 
     @Override
-    public void updateSubtask(Subtask subtask) throws ManagerTaskException {
+    public synchronized void updateSubtask(Subtask subtask) throws ManagerTaskException {
         super.updateSubtask(subtask);
-        save();
+        onSaved(List.of(subtask));
     }
 
     @Override
-    public void removeSubtask(Long id) {
+    public synchronized void removeSubtask(Long id) {
         super.removeSubtask(id);
-        save();
+        onRemoved(id == null ? List.of() : List.of(id));
     }
 
     @Override
-    public void clearEpics() {
+    public synchronized void clearEpics() {
         super.clearEpics();
-        save();
+        onCleared(TaskType.EPIC);
     }
 
     @Override
-    public Epic getEpic(Long id) {
+    public synchronized Epic getEpic(Long id) {
         Epic epic = super.getEpic(id);
-        save();
+        onAccessed(epic);
         return epic;
     }
 
     @Override
-    public Long createEpic(Epic epic) throws ManagerTaskException {
+    public synchronized Long createEpic(Epic epic) throws ManagerTaskException {
         Long id = super.createEpic(epic);
-        save();
+        onSaved(List.of(epic));
         return id;
     }
 
     @Override
-    public void updateEpic(Epic epic) throws ManagerTaskException {
+    public synchronized void updateEpic(Epic epic) throws ManagerTaskException {
         super.updateEpic(epic);
-        save();
+        onSaved(List.of(epic));
     }
 
     @Override
-    public void removeEpic(Long id) {
+    public synchronized void removeEpic(Long id) {
         super.removeEpic(id);
-        save();
+        onRemoved(id == null ? List.of() : List.of(id));
+    }
+
+    @Override
+    public synchronized List<Long> createAll(Collection<? extends Task> newTasks) throws ManagerTaskException {
+        List<Long> ids = super.createAll(newTasks);
+        onSaved(newTasks);
+        return ids;
+    }
+
+    @Override
+    public synchronized void updateAll(Collection<? extends Task> changedTasks) throws ManagerTaskException {
+        super.updateAll(changedTasks);
+        onSaved(changedTasks);
+    }
+
+    @Override
+    public synchronized void removeAll(Collection<Long> ids) {
+        super.removeAll(ids);
+        onRemoved(ids == null ? List.of() : ids);
     }
 
     protected Task getTaskUniversal(Long id) {
@@ -3,71 +3,1102 @@ package manager;
 import api.KVTaskClient;
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
+import exception.KVTaskClientConflictException;
+import exception.KVTaskClientException;
 import task.Epic;
 import task.Subtask;
 import task.Task;
+import task.TaskType;
+import util.LongHashSet;
+import util.LongObjectHashMap;
 
 import java.net.URI;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class HttpTaskManager extends FileBackedTasksManager {
     private final static String KV_ALL_TASKS_KEY = "all-tasks";
+    private final static String KV_MANIFEST_KEY = "manifest";
+    private final static String KV_TASK_KEY_PREFIX = "task-";
+    private final static String KV_HISTORY_KEY = "history";
+    private final static String KV_HISTORY_LOG_KEY_PREFIX = "history-";
+    private final static int HISTORY_LOG_SIZE = 64;
+    private final static long UNKNOWN_VERSION = -1;
+    private final static String KV_ID_SEQUENCE_KEY = "id-sequence";
+    private final static int ID_BLOCK_SIZE = 100;
+    private final static int MAX_VERSION_CONFLICTS = 20;
+    private final static int MAX_BACK_OFF_MILLIS = 100;
+    private final static Duration WATCH_TIMEOUT = Duration.ofSeconds(30);
+    private final static long WATCH_RETRY_MILLIS = 1000;
     private final static String JSON_TASKS_KEY = "TASKS";
     private final static String JSON_SUBTASKS_KEY = "SUBTASKS";
     private final static String JSON_EPICS_KEY = "EPICS";
     private final static String JSON_HISTORY_KEY = "HISTORY";
+    private final static String JSON_HISTORY_IDS_KEY = "IDS";
+    private final static String JSON_HISTORY_SEQUENCE_KEY = "SEQUENCE";
     private final KVTaskClient client;
     private final Gson gson;
+    private final LongHashSet changedIds = new LongHashSet();
+    private final LongHashSet failedIds = new LongHashSet(); // под своим монитором
+    // Под монитором failedIds: число неподтвержденных записей задачи, последняя версия, записанная этим
+    // менеджером, и наибольшая версия изменения, пришедшего во время записи
+    private final LongObjectHashMap<Integer> writingIds = new LongObjectHashMap<>();
+    private final LongObjectHashMap<Long> writtenVersions = new LongObjectHashMap<>();
+    private final LongObjectHashMap<Long> deferredVersions = new LongObjectHashMap<>();
+    // Состав доски в последнем прочитанном или записанном manifest и его версия
+    private LongObjectHashMap<TaskType> manifestIds = new LongObjectHashMap<>();
+    private long manifestVersion = KVTaskClient.NO_VERSION;
+    // id задач, которые были у менеджера при последней синхронизации manifest
+    private final LongHashSet syncedIds = new LongHashSet();
+    // Записанные задачи, которых еще нет в manifest, и ключи задач, пропавших из записанного manifest
+    private final LongHashSet unlistedIds = new LongHashSet();
+    private final LongHashSet orphanIds = new LongHashSet();
+    private boolean manifestChanged;
+    private long nextId;
+    private long idBlockEnd;
+    private long minNextId;
+    // Номер следующей записи журнала истории и номер первой записи, которой еще нет в ключе history
+    private long historySequence;
+    private long historyBase;
+    // Порядок истории из ключа history и его версия, записи журнала после него и версии слотов журнала
+    private List<Long> historyBaseIds = new ArrayList<>();
+    private long historyBaseVersion = KVTaskClient.NO_VERSION;
+    private final TreeMap<Long, List<Long>> historyEntries = new TreeMap<>();
+    private final long[] historySlotVersions = new long[HISTORY_LOG_SIZE];
+    // Обращения, еще не записанные в журнал, без повторов: повторное обращение переносит задачу в конец.
+    // Под монитором менеджера
+    private final LinkedHashSet<Long> pendingHistory = new LinkedHashSet<>();
+    private boolean historyWriting;
+    private Thread watcher;
+    private volatile boolean closed;
+    // Лок обертки ConcurrentTaskManager (см. getLock): фоновые потоки менеджера меняют задачи под его write-lock,
+    // чтобы не пересекаться с чтениями через обертку. Всегда берется до монитора менеджера
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile boolean lockShared;
+    // С асинхронным клиентом manifest и следующий блок id записываются в фоновых потоках
+    private final ExecutorService backgroundWriter;
+    private boolean manifestWriting;
+    private CompletableFuture<Void> taskWrites = CompletableFuture.completedFuture(null);
+    private CompletableFuture<Long> nextIdBlock;
 
     public HttpTaskManager(URI kvServerUri) {
-        super(null);
-        client = new KVTaskClient(kvServerUri);
+        this(kvServerUri, null);
+    }
+
+    public HttpTaskManager(URI kvServerUri, WriteBehind writeBehind) {
+        this(new KVTaskClient(kvServerUri), writeBehind);
+    }
+
+    /**
+     * С асинхронным клиентом ({@link KVTaskClient#async}) изменения не ждут ответа KVServer: задачи
+     * отправляются в очередь клиента, а manifest записывается в фоновом потоке. Неудачные записи
+     * повторяются при следующем сохранении, {@link #flush()} дожидается всех записей.
+     */
+    public HttpTaskManager(KVTaskClient client, WriteBehind writeBehind) {
+        super(null, null, writeBehind);
+        this.client = client;
         gson = Managers.getCustomGson();
+        // потоки для manifest, для id и для истории: запись manifest под нагрузкой не прерывается
+        backgroundWriter = !client.isAsync() ? null : Executors.newFixedThreadPool(3, runnable -> {
+            Thread thread = new Thread(runnable, "task-manager-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
         load();
     }
 
+    /**
+     * Каждая задача хранится под своим ключом task-{id}, состав доски - в ключе manifest. Сохраняются только
+     * задачи, измененные с прошлого сохранения, и manifest, если задачи добавлялись или удалялись.
+     * <p>
+     * Manifest записывается с проверкой версии: если его изменил другой менеджер того же KVServer, добавленные
+     * им задачи загружаются, удаленные им - удаляются, и запись повторяется. Сами задачи записываются без
+     * проверки: при одновременном изменении одной задачи сохраняется последняя запись. Ключи удаленных задач
+     * удаляются после записи manifest, в котором их уже нет.
+     * <p>
+     * Ошибки KVServer не отменяют уже выполненное изменение: неудачные записи задач и manifest повторяются
+     * при следующем сохранении, при изменениях на сервере (см. {@link #subscribe()}) и в {@link #flush()}.
+     */
     @Override
     protected void save() {
-        JsonArray taskArray = new JsonArray();
-        tasks.forEach((k, t) -> taskArray.add(gson.toJsonTree(t)));
-        JsonArray subtaskArray = new JsonArray();
-        subtasks.forEach((k, t) -> subtaskArray.add(gson.toJsonTree(t)));
-        JsonArray epicArray = new JsonArray();
-        epics.forEach((k, t) -> epicArray.add(gson.toJsonTree(t)));
-        JsonElement history = gson.toJsonTree(getHistory());
+        synchronized (failedIds) {
+            failedIds.forEachLong(changedIds::add);
+            failedIds.clear();
+        }
+        Map<String, String> values = new LinkedHashMap<>();
+        LongHashSet savedIds = new LongHashSet();
+        changedIds.forEachLong(id -> {
+            Task task = getTaskUniversal(id);
+            if (task != null) {
+                values.put(KV_TASK_KEY_PREFIX + id, gson.toJson(task));
+                savedIds.add(id);
+                if (!syncedIds.contains(id)) {
+                    unlistedIds.add(id);
+                    manifestChanged = true;
+                }
+            }
+        });
+        changedIds.clear();
+        CompletableFuture<Void> written = CompletableFuture.completedFuture(null);
+        if (!values.isEmpty()) {
+            synchronized (failedIds) {
+                savedIds.forEachLong(id -> writingIds.put(id, writingIds.containsKey(id) ? writingIds.get(id) + 1 : 1));
+            }
+            CompletableFuture<Map<String, Long>> versions;
+            try {
+                versions = client.putAllVersioned(values);
+            } catch (KVTaskClientException e) {
+                finishWrite(savedIds, null); // синхронный клиент бросает сразу
+                return;
+            }
+            versions.whenComplete((r, e) -> finishWrite(savedIds, r));
+            written = versions.thenApply(r -> null);
+        }
+        if (manifestChanged && backgroundWriter != null) {
+            taskWrites = CompletableFuture.allOf(taskWrites, written);
+            if (!manifestWriting) {
+                manifestWriting = true;
+                backgroundWriter.execute(this::writeManifestInBackground);
+            }
+        } else if (manifestChanged) {
+            try {
+                // manifest не должен ссылаться на задачи, которых еще нет на сервере
+                KVTaskClient.join(written);
+                writeManifest();
+            } catch (KVTaskClientException e) {
+                // manifestChanged остается установленным
+            }
+        }
+    }
+
+    // Завершение записи задач; versions - null, если запись не удалась: задачи будут записаны при следующем
+    // сохранении. Не берет монитор менеджера: под ним могут ждать завершения этой записи
+    private void finishWrite(LongHashSet ids, Map<String, Long> versions) {
+        LongHashSet staleIds = new LongHashSet();
+        synchronized (failedIds) {
+            ids.forEachLong(id -> {
+                long version = versions == null ? KVTaskClient.NO_VERSION : versions.get(KV_TASK_KEY_PREFIX + id);
+                if (versions == null) {
+                    failedIds.add(id);
+                } else if (version != KVTaskClient.NO_VERSION && version > writtenVersion(id)) {
+                    writtenVersions.put(id, version);
+                }
+                int writes = writingIds.get(id) - 1;
+                if (writes > 0) {
+                    writingIds.put(id, writes);
+                    return;
+                }
+                writingIds.remove(id);
+                Long deferred = deferredVersions.remove(id);
+                if (deferred != null && !failedIds.contains(id) && deferred > writtenVersion(id)) {
+                    staleIds.add(id); // после своей записи задачу записал другой менеджер
+                }
+            });
+        }
+        if (!staleIds.isEmpty() && backgroundWriter != null && !closed) {
+            try {
+                backgroundWriter.execute(() -> reloadInBackground(staleIds));
+            } catch (RejectedExecutionException e) {
+                // менеджер закрывается
+            }
+        }
+    }
+
+    // Вызывается под монитором failedIds
+    private long writtenVersion(long id) {
+        Long version = writtenVersions.get(id);
+        return version == null ? KVTaskClient.NO_VERSION : version;
+    }
+
+    private void reloadInBackground(LongHashSet ids) {
+        lock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (!closed) {
+                    reloadTasks(ids);
+                }
+            }
+        } catch (KVTaskClientException e) {
+            // задачи перечитаются при следующем изменении на сервере
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Вызывается под монитором менеджера, поэтому конфликт версий повторяется сразу, без паузы: он значит,
+    // что manifest записал другой менеджер. Если другие выигрывают все попытки или слияние сейчас нельзя
+    // выполнить (см. canMerge), manifestChanged остается установленным и запись повторится позже
+    private void writeManifest() {
+        for (int attempt = 0; attempt < MAX_VERSION_CONFLICTS && manifestChanged; attempt++) {
+            LongObjectHashMap<TaskType> manifest = buildManifest();
+            try {
+                manifestVersion = client.putIfVersion(KV_MANIFEST_KEY, manifestToJson(manifest), manifestVersion);
+            } catch (KVTaskClientConflictException e) {
+                if (!canMerge()) {
+                    return;
+                }
+                mergeManifest();
+                continue;
+            }
+            collectOrphans(manifest, unlistedIds);
+            unlistedIds.clear();
+            manifestIds = manifest;
+            syncedIds.clear();
+            forEachLocalId((id, type) -> syncedIds.add(id));
+            manifestChanged = false;
+        }
+        LongHashSet orphans = takeOrphans();
+        orphanIds.addAll(removeTaskKeys(orphans));
+    }
+
+    /**
+     * Фоновая запись manifest для асинхронного клиента. Монитор менеджера берется только чтобы собрать
+     * manifest и применить результат; ожидание записи задач, сама запись и паузы между конфликтами
+     * выполняются без него. Изменения, сделанные во время записи, записываются следующим проходом.
+     */
+    private void writeManifestInBackground() {
+        try {
+            for (int attempt = 0; ; attempt++) {
+                CompletableFuture<Void> writes;
+                LongObjectHashMap<TaskType> manifest;
+                LongHashSet localIds = new LongHashSet();
+                LongHashSet unlisted;
+                long expectedVersion;
+                synchronized (this) {
+                    if (!manifestChanged) {
+                        finishManifestWrite();
+                        return;
+                    }
+                    writes = taskWrites;
+                    taskWrites = CompletableFuture.completedFuture(null);
+                    manifest = buildManifest();
+                    forEachLocalId((id, type) -> localIds.add(id));
+                    unlisted = new LongHashSet(unlistedIds.size());
+                    unlisted.addAll(unlistedIds);
+                    unlistedIds.clear();
+                    expectedVersion = manifestVersion;
+                    manifestChanged = false;
+                }
+                long version;
+                try {
+                    // manifest не должен ссылаться на задачи, которых еще нет на сервере
+                    KVTaskClient.join(writes);
+                    version = client.putIfVersion(KV_MANIFEST_KEY, manifestToJson(manifest), expectedVersion);
+                } catch (KVTaskClientConflictException e) {
+                    lock.writeLock().lock();
+                    try {
+                        synchronized (this) {
+                            unlistedIds.addAll(unlisted);
+                            manifestChanged = true;
+                            mergeManifest();
+                        }
+                    } finally {
+                        lock.writeLock().unlock();
+                    }
+                    backOff(attempt);
+                    continue;
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        unlistedIds.addAll(unlisted);
+                    }
+                    throw e;
+                }
+                LongHashSet orphans;
+                synchronized (this) {
+                    collectOrphans(manifest, unlisted);
+                    manifestVersion = version;
+                    manifestIds = manifest;
+                    syncedIds.clear();
+                    localIds.forEachLong(syncedIds::add);
+                    orphans = takeOrphans();
+                }
+                LongHashSet failed = removeTaskKeys(orphans);
+                synchronized (this) {
+                    orphanIds.addAll(failed);
+                }
+                attempt = -1;
+            }
+        } catch (RuntimeException e) {
+            // повтор при следующем сохранении или в flush
+            synchronized (this) {
+                manifestChanged = true;
+                finishManifestWrite();
+            }
+        }
+    }
+
+    // Ключи задач, которые были в прежнем manifest или записаны после него, но не попали в записанный
+    // manifest: задача удалена, ключ больше никому не нужен. Вызывается под монитором менеджера
+    private void collectOrphans(LongObjectHashMap<TaskType> written, LongHashSet unlisted) {
+        manifestIds.forEachKey(id -> {
+            if (!written.containsKey(id)) {
+                orphanIds.add(id);
+            }
+        });
+        unlisted.forEachLong(id -> {
+            if (!written.containsKey(id)) {
+                orphanIds.add(id);
+            }
+        });
+    }
+
+    // Вызывается под монитором менеджера
+    private LongHashSet takeOrphans() {
+        LongHashSet orphans = new LongHashSet(orphanIds.size());
+        orphans.addAll(orphanIds);
+        orphanIds.clear();
+        return orphans;
+    }
+
+    // Удаляет ключи задач и возвращает id, которые удалить не удалось: они удаляются после следующей
+    // записи manifest
+    private LongHashSet removeTaskKeys(LongHashSet ids) {
+        LongHashSet failed = new LongHashSet();
+        ids.forEachLong(id -> {
+            try {
+                client.remove(KV_TASK_KEY_PREFIX + id);
+            } catch (KVTaskClientException e) {
+                failed.add(id);
+            }
+        });
+        return failed;
+    }
+
+    // Вызывается под монитором менеджера
+    private void finishManifestWrite() {
+        manifestWriting = false;
+        notifyAll();
+    }
+
+    // Случайная пауза растет с числом конфликтов, чтобы один менеджер не выигрывал все попытки.
+    // Вызывается без монитора менеджера
+    private static void backOff(int attempt) {
+        long bound = Math.min(MAX_BACK_OFF_MILLIS, 1L << attempt);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVTaskClientException("Запись прервана");
+        }
+    }
+
+    // Свои задачи и задачи других менеджеров, которые не удалось загрузить; удаленные этим менеджером пропадают
+    private LongObjectHashMap<TaskType> buildManifest() {
+        LongObjectHashMap<TaskType> manifest = new LongObjectHashMap<>(manifestIds.size());
+        forEachLocalId(manifest::put);
+        manifestIds.forEach((id, type) -> {
+            if (!syncedIds.contains(id) && !manifest.containsKey(id)) {
+                manifest.put(id, type);
+            }
+        });
+        return manifest;
+    }
+
+    private void mergeManifest() {
+        KVTaskClient.Versioned remote = client.loadVersioned(KV_MANIFEST_KEY);
+        LongObjectHashMap<TaskType> remoteIds = remote.getValue() == null
+                ? new LongObjectHashMap<>() : parseManifest(remote.getValue());
+        // удаленные другим менеджером
+        LongHashSet removedIds = new LongHashSet();
+        syncedIds.forEachLong(id -> {
+            if (!remoteIds.containsKey(id) && getTaskUniversal(id) != null) {
+                removedIds.add(id);
+            }
+        });
+        removedIds.forEachLong(id -> {
+            discard(id);
+            syncedIds.remove(id);
+        });
+        // добавленные другим менеджером
+        Map<String, Class<? extends Task>> keys = new LinkedHashMap<>();
+        remoteIds.forEach((id, type) -> {
+            if (!syncedIds.contains(id) && getTaskUniversal(id) == null) {
+                keys.put(KV_TASK_KEY_PREFIX + id, typeToClass(type));
+            }
+        });
+        List<Task> loaded = loadTasks(keys);
+        LongHashSet loadedEpicIds = new LongHashSet();
+        loaded.forEach(task -> {
+            if (task instanceof Epic) {
+                loadedEpicIds.add(task.getId());
+            }
+        });
+        // подзадачи эпика, удаленного этим менеджером, не загружаются
+        loaded.removeIf(task -> task instanceof Subtask && !epics.containsKey(((Subtask) task).getEpicId())
+                && !loadedEpicIds.contains(((Subtask) task).getEpicId()));
+        restoreAll(loaded);
+        loaded.forEach(task -> syncedIds.add(task.getId()));
+        manifestIds = remoteIds;
+        manifestVersion = remote.getVersion();
+    }
+
+    private void forEachLocalId(LongObjectHashMap.EntryConsumer<TaskType> action) {
+        tasks.forEachKey(id -> action.accept(id, TaskType.TASK));
+        subtasks.forEachKey(id -> action.accept(id, TaskType.SUBTASK));
+        epics.forEachKey(id -> action.accept(id, TaskType.EPIC));
+    }
+
+    /**
+     * Новые id выдаются из блока, зарезервированного в ключе id-sequence с проверкой версии, поэтому
+     * менеджеры одного KVServer не выдают одинаковых id. С асинхронным клиентом следующий блок
+     * резервируется в фоне, когда выдана половина текущего, и создание задачи не ждет KVServer.
+     */
+    @Override
+    protected long generateId() {
+        if (nextId >= idBlockEnd) {
+            long start = takeNextIdBlock();
+            nextId = start;
+            idBlockEnd = start + ID_BLOCK_SIZE;
+        }
+        long id = nextId++;
+        if (backgroundWriter != null && nextIdBlock == null && idBlockEnd - nextId == ID_BLOCK_SIZE / 2) {
+            long min = minNextId;
+            nextIdBlock = CompletableFuture.supplyAsync(() -> reserveIdBlock(min), backgroundWriter);
+        }
+        return id;
+    }
+
+    private long takeNextIdBlock() {
+        CompletableFuture<Long> prefetched = nextIdBlock;
+        nextIdBlock = null;
+        if (prefetched != null) {
+            try {
+                // ожидание начатого резервирования не дольше нового
+                long start = prefetched.join();
+                // блок, зарезервированный до загрузки задач с большими id, не используется
+                if (start >= minNextId) {
+                    return start;
+                }
+            } catch (CompletionException e) {
+                // резервируется заново
+            }
+        }
+        return reserveIdBlock(minNextId);
+    }
+
+    // Возвращает начало нового блока. Конфликт значит, что блок получил другой менеджер, поэтому повтор
+    // выполняется сразу, без паузы
+    private long reserveIdBlock(long min) {
+        for (int attempt = 0; attempt < MAX_VERSION_CONFLICTS; attempt++) {
+            KVTaskClient.Versioned sequence = client.loadVersioned(KV_ID_SEQUENCE_KEY);
+            long start = Math.max(min, sequence.getValue() == null ? 0 : Long.parseLong(sequence.getValue()));
+            try {
+                client.putIfVersion(KV_ID_SEQUENCE_KEY, Long.toString(start + ID_BLOCK_SIZE), sequence.getVersion());
+            } catch (KVTaskClientConflictException e) {
+                continue;
+            }
+            return start;
+        }
+        throw new KVTaskClientException("Не удалось зарезервировать id: их одновременно резервируют другие менеджеры");
+    }
+
+    /**
+     * Лок, под которым {@link ConcurrentTaskManager} читает и меняет этот менеджер. Подписка, фоновая запись
+     * manifest, {@link #flush()} и {@link #close()} меняют задачи под его write-lock, поэтому чтения через
+     * обертку не пересекаются с изменениями с сервера и по-прежнему выполняются параллельно.
+     */
+    ReadWriteLock getLock() {
+        lockShared = true;
+        return lock;
+    }
+
+    // Слияние manifest меняет задачи. Если менеджер читают через ConcurrentTaskManager, слияние выполняется
+    // только под его write-lock; без него запись manifest откладывается до вызова, который этот лок держит
+    private boolean canMerge() {
+        return !lockShared || lock.isWriteLockedByCurrentThread();
+    }
+
+    @Override
+    protected void reserveId(long id) {
+        super.reserveId(id);
+        minNextId = Math.max(minNextId, id + 1);
+    }
+
+    /**
+     * Записывает отложенные изменения и дожидается подтверждения всех записей от KVServer. Manifest, который
+     * не удалось записать из-за других менеджеров, записывается повторно с паузами вне монитора менеджера.
+     */
+    @Override
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            super.flush();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (int attempt = 0; ; attempt++) {
+            saveManifest();
+            synchronized (this) {
+                awaitManifestWrite();
+                if (!manifestChanged) {
+                    break;
+                }
+            }
+            if (attempt == MAX_VERSION_CONFLICTS) {
+                throw new KVTaskClientException("Не удалось записать manifest");
+            }
+            backOff(attempt);
+        }
+        synchronized (this) {
+            awaitHistoryWrite();
+            writePendingHistory();
+        }
+        KVTaskClient.join(client.flush());
+    }
+
+    // Повтор неудачной записи manifest. Вызывается без монитора менеджера: write-lock берется до него
+    private void saveManifest() {
+        lock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (manifestChanged) {
+                    save();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Вызывается под монитором менеджера без write-lock: wait отпускает монитор, чтобы фоновая запись
+    // могла завершиться
+    private void awaitManifestWrite() {
+        try {
+            while (manifestWriting) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVTaskClientException("Ожидание записи manifest прервано");
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Thread watcherThread;
+        synchronized (this) {
+            watcherThread = watcher;
+        }
+        if (watcherThread != null) {
+            watcherThread.interrupt(); // прерывает ожидание /watch
+        }
+        lock.writeLock().lock();
+        try {
+            super.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (backgroundWriter != null) {
+            saveManifest(); // последняя попытка после неудачной фоновой записи
+            synchronized (this) {
+                awaitManifestWrite();
+                awaitHistoryWrite();
+            }
+            backgroundWriter.shutdown();
+        }
+        synchronized (this) {
+            try {
+                writePendingHistory();
+            } catch (KVTaskClientException e) {
+                // история не записана; задачи записываются ниже
+            }
+        }
+        KVTaskClient.join(client.flush());
+    }
+
+    /**
+     * Подписывает менеджер на изменения KVServer (long-poll /watch): задачи, которые добавили, изменили или
+     * удалили другие менеджеры, применяются в фоновом потоке. Задачи с несохраненными локальными изменениями
+     * не перезаписываются. Подписка действует до {@link #close()}.
+     */
+    public void subscribe() {
+        lock.writeLock().lock();
+        try {
+            synchronized (this) {
+                if (watcher != null) {
+                    return;
+                }
+                long revision = client.getRevision();
+                resync(); // изменения между загрузкой и подпиской
+                watcher = new Thread(() -> watchChanges(revision), "task-manager-watcher");
+                watcher.setDaemon(true);
+                watcher.start();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void watchChanges(long since) {
+        while (!closed) {
+            try {
+                KVTaskClient.Changes changes = client.watch(since, WATCH_TIMEOUT);
+                lock.writeLock().lock();
+                try {
+                    applyChanges(changes);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                since = changes.getRevision();
+            } catch (KVTaskClientException e) {
+                if (closed) {
+                    return;
+                }
+                try {
+                    Thread.sleep(WATCH_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Вызывается под write-lock (см. getLock)
+    private synchronized void applyChanges(KVTaskClient.Changes changes) {
+        if (closed) {
+            return;
+        }
+        if (changes.isReset()) {
+            synchronized (failedIds) {
+                writtenVersions.clear(); // версии прежнего состояния сервера
+            }
+            resync();
+            return;
+        }
+        boolean manifestChangedRemotely = false;
+        LongHashSet updatedIds = new LongHashSet();
+        for (KVTaskClient.Change change : changes.getChanges()) {
+            if (change.getKey().equals(KV_MANIFEST_KEY)) {
+                // своя запись manifest уже учтена
+                manifestChangedRemotely |= change.getVersion() != manifestVersion;
+            } else if (change.getKey().startsWith(KV_TASK_KEY_PREFIX)) {
+                long id = Long.parseLong(change.getKey().substring(KV_TASK_KEY_PREFIX.length()));
+                if (!isOwnWrite(id, change)) {
+                    updatedIds.add(id);
+                }
+            }
+        }
+        if (manifestChangedRemotely) {
+            mergeManifest();
+        }
+        reloadTasks(updatedIds);
+        if (manifestChanged) {
+            save(); // запись, не удавшаяся раньше
+        }
+    }
+
+    // Своя подтвержденная запись уже применена. Изменение, пришедшее во время своей записи, откладывается
+    // до ее завершения (см. finishWrite): иначе старое значение заменило бы более новую локальную задачу
+    private boolean isOwnWrite(long id, KVTaskClient.Change change) {
+        synchronized (failedIds) {
+            if (change.isRemoved()) {
+                writtenVersions.remove(id);
+                deferredVersions.remove(id);
+                return true;
+            }
+            if (writingIds.containsKey(id)) {
+                Long deferred = deferredVersions.get(id);
+                deferredVersions.put(id, deferred == null ? change.getVersion() : Math.max(deferred, change.getVersion()));
+                return true;
+            }
+            return change.getVersion() <= writtenVersion(id);
+        }
+    }
+
+    private boolean hasUnsavedChanges(long id) {
+        synchronized (failedIds) {
+            return changedIds.contains(id) || failedIds.contains(id) || writingIds.containsKey(id);
+        }
+    }
+
+    private void resync() {
+        mergeManifest();
+        LongHashSet ids = new LongHashSet();
+        forEachLocalId((id, type) -> ids.add(id));
+        reloadTasks(ids);
+    }
+
+    // Перечитывает сохраненные задачи, кроме измененных локально и еще не записанных
+    private void reloadTasks(LongHashSet ids) {
+        Map<String, Class<? extends Task>> keys = new LinkedHashMap<>();
+        ids.forEachLong(id -> {
+            Task task = getTaskUniversal(id);
+            if (task != null && syncedIds.contains(id) && !hasUnsavedChanges(id)) {
+                keys.put(KV_TASK_KEY_PREFIX + id, typeToClass(task.getType()));
+            }
+        });
+        if (!keys.isEmpty()) {
+            loadTasks(keys).forEach(this::restore);
+        }
+    }
+
+    private static String manifestToJson(LongObjectHashMap<TaskType> manifest) {
+        JsonArray taskIds = new JsonArray();
+        JsonArray subtaskIds = new JsonArray();
+        JsonArray epicIds = new JsonArray();
+        manifest.forEach((id, type) -> {
+            if (type == TaskType.SUBTASK) {
+                subtaskIds.add(id);
+            } else if (type == TaskType.EPIC) {
+                epicIds.add(id);
+            } else {
+                taskIds.add(id);
+            }
+        });
+        JsonObject json = new JsonObject();
+        json.add(JSON_TASKS_KEY, taskIds);
+        json.add(JSON_SUBTASKS_KEY, subtaskIds);
+        json.add(JSON_EPICS_KEY, epicIds);
+        return json.toString();
+    }
+
+    private static LongObjectHashMap<TaskType> parseManifest(String manifest) {
+        JsonObject json = JsonParser.parseString(manifest).getAsJsonObject();
+        LongObjectHashMap<TaskType> ids = new LongObjectHashMap<>();
+        json.get(JSON_TASKS_KEY).getAsJsonArray().forEach(id -> ids.put(id.getAsLong(), TaskType.TASK));
+        json.get(JSON_SUBTASKS_KEY).getAsJsonArray().forEach(id -> ids.put(id.getAsLong(), TaskType.SUBTASK));
+        json.get(JSON_EPICS_KEY).getAsJsonArray().forEach(id -> ids.put(id.getAsLong(), TaskType.EPIC));
+        return ids;
+    }
+
+    private static Class<? extends Task> typeToClass(TaskType type) {
+        if (type == TaskType.SUBTASK) {
+            return Subtask.class;
+        } else if (type == TaskType.EPIC) {
+            return Epic.class;
+        }
+        return Task.class;
+    }
+
+    // Загружает задачи одним запросом, ключи без значения пропускаются
+    private List<Task> loadTasks(Map<String, Class<? extends Task>> keys) {
+        Map<String, String> values = client.loadAll(keys.keySet());
+        List<Task> loaded = new ArrayList<>(values.size());
+        keys.forEach((key, type) -> {
+            String value = values.get(key);
+            if (value != null) {
+                loaded.add(gson.fromJson(value, type));
+            }
+        });
+        return loaded;
+    }
+
+    @Override
+    protected void onSaved(Collection<? extends Task> changedTasks) {
+        changedTasks.forEach(task -> changedIds.add(task.getId()));
+        super.onSaved(changedTasks);
+    }
+
+    @Override
+    protected void onRemoved(Collection<Long> ids) {
+        manifestChanged = true;
+        super.onRemoved(ids);
+    }
+
+    @Override
+    protected void onCleared(TaskType type) {
+        manifestChanged = true;
+        super.onCleared(type);
+    }
+
+    /**
+     * Обращения к задачам дописываются в журнал: каждое сохранение истории - одна запись {SEQUENCE, IDS} в ключе
+     * history-{SEQUENCE % 64}. Номера записей общие для всех менеджеров KVServer: слот записывается с проверкой
+     * версии, и менеджер, проигравший слот, запоминает чужую запись и пробует следующий номер. Поэтому журнал -
+     * единая последовательность обращений всех менеджеров, а история при загрузке - обращения в порядке номеров.
+     * <p>
+     * Перед тем как слот будет занят повторно, ключ history заменяется сверткой его порядка с записями журнала
+     * (тоже с проверкой версии) вместе с номером первой не вошедшей в него записи. Свертка зависит только от
+     * записей, поэтому любой менеджер получает тот же результат. История в памяти менеджера содержит его
+     * обращения и загруженные при старте: чужие обращения видны после перезагрузки.
+     * <p>
+     * Обращения копятся и записываются одной записью журнала: с асинхронным клиентом - в фоновом потоке, как
+     * manifest, с синхронным - сразу. Ошибка KVServer не прерывает чтение задачи: обращения остаются в очереди
+     * и записываются при следующем обращении, в {@link #flush()} или {@link #close()}.
+     */
+    @Override
+    protected void saveHistory(List<Long> accessedIds) {
+        addPendingHistory(accessedIds);
+        if (backgroundWriter != null) {
+            if (!historyWriting) {
+                historyWriting = true;
+                backgroundWriter.execute(this::writeHistoryInBackground);
+            }
+            return;
+        }
+        try {
+            writePendingHistory();
+        } catch (KVTaskClientException e) {
+            // повтор при следующем обращении
+        }
+    }
 
-        JsonObject allTasks = new JsonObject();
-        allTasks.add(JSON_TASKS_KEY, taskArray);
-        allTasks.add(JSON_SUBTASKS_KEY, subtaskArray);
-        allTasks.add(JSON_EPICS_KEY, epicArray);
-        allTasks.add(JSON_HISTORY_KEY, history);
+    // Вызывается под монитором менеджера
+    private void writePendingHistory() {
+        if (pendingHistory.isEmpty()) {
+            return;
+        }
+        appendHistory(List.copyOf(pendingHistory));
+        pendingHistory.clear();
+    }
+
+    private void addPendingHistory(Collection<Long> ids) {
+        ids.forEach(id -> {
+            pendingHistory.remove(id);
+            pendingHistory.add(id);
+        });
+    }
+
+    /**
+     * Фоновая запись истории для асинхронного клиента. Монитор менеджера берется только чтобы забрать
+     * накопленные обращения; журнал в это время пишет только этот поток (см. historyWriting).
+     */
+    private void writeHistoryInBackground() {
+        while (true) {
+            List<Long> ids;
+            synchronized (this) {
+                if (pendingHistory.isEmpty()) {
+                    finishHistoryWrite();
+                    return;
+                }
+                ids = List.copyOf(pendingHistory);
+                pendingHistory.clear();
+            }
+            try {
+                appendHistory(ids);
+            } catch (RuntimeException e) {
+                // повтор при следующем обращении или в flush
+                synchronized (this) {
+                    List<Long> later = List.copyOf(pendingHistory);
+                    pendingHistory.clear();
+                    addPendingHistory(ids);
+                    addPendingHistory(later);
+                    finishHistoryWrite();
+                }
+                return;
+            }
+        }
+    }
+
+    private void finishHistoryWrite() {
+        historyWriting = false;
+        notifyAll();
+    }
+
+    // Вызывается под монитором менеджера, см. awaitManifestWrite
+    private void awaitHistoryWrite() {
+        try {
+            while (historyWriting) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVTaskClientException("Ожидание записи истории прервано");
+        }
+    }
+
+    // Дописывает одну запись журнала. Вызывается одним потоком: под монитором менеджера или из фоновой записи
+    private void appendHistory(List<Long> ids) {
+        for (int attempt = 0; attempt < HISTORY_LOG_SIZE + MAX_VERSION_CONFLICTS; attempt++) {
+            compactHistory();
+            int slot = (int) (historySequence % HISTORY_LOG_SIZE);
+            String key = KV_HISTORY_LOG_KEY_PREFIX + slot;
+            if (historySlotVersions[slot] != UNKNOWN_VERSION) {
+                try {
+                    historySlotVersions[slot] = client.putIfVersion(key, historyToJson(ids, historySequence),
+                            historySlotVersions[slot]);
+                    historyEntries.put(historySequence++, ids);
+                    return;
+                } catch (KVTaskClientConflictException e) {
+                    // слот записал другой менеджер
+                }
+            }
+            KVTaskClient.Versioned remote = client.loadVersioned(key);
+            historySlotVersions[slot] = remote.getVersion();
+            if (remote.getValue() == null) {
+                continue;
+            }
+            JsonObject entry = JsonParser.parseString(remote.getValue()).getAsJsonObject();
+            long sequence = entry.get(JSON_HISTORY_SEQUENCE_KEY).getAsLong();
+            if (sequence > historySequence) {
+                // журнал прошел полный круг: пропущенные записи уже свернуты в ключ history
+                loadHistoryBase(client.loadVersioned(KV_HISTORY_KEY));
+            }
+            if (sequence == historySequence) {
+                historyEntries.put(historySequence++, parseIds(entry.get(JSON_HISTORY_IDS_KEY)));
+            } else if (sequence > historySequence) {
+                historySlotVersions[slot] = UNKNOWN_VERSION; // чужую запись нельзя перезаписать
+            }
+        }
+        throw new KVTaskClientException("Не удалось записать историю: журнал одновременно пишут другие менеджеры");
+    }
+
+    // Сворачивает журнал в ключ history, если следующая запись займет слот еще не свернутой записи
+    private void compactHistory() {
+        for (int attempt = 0; historySequence - historyBase >= HISTORY_LOG_SIZE; attempt++) {
+            if (attempt == MAX_VERSION_CONFLICTS) {
+                throw new KVTaskClientException("Не удалось записать историю: ключ history меняют другие менеджеры");
+            }
+            List<Long> ids = foldHistory(historySequence);
+            try {
+                historyBaseVersion = client.putIfVersion(KV_HISTORY_KEY, historyToJson(ids, historySequence),
+                        historyBaseVersion);
+            } catch (KVTaskClientConflictException e) {
+                loadHistoryBase(client.loadVersioned(KV_HISTORY_KEY));
+                continue;
+            }
+            historyBaseIds = ids;
+            historyBase = historySequence;
+            historyEntries.headMap(historyBase).clear();
+        }
+    }
+
+    // Порядок ключа history с записями журнала до end: повторное обращение переносит задачу в конец
+    private List<Long> foldHistory(long end) {
+        LinkedHashSet<Long> ids = new LinkedHashSet<>(historyBaseIds);
+        historyEntries.headMap(end).values().forEach(entry -> entry.forEach(id -> {
+            ids.remove(id);
+            ids.add(id);
+        }));
+        synchronized (this) {
+            ids.removeIf(id -> getTaskUniversal(id) == null);
+        }
+        return new ArrayList<>(ids);
+    }
 
-        client.put(KV_ALL_TASKS_KEY, allTasks.toString());
+    // Принимает ключ history, если он новее известного менеджеру: записи до его номера больше не нужны
+    private void loadHistoryBase(KVTaskClient.Versioned base) {
+        historyBaseVersion = base.getVersion();
+        if (base.getValue() == null) {
+            return;
+        }
+        JsonElement json = JsonParser.parseString(base.getValue());
+        if (json.isJsonArray()) { // история без журнала - формат до записи обращений в журнал
+            historyBaseIds = parseIds(json);
+            return;
+        }
+        long sequence = json.getAsJsonObject().get(JSON_HISTORY_SEQUENCE_KEY).getAsLong();
+        if (sequence >= historyBase) {
+            historyBaseIds = parseIds(json.getAsJsonObject().get(JSON_HISTORY_IDS_KEY));
+            historyBase = sequence;
+            historySequence = Math.max(historySequence, historyBase);
+            historyEntries.headMap(historyBase).clear();
+        }
+    }
+
+    private String historyToJson(List<Long> ids, long sequence) {
+        JsonObject json = new JsonObject();
+        json.add(JSON_HISTORY_IDS_KEY, gson.toJsonTree(ids));
+        json.addProperty(JSON_HISTORY_SEQUENCE_KEY, sequence);
+        return json.toString();
     }
 
     private void load() {
+        loadManifestTasks();
+        loadHistoryLog();
+    }
+
+    /**
+     * Загружает задачи из manifest. Задача могла пропасть, если ее удалили после чтения manifest: тогда
+     * manifest уже изменился и загрузка повторяется. Пропавший ключ при неизменном manifest значит, что доска
+     * повреждена (например, KVServer удалил ключ при вытеснении), и загрузка прерывается.
+     */
+    private void loadManifestTasks() {
+        for (int attempt = 0; attempt < MAX_VERSION_CONFLICTS; attempt++) {
+            KVTaskClient.Versioned manifest = client.loadVersioned(KV_MANIFEST_KEY);
+            if (manifest.getValue() == null) {
+                loadAllTasks();
+                return;
+            }
+            LongObjectHashMap<TaskType> ids = parseManifest(manifest.getValue());
+            Map<String, Class<? extends Task>> keys = new LinkedHashMap<>();
+            ids.forEach((id, type) -> keys.put(KV_TASK_KEY_PREFIX + id, typeToClass(type)));
+            List<Task> loaded = loadTasks(keys);
+            if (loaded.size() < keys.size()) {
+                if (client.loadVersioned(KV_MANIFEST_KEY).getVersion() != manifest.getVersion()) {
+                    continue;
+                }
+                throw new KVTaskClientException("Доска повреждена: manifest ссылается на " + keys.size()
+                        + " задач, а на KVServer найдено " + loaded.size());
+            }
+            manifestIds = ids;
+            manifestVersion = manifest.getVersion();
+            restoreAll(loaded);
+            loaded.forEach(task -> syncedIds.add(task.getId()));
+            return;
+        }
+        throw new KVTaskClientException("Не удалось загрузить доску: manifest одновременно меняют другие менеджеры");
+    }
+
+    // Ключ history и записи журнала после него. Версии занятых слотов неизвестны: /mload их не возвращает,
+    // поэтому перед первой записью в такой слот он читается заново
+    private void loadHistoryLog() {
+        loadHistoryBase(client.loadVersioned(KV_HISTORY_KEY));
+        List<String> keys = new ArrayList<>(HISTORY_LOG_SIZE);
+        for (int i = 0; i < HISTORY_LOG_SIZE; i++) {
+            keys.add(KV_HISTORY_LOG_KEY_PREFIX + i);
+        }
+        Map<String, String> values = client.loadAll(keys);
+        for (int i = 0; i < HISTORY_LOG_SIZE; i++) {
+            String value = values.get(keys.get(i));
+            historySlotVersions[i] = value == null ? KVTaskClient.NO_VERSION : UNKNOWN_VERSION;
+            if (value == null) {
+                continue;
+            }
+            JsonObject entry = JsonParser.parseString(value).getAsJsonObject();
+            long sequence = entry.get(JSON_HISTORY_SEQUENCE_KEY).getAsLong();
+            if (sequence >= historyBase) {
+                historyEntries.put(sequence, parseIds(entry.get(JSON_HISTORY_IDS_KEY)));
+            }
+        }
+        historySequence = historyEntries.isEmpty() ? historyBase : historyEntries.lastKey() + 1;
+        foldHistory(historySequence).forEach(id -> historyManager.add(getTaskUniversal(id)));
+    }
+
+    /**
+     * Загрузка из общего ключа all-tasks - формат до хранения задач по отдельным ключам. Все задачи помечаются
+     * измененными и при первом сохранении переписываются в новый формат.
+     */
+    private void loadAllTasks() {
         String response = client.load(KV_ALL_TASKS_KEY);
         if (response != null) {
             JsonObject json = JsonParser.parseString(response).getAsJsonObject();
             JsonArray taskArray = json.get(JSON_TASKS_KEY).getAsJsonArray();
             JsonArray subtaskArray = json.get(JSON_SUBTASKS_KEY).getAsJsonArray();
             JsonArray epicArray = json.get(JSON_EPICS_KEY).getAsJsonArray();
-            JsonArray history = json.get(JSON_HISTORY_KEY).getAsJsonArray();
 
-            taskArray.forEach(jt -> {
-                Task task = gson.fromJson(jt, Task.class);
-                tasks.put(task.getId(), task);
-            });
-            subtaskArray.forEach(jt -> {
-                Subtask task = gson.fromJson(jt, Subtask.class);
-                subtasks.put(task.getId(), task);
-            });
-            epicArray.forEach(jt -> {
-                Epic task = gson.fromJson(jt, Epic.class);
-                epics.put(task.getId(), task);
-            });
-            ArrayList<Long> arrayList = gson.fromJson(history, new TypeToken<ArrayList<Long>>() {}.getType());
-            arrayList.forEach(id -> historyManager.add(getTaskUniversal((id))));
+            List<Task> loaded = new ArrayList<>(taskArray.size() + subtaskArray.size() + epicArray.size());
+            taskArray.forEach(jt -> loaded.add(gson.fromJson(jt, Task.class)));
+            subtaskArray.forEach(jt -> loaded.add(gson.fromJson(jt, Subtask.class)));
+            epicArray.forEach(jt -> loaded.add(gson.fromJson(jt, Epic.class)));
+            restoreAll(loaded);
+            loaded.forEach(task -> changedIds.add(task.getId()));
+            if (json.has(JSON_HISTORY_KEY)) { // история в общем ключе - формат до выделения ключа history
+                loadHistory(json.get(JSON_HISTORY_KEY));
+            }
         }
     }
+
+    private void loadHistory(JsonElement history) {
+        parseIds(history).forEach(id -> historyManager.add(getTaskUniversal((id))));
+    }
+
+    private List<Long> parseIds(JsonElement ids) {
+        return gson.fromJson(ids, new TypeToken<ArrayList<Long>>() {}.getType());
+    }
 }
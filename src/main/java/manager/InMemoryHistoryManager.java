@@ -1,25 +1,26 @@
 package manager;
 
 import task.Task;
+import util.LongObjectHashMap;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 public class InMemoryHistoryManager implements HistoryManager {
     private Node<Task> head;
     private Node<Task> tail;
-    private final HashMap<Long, Node<Task>> taskHistory;
+    private final LongObjectHashMap<Node<Task>> taskHistory;
 
     public InMemoryHistoryManager() {
-        this.taskHistory = new HashMap<>();
+        this.taskHistory = new LongObjectHashMap<>();
     }
 
     @Override
     public void add(Task task) {
         if (task != null) {
-            if (taskHistory.containsKey(task.getId())) {
-                removeNode(taskHistory.get(task.getId()));
+            Node<Task> node = taskHistory.get(task.getId());
+            if (node != null) {
+                removeNode(node);
             }
             linkLast(task);
             taskHistory.put(task.getId(), tail);
@@ -28,10 +29,10 @@ public class InMemoryHistoryManager implements HistoryManager {
 
     @Override
     public void remove(long id) {
-        if (taskHistory.containsKey(id)) {
-            removeNode(taskHistory.get(id));
+        Node<Task> node = taskHistory.remove(id);
+        if (node != null) {
+            removeNode(node);
         }
-        taskHistory.remove(id);
     }
 
     @Override
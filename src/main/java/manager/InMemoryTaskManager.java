@@ -2,78 +2,76 @@ package manager;
 
 import exception.*;
 import task.Epic;
-import task.Status;
 import task.Subtask;
 import task.Task;
+import util.LongObjectHashMap;
 
 import java.time.LocalDateTime;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
+import java.time.ZoneOffset;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class InMemoryTaskManager implements TaskManager {
-    protected final HashSet<String> intervals;
+    protected final IntervalIndex intervals;
     protected final TreeSet<Task> sortedTasks;
-    protected final HashMap<Long, Task> tasks;
-    protected final HashMap<Long, Subtask> subtasks;
-    protected final HashMap<Long, Epic> epics;
+    protected final LongObjectHashMap<Task> tasks;
+    protected final LongObjectHashMap<Subtask> subtasks;
+    protected final LongObjectHashMap<Epic> epics;
     protected final HistoryManager historyManager;
+    // Интервалы, занятые каждой задачей, в минутах: освобождается занятое, даже если задачу изменили на месте
+    private final Map<Task, long[]> claims = new IdentityHashMap<>();
     private final static Comparator<Task> TASK_COMPARATOR = Comparator.comparing(Task::getStartTime).thenComparing(Task::getId);
     private long sequenceId;
 
-    private final static DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm");
-
     public InMemoryTaskManager() {
-        intervals = new HashSet<>();
+        this(new TreeIntervalIndex(IntervalIndex.DEFAULT_GRANULARITY));
+    }
+
+    public InMemoryTaskManager(IntervalIndex intervals) {
+        this.intervals = intervals;
         sortedTasks = new TreeSet<>(TASK_COMPARATOR);
-        tasks = new HashMap<>();
-        subtasks = new HashMap<>();
-        epics = new HashMap<>();
+        tasks = new LongObjectHashMap<>();
+        subtasks = new LongObjectHashMap<>();
+        epics = new LongObjectHashMap<>();
         sequenceId = 0;
         historyManager = Managers.getDefaultHistory();
     }
 
     private boolean claimIntervals(Task task) {
-        List<String> keys = getIntervalKeys(task);
-        Optional<String> optional = keys.stream().filter(intervals::contains).findFirst();
-        if (optional.isEmpty()) {
-            intervals.addAll(getIntervalKeys(task));
+        if (!hasInterval(task)) {
             return true;
-        } else {
+        }
+        long startMinute = toEpochMinute(task.getStartTime());
+        long endMinute = startMinute + task.getDuration();
+        if (!intervals.claim(startMinute, endMinute)) {
             return false;
         }
+        claims.put(task, new long[]{startMinute, endMinute});
+        return true;
     }
 
+    // Задача, интервал которой не удалось занять (см. restore), ничего не освобождает
     private void unclaimIntervals(Task task) {
-        List<String> keys = getIntervalKeys(task);
-        keys.forEach(intervals::remove);
+        long[] claim = claims.remove(task);
+        if (claim != null) {
+            intervals.release(claim[0], claim[1]);
+        }
     }
 
-    private static List<String> getIntervalKeys(Task task) {
-        List<String> keys = new ArrayList<>();
+    private static boolean hasInterval(Task task) {
+        if (task instanceof Epic) {
+            return false;
+        }
         LocalDateTime startTime;
         try {
             startTime = task.getStartTime();
         } catch (TaskDataUndefinedException e) {
-            return keys;
-        }
-        if (startTime.equals(Task.DEFAULT_START_TIME)) {
-            return keys;
+            return false;
         }
+        return !startTime.equals(Task.DEFAULT_START_TIME);
+    }
 
-        final int intervalInMinutes = 15;
-        LocalDateTime coursor = LocalDateTime.of(startTime.toLocalDate(), LocalTime.of(startTime.getHour(),
-                (startTime.getMinute() / intervalInMinutes) * intervalInMinutes));
-
-        LocalDateTime endTime = task.getEndTime();
-        LocalDateTime end = LocalDateTime.of(endTime.toLocalDate(), LocalTime.of(endTime.getHour(),
-                (endTime.getMinute() / intervalInMinutes) * intervalInMinutes));
-        while (coursor.isBefore(end.plusMinutes(intervalInMinutes))) {
-            keys.add(coursor.format(formatter));
-            coursor = coursor.plusMinutes(intervalInMinutes);
-        }
-        return keys;
+    private static long toEpochMinute(LocalDateTime dateTime) {
+        return Math.floorDiv(dateTime.toEpochSecond(ZoneOffset.UTC), 60);
     }
 
     @Override
@@ -81,6 +79,69 @@ public class InMemoryTaskManager implements TaskManager {
         return new ArrayList<>(sortedTasks);
     }
 
+    @Override
+    public List<Task> getPrioritizedTasks(LocalDateTime from, LocalDateTime to) {
+        return new ArrayList<>(getTimeline(from, to));
+    }
+
+    @Override
+    public TaskPage getPrioritizedTasksPage(LocalDateTime from, LocalDateTime to, String cursor, int limit)
+            throws ManagerTaskException {
+        if (limit <= 0) {
+            throw new ManagerTaskBadInputException("Размер страницы должен быть положительным: " + limit);
+        }
+        NavigableSet<Task> timeline = getTimeline(from, to);
+        if (cursor != null) {
+            timeline = after(timeline, TaskPage.fromCursor(cursor));
+        }
+        List<Task> page = new ArrayList<>();
+        Iterator<Task> iterator = timeline.iterator();
+        while (iterator.hasNext() && page.size() < limit) {
+            page.add(iterator.next());
+        }
+        String nextCursor = iterator.hasNext() ? TaskPage.toCursor(page.get(page.size() - 1)) : null;
+        return new TaskPage(page, nextCursor);
+    }
+
+    /**
+     * Представление sortedTasks с задачами, интервалы которых пересекают [from, to). Без границ - все задачи,
+     * с любой из границ - только задачи со временем начала.
+     */
+    private NavigableSet<Task> getTimeline(LocalDateTime from, LocalDateTime to) {
+        if (from == null && to == null) {
+            return sortedTasks;
+        }
+        Task toKey = new Task().setStartTime(to == null ? Task.DEFAULT_START_TIME : to).setId(Long.MIN_VALUE);
+        if (from == null) {
+            return sortedTasks.headSet(toKey, false);
+        }
+        Task fromKey = new Task().setStartTime(from).setId(Long.MIN_VALUE);
+        // интервалы задач не пересекаются, поэтому начаться раньше from и закончиться после него может только одна задача
+        Task previous = sortedTasks.lower(fromKey);
+        if (previous != null && previous.getEndTime().isAfter(from)) {
+            fromKey = previous;
+        }
+        if (TASK_COMPARATOR.compare(fromKey, toKey) >= 0) {
+            return Collections.emptyNavigableSet();
+        }
+        return sortedTasks.subSet(fromKey, true, toKey, false);
+    }
+
+    /**
+     * Задачи timeline строго после курсора. Курсор может оказаться вне границ окна (например, удалена задача,
+     * которая начиналась до окна и пересекала его), а tailSet у представления subSet/headSet за границами бросает
+     * IllegalArgumentException, поэтому ключ сначала сравнивается с крайними задачами окна.
+     */
+    private static NavigableSet<Task> after(NavigableSet<Task> timeline, Task cursorKey) {
+        if (timeline.isEmpty() || TASK_COMPARATOR.compare(cursorKey, timeline.last()) >= 0) {
+            return Collections.emptyNavigableSet();
+        }
+        if (TASK_COMPARATOR.compare(cursorKey, timeline.first()) < 0) {
+            return timeline;
+        }
+        return timeline.tailSet(cursorKey, false);
+    }
+
     @Override
     public List<Long> getHistory() {
         return historyManager.getHistory();
@@ -94,8 +155,9 @@ public class InMemoryTaskManager implements TaskManager {
 
     @Override
     public void clearTasks() {
-        tasks.keySet().forEach(historyManager::remove);
+        tasks.forEachKey(historyManager::remove);
         tasks.values().forEach(this::unclaimIntervals);
+        tasks.values().forEach(sortedTasks::remove);
         tasks.clear();
     }
 
@@ -116,7 +178,7 @@ public class InMemoryTaskManager implements TaskManager {
         if (task == null) {
             throw new ManagerTaskBadInputException("Задача не может быть создана: task = null");
         }
-        if (tasks.get(task.getId()) != null) {
+        if (task.getId() != null && tasks.containsKey(task.getId())) {
             throw new ManagerTaskAlreadyExistException("Задача не может быть создана: задача с таким id уже существует " + task.getId());
         }
         if (!claimIntervals(task)) {
@@ -134,7 +196,7 @@ public class InMemoryTaskManager implements TaskManager {
         if (task == null) {
             throw new ManagerTaskBadInputException("Задача не может быть обновлена: task = null");
         }
-        if (!tasks.containsKey(task.getId())) {
+        if (task.getId() == null || !tasks.containsKey(task.getId())) {
             throw new ManagerTaskNotFoundException("Обновляемая задача не найдена: id = " + task.getId());
         }
         Task existingTask = tasks.get(task.getId());
@@ -150,9 +212,12 @@ public class InMemoryTaskManager implements TaskManager {
 
     @Override
     public void removeTask(Long id) {
-        if (id == null) {
-            return;
+        if (id != null) {
+            deleteTask(id);
         }
+    }
+
+    private void deleteTask(long id) {
         Task removedTask = tasks.remove(id);
         if (removedTask != null) {
             unclaimIntervals(removedTask);
@@ -169,14 +234,11 @@ public class InMemoryTaskManager implements TaskManager {
 
     @Override
     public void clearSubtasks() {
-        subtasks.keySet().forEach(historyManager::remove);
+        subtasks.forEachKey(historyManager::remove);
         subtasks.values().forEach(sortedTasks::remove);
         subtasks.values().forEach(this::unclaimIntervals);
         subtasks.clear();
-        epics.values().forEach(epic -> {
-            epic.clearSubtaskIds();
-            epic.setStatus(Status.NEW);
-        });
+        epics.values().forEach(Epic::clearSubtasks);
     }
 
     @Override
@@ -196,7 +258,7 @@ public class InMemoryTaskManager implements TaskManager {
         if (subtask == null) {
             throw new ManagerTaskBadInputException("Подзадача не может быть создана: subtask = null");
         }
-        if (subtasks.get(subtask.getId()) != null) {
+        if (subtask.getId() != null && subtasks.containsKey(subtask.getId())) {
             throw new ManagerTaskAlreadyExistException("Подзадача не может быть создана: задача с таким id уже существует " + subtask.getId());
         }
         if (!epics.containsKey(subtask.getEpicId())) {
@@ -206,12 +268,9 @@ public class InMemoryTaskManager implements TaskManager {
             throw new ManagerTaskTimeIntersectionException("Подзадача не может быть создана: пересекаются интервалы");
         }
         subtask.setId(generateId());
-        Epic epic = epics.get(subtask.getEpicId());
-        epic.addSubtaskId(subtask.getId());
         subtasks.put(subtask.getId(), subtask);
         sortedTasks.add(subtask);
-        updateStatus(epic);
-        updateTime(epic);
+        epics.get(subtask.getEpicId()).addSubtask(subtask);
         return subtask.getId();
     }
 
@@ -220,7 +279,7 @@ public class InMemoryTaskManager implements TaskManager {
         if (subtask == null) {
             throw new ManagerTaskBadInputException("Подзадача не может быть обновлена: subtask = null");
         }
-        if (!subtasks.containsKey(subtask.getId())) {
+        if (subtask.getId() == null || !subtasks.containsKey(subtask.getId())) {
             throw new ManagerTaskNotFoundException("Обновляемая подзадача не найдена");
         }
         Subtask existingSubtask = subtasks.get(subtask.getId());
@@ -229,29 +288,27 @@ public class InMemoryTaskManager implements TaskManager {
             claimIntervals(existingSubtask);
             throw new ManagerTaskException("Подзадача не может быть обновлена: пересекаются интервалы");
         }
-        Epic epic = epics.get(existingSubtask.getEpicId());
         subtasks.put(subtask.getId(), subtask);
         sortedTasks.remove(existingSubtask);
         sortedTasks.add(subtask);
-        updateStatus(epic);
-        updateTime(epic);
+        epics.get(existingSubtask.getEpicId()).updateSubtask(existingSubtask, subtask);
     }
 
     @Override
     public void removeSubtask(Long id) {
-        if (id == null) {
-            return;
+        if (id != null) {
+            deleteSubtask(id);
         }
+    }
+
+    private void deleteSubtask(long id) {
         Subtask subtask = subtasks.get(id);
         if (subtask != null) {
             unclaimIntervals(subtask);
-            Epic epic = epics.get(subtask.getEpicId());
-            epic.removeSubtaskId(id);
             subtasks.remove(id);
             sortedTasks.remove(subtask);
             historyManager.remove(id);
-            updateStatus(epic);
-            updateTime(epic);
+            epics.get(subtask.getEpicId()).removeSubtask(subtask);
         }
     }
 
@@ -263,9 +320,9 @@ public class InMemoryTaskManager implements TaskManager {
 
     @Override
     public void clearEpics() {
-        epics.keySet().forEach(historyManager::remove);
+        epics.forEachKey(historyManager::remove);
         subtasks.values().forEach(this::unclaimIntervals);
-        subtasks.keySet().forEach(historyManager::remove);
+        subtasks.forEachKey(historyManager::remove);
         subtasks.values().forEach(sortedTasks::remove);
         epics.clear();
         subtasks.clear();
@@ -288,7 +345,7 @@ public class InMemoryTaskManager implements TaskManager {
         if (epic == null) {
             throw new ManagerTaskBadInputException("Эпик не может быть создан: epic = null");
         }
-        if (epics.get(epic.getId()) != null) {
+        if (epic.getId() != null && epics.containsKey(epic.getId())) {
             throw new ManagerTaskAlreadyExistException("Эпик не может быть создан: задача с таким id уже существует " + epic.getId());
         }
         epic.setId(generateId());
@@ -301,84 +358,241 @@ public class InMemoryTaskManager implements TaskManager {
         if (epic == null) {
             throw new ManagerTaskBadInputException("Эпик не может быть обновлен: epic = null");
         }
-        if (!epics.containsKey(epic.getId())) {
+        if (epic.getId() == null || !epics.containsKey(epic.getId())) {
             throw new ManagerTaskException("Обновляемый эпик не найден");
         }
-        epics.put(epic.getId(), epic);
+        replace(epics.get(epic.getId()), epic);
     }
 
     @Override
     public void removeEpic(Long id) {
-        if (id == null) {
-            return;
+        if (id != null) {
+            deleteEpic(id);
         }
+    }
+
+    private void deleteEpic(long id) {
         Epic epic = epics.get(id);
         if (epic != null) {
-            epic.getSubtaskIds().forEach(subtasks::remove);
+            epic.getSubtaskIds().forEachLong(subtaskId -> {
+                Subtask subtask = subtasks.remove(subtaskId);
+                unclaimIntervals(subtask);
+                sortedTasks.remove(subtask);
+            });
             epics.remove(id);
-            epic.getSubtaskIds().forEach(historyManager::remove);
+            epic.getSubtaskIds().forEachLong(historyManager::remove);
             historyManager.remove(id);
         }
     }
 
     @Override
     public List<Subtask> getEpicSubtasks(Long epicId) {
-        Epic epic = epics.get(epicId);
+        Epic epic = epicId == null ? null : epics.get(epicId);
         if (epic == null) {
             throw new ManagerTaskNotFoundException("Невозможно получить список подзадач: не найден эпик");
         }
-        return epic.getSubtaskIds().stream().map(subtasks::get).collect(Collectors.toList());
-    }
-
-    private void updateTime(Epic epic) {
-        if (epic.getSubtaskIds().size() > 0) {
-            Optional<LocalDateTime> min = epic.getSubtaskIds().stream()
-                    .map(subtasks::get)
-                    .map(Subtask::getStartTime)
-                    .filter(startTime -> !startTime.equals(Task.DEFAULT_START_TIME))
-                    .min(LocalDateTime::compareTo);
-            if (min.isPresent()) {
-                Optional<LocalDateTime> max = epic.getSubtaskIds().stream()
-                        .map(subtasks::get)
-                        .filter(t -> !t.getStartTime().equals(Task.DEFAULT_START_TIME))
-                        .map(Task::getEndTime)
-                        .max(LocalDateTime::compareTo);
-                if (max.isPresent()) {
-                    int duration = epic.getSubtaskIds().stream()
-                            .map(subtasks::get)
-                            .reduce(0, (sum, t) -> sum + t.getDuration(), Integer::sum);
-                    epic.setDuration(duration);
-                    epic.setStartTime(min.get());
-                    epic.setEndTime(max.get());
-                    return;
-                }
+        List<Subtask> epicSubtasks = new ArrayList<>(epic.getSubtaskIds().size());
+        epic.getSubtaskIds().forEachLong(subtaskId -> epicSubtasks.add(subtasks.get(subtaskId)));
+        return epicSubtasks;
+    }
+
+    // Batch
+    @Override
+    public List<Long> createAll(Collection<? extends Task> newTasks) throws ManagerTaskException {
+        if (newTasks == null) {
+            throw new ManagerTaskBadInputException("Задачи не могут быть созданы: tasks = null");
+        }
+        int position = 0;
+        for (Task task : newTasks) {
+            if (task == null) {
+                throw new ManagerTaskBadInputException("Задачи не могут быть созданы: task = null, позиция " + position);
+            }
+            if (task.getId() != null && getAnyTask(task.getId()) != null) {
+                throw new ManagerTaskAlreadyExistException("Задачи не могут быть созданы: задача с таким id уже существует "
+                        + task.getId());
+            }
+            if (task instanceof Subtask && !epics.containsKey(((Subtask) task).getEpicId())) {
+                throw new ManagerTaskException("Задачи не могут быть созданы: не найден епик, позиция " + position);
+            }
+            position++;
+        }
+        claimAll(newTasks, List.of(), "Задачи не могут быть созданы: пересекаются интервалы, позиция ");
+
+        List<Long> ids = new ArrayList<>(newTasks.size());
+        for (Task task : newTasks) {
+            task.setId(generateId());
+            insert(task);
+            ids.add(task.getId());
+        }
+        return ids;
+    }
+
+    @Override
+    public void updateAll(Collection<? extends Task> changedTasks) throws ManagerTaskException {
+        if (changedTasks == null) {
+            throw new ManagerTaskBadInputException("Задачи не могут быть обновлены: tasks = null");
+        }
+        List<Task> existingTasks = new ArrayList<>(changedTasks.size());
+        Set<Long> ids = new HashSet<>();
+        for (Task task : changedTasks) {
+            if (task == null) {
+                throw new ManagerTaskBadInputException("Задачи не могут быть обновлены: task = null");
+            }
+            Task existingTask = task.getId() == null ? null : getAnyTask(task.getId());
+            if (existingTask == null || existingTask.getClass() != task.getClass()) {
+                throw new ManagerTaskNotFoundException("Обновляемая задача не найдена: id = " + task.getId());
+            }
+            if (!ids.add(task.getId())) {
+                throw new ManagerTaskBadInputException("Задачи не могут быть обновлены: id повторяется " + task.getId());
+            }
+            existingTasks.add(existingTask);
+        }
+        existingTasks.forEach(this::unclaimIntervals);
+        claimAll(changedTasks, existingTasks, "Задачи не могут быть обновлены: пересекаются интервалы, позиция ");
+
+        Iterator<Task> existingIterator = existingTasks.iterator();
+        for (Task task : changedTasks) {
+            replace(existingIterator.next(), task);
+        }
+    }
+
+    @Override
+    public void removeAll(Collection<Long> ids) {
+        if (ids == null) {
+            return;
+        }
+        for (Long id : ids) {
+            if (id != null) {
+                discard(id);
             }
         }
-        epic.setDuration(0);
-        epic.setStartTime(LocalDateTime.MAX);
-        epic.setEndTime(LocalDateTime.MAX);
-    }
-
-    private void updateStatus(Epic epic) {
-        Status newStatus = null;
-        for (Long subtaskId : epic.getSubtaskIds()) {
-            Subtask subtask = subtasks.get(subtaskId);
-            if (newStatus != null) {
-                if (subtask.getStatus() != newStatus) {
-                    newStatus = Status.IN_PROGRESS;
-                    break;
-                }
-            } else {
-                newStatus = subtask.getStatus();
+    }
+
+    /**
+     * Удаляет задачу любого типа (эпик - вместе с подзадачами) без проверок и уведомлений наследников.
+     */
+    protected void discard(long id) {
+        if (tasks.containsKey(id)) {
+            deleteTask(id);
+        } else if (subtasks.containsKey(id)) {
+            deleteSubtask(id);
+        } else {
+            deleteEpic(id);
+        }
+    }
+
+    /**
+     * Восстанавливает сохраненную задачу с ее id: новая задача добавляется, существующая заменяется.
+     * Используется при загрузке из файла и журнала, поэтому пересечение интервалов не проверяется: если
+     * интервал задачи уже занят другой, задача восстанавливается без занятого интервала.
+     */
+    protected void restore(Task task) {
+        Task existingTask = getAnyTask(task.getId());
+        if (existingTask instanceof Epic) {
+            replace(existingTask, task);
+        } else if (existingTask != null) {
+            unclaimIntervals(existingTask);
+            claimIntervals(task);
+            replace(existingTask, task);
+        } else {
+            claimIntervals(task);
+            insert(task);
+            reserveId(task.getId());
+        }
+    }
+
+    /**
+     * Добавляет загруженные задачи с их id за один проход: эпики, затем подзадачи и задачи вместе с индексами
+     * по времени и пересчетом эпиков. Пересечение интервалов не проверяется.
+     */
+    protected void restoreAll(Collection<? extends Task> loaded) {
+        for (Task task : loaded) {
+            if (task instanceof Epic) {
+                Epic epic = (Epic) task;
+                epic.clearSubtasks();
+                epics.put(epic.getId(), epic);
+                reserveId(epic.getId());
             }
         }
-        if (newStatus == null || subtasks.isEmpty()) {
-            newStatus = Status.NEW;
+        for (Task task : loaded) {
+            if (!(task instanceof Epic)) {
+                claimIntervals(task);
+                insert(task);
+                reserveId(task.getId());
+            }
         }
-        epic.setStatus(newStatus);
     }
 
-    private long generateId() {
+    /**
+     * Сдвигает генератор так, чтобы новые задачи не получили id уже загруженной задачи.
+     */
+    protected void reserveId(long id) {
+        sequenceId = Math.max(sequenceId, id + 1);
+    }
+
+    private void insert(Task task) {
+        if (task instanceof Epic) {
+            epics.put(task.getId(), (Epic) task);
+        } else if (task instanceof Subtask) {
+            Subtask subtask = (Subtask) task;
+            subtasks.put(subtask.getId(), subtask);
+            sortedTasks.add(subtask);
+            epics.get(subtask.getEpicId()).addSubtask(subtask);
+        } else {
+            tasks.put(task.getId(), task);
+            sortedTasks.add(task);
+        }
+    }
+
+    private void replace(Task existingTask, Task task) {
+        if (task instanceof Epic) {
+            // состав и сводные поля эпика определяются хранимыми подзадачами, а не присланной копией
+            Epic epic = (Epic) task;
+            epic.clearSubtasks();
+            ((Epic) existingTask).getSubtaskIds().forEachLong(subtaskId -> epic.addSubtask(subtasks.get(subtaskId)));
+            epics.put(epic.getId(), epic);
+            return;
+        }
+        sortedTasks.remove(existingTask);
+        sortedTasks.add(task);
+        if (task instanceof Subtask) {
+            subtasks.put(task.getId(), (Subtask) task);
+            Subtask existingSubtask = (Subtask) existingTask;
+            epics.get(existingSubtask.getEpicId()).updateSubtask(existingSubtask, (Subtask) task);
+        } else {
+            tasks.put(task.getId(), task);
+        }
+    }
+
+    /**
+     * Занимает интервалы всех задач пакета. При пересечении освобождает уже занятые интервалы пакета,
+     * возвращает интервалы задач restoreOnFailure и бросает исключение - состояние менеджера не меняется.
+     */
+    private void claimAll(Collection<? extends Task> batch, List<Task> restoreOnFailure, String message)
+            throws ManagerTaskTimeIntersectionException {
+        List<Task> claimed = new ArrayList<>(batch.size());
+        for (Task task : batch) {
+            if (!claimIntervals(task)) {
+                claimed.forEach(this::unclaimIntervals);
+                restoreOnFailure.forEach(this::claimIntervals);
+                throw new ManagerTaskTimeIntersectionException(message + claimed.size());
+            }
+            claimed.add(task);
+        }
+    }
+
+    private Task getAnyTask(long id) {
+        Task task = tasks.get(id);
+        if (task == null) {
+            task = subtasks.get(id);
+        }
+        if (task == null) {
+            task = epics.get(id);
+        }
+        return task;
+    }
+
+    protected long generateId() {
         return sequenceId++;
     }
 }
@@ -0,0 +1,14 @@
+package manager;
+
+public interface IntervalIndex {
+    int DEFAULT_GRANULARITY = 15;
+    int EXACT_GRANULARITY = 1;
+
+    boolean claim(long startMinute, long endMinute);
+
+    void release(long startMinute, long endMinute);
+
+    boolean isFree(long startMinute, long endMinute);
+
+    void clear();
+}
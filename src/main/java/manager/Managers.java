@@ -1,5 +1,6 @@
 package manager;
 
+import api.KVTaskClient;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import task.Epic;
@@ -15,7 +16,11 @@ public class Managers {
 
     public static TaskManager getDefault() {
         URI defaultKVServerUrl = URI.create("http://localhost:8078");
-        return new HttpTaskManager(defaultKVServerUrl);
+        KVTaskClient client = KVTaskClient.async(defaultKVServerUrl, KVTaskClient.DEFAULT_CONNECT_TIMEOUT,
+                KVTaskClient.DEFAULT_REQUEST_TIMEOUT, KVTaskClient.DEFAULT_MAX_IN_FLIGHT);
+        HttpTaskManager manager = new HttpTaskManager(client, null);
+        manager.subscribe();
+        return manager;
     }
 
     public static TaskManager getFileBackedTasksManager() {
@@ -23,6 +28,10 @@ public class Managers {
         return new FileBackedTasksManager(defaultSavePath);
     }
 
+    public static TaskManager getConcurrent(TaskManager taskManager) {
+        return new ConcurrentTaskManager(taskManager);
+    }
+
     public static HistoryManager getDefaultHistory() {
         return new InMemoryHistoryManager();
     }
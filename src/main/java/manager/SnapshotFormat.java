@@ -0,0 +1,21 @@
+package manager;
+
+import java.nio.file.Path;
+
+/**
+ * Формат полного снимка FileBackedTasksManager. Выбирается по расширению файла: *.bin - двоичный,
+ * остальные - CSV. При загрузке формат определяется по содержимому файла.
+ */
+public enum SnapshotFormat {
+    CSV,
+    BINARY;
+
+    public static final String BINARY_EXTENSION = ".bin";
+
+    public static SnapshotFormat of(Path file) {
+        if (file != null && file.getFileName().toString().endsWith(BINARY_EXTENSION)) {
+            return BINARY;
+        }
+        return CSV;
+    }
+}
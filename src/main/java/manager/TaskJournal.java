@@ -0,0 +1,158 @@
+package manager;
+
+import exception.ManagerSaveException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Журнал изменений менеджера: каждая операция дописывается в конец файла одной строкой. После
+ * compactionThreshold записей менеджер сохраняет полный снимок и очищает журнал.
+ * <p>
+ * Файл открывается при первой записи и остается открытым до {@link #close()} или очистки журнала.
+ * Сброс на диск - по {@link SyncPolicy}: после каждой записи или только в {@link #sync()}, который менеджер
+ * вызывает в flush и close.
+ */
+public class TaskJournal implements AutoCloseable {
+    public enum SyncPolicy {
+        /** Запись подтверждается после сброса на диск. */
+        APPEND,
+        /** Журнал сбрасывается на диск в {@link #sync()}; до этого записи могут потеряться при сбое ОС. */
+        FLUSH
+    }
+
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 10_000;
+
+    private final Path file;
+    private final int compactionThreshold;
+    private final SyncPolicy syncPolicy;
+    private FileChannel channel;
+    private int size;
+
+    public TaskJournal(Path file) {
+        this(file, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    public TaskJournal(Path file, int compactionThreshold) {
+        this(file, compactionThreshold, SyncPolicy.FLUSH);
+    }
+
+    public TaskJournal(Path file, int compactionThreshold, SyncPolicy syncPolicy) {
+        if (compactionThreshold < 1) {
+            throw new IllegalArgumentException("Порог сжатия журнала должен быть положительным: " + compactionThreshold);
+        }
+        this.file = file;
+        this.compactionThreshold = compactionThreshold;
+        this.syncPolicy = syncPolicy;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean needsCompaction() {
+        return size >= compactionThreshold;
+    }
+
+    public void append(List<String> records) throws ManagerSaveException {
+        if (records.isEmpty()) {
+            return;
+        }
+        StringBuilder builder = new StringBuilder();
+        for (String record : records) {
+            builder.append(record).append(System.lineSeparator());
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(builder.toString());
+        try {
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (syncPolicy == SyncPolicy.APPEND) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new ManagerSaveException(e.getMessage());
+        }
+        size += records.size();
+    }
+
+    /**
+     * Сбрасывает записанное на диск. С {@link SyncPolicy#APPEND} записи уже сброшены.
+     */
+    public void sync() throws ManagerSaveException {
+        if (channel == null || syncPolicy == SyncPolicy.APPEND) {
+            return;
+        }
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new ManagerSaveException(e.getMessage());
+        }
+    }
+
+    public List<String> read() throws IOException {
+        if (!Files.exists(file)) {
+            size = 0;
+            return new ArrayList<>();
+        }
+        List<String> records = new ArrayList<>(Files.readAllLines(file));
+        records.removeIf(String::isEmpty);
+        size = records.size();
+        return records;
+    }
+
+    public void clear() throws ManagerSaveException {
+        try {
+            closeChannel();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new ManagerSaveException(e.getMessage());
+        }
+        size = 0;
+    }
+
+    /**
+     * Сбрасывает записанное на диск и закрывает файл. Следующая запись откроет его снова.
+     */
+    @Override
+    public void close() throws ManagerSaveException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            sync();
+            closeChannel();
+        } catch (IOException e) {
+            throw new ManagerSaveException(e.getMessage());
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            try {
+                channel.close();
+            } finally {
+                channel = null;
+            }
+        }
+    }
+}
@@ -5,6 +5,7 @@ import task.Epic;
 import task.Subtask;
 import task.Task;
 
+import java.time.LocalDateTime;
 import java.util.Collection;
 import java.util.List;
 
@@ -12,6 +13,11 @@ public interface TaskManager {
 
     List<Task> getPrioritizedTasks();
 
+    List<Task> getPrioritizedTasks(LocalDateTime from, LocalDateTime to);
+
+    TaskPage getPrioritizedTasksPage(LocalDateTime from, LocalDateTime to, String cursor, int limit)
+            throws ManagerTaskException;
+
     List<Long> getHistory();
 
     // Task
@@ -54,4 +60,11 @@ public interface TaskManager {
     void removeEpic(Long id);
 
     List<Subtask> getEpicSubtasks(Long epicId);
+
+    // Batch
+    List<Long> createAll(Collection<? extends Task> newTasks) throws ManagerTaskException;
+
+    void updateAll(Collection<? extends Task> changedTasks) throws ManagerTaskException;
+
+    void removeAll(Collection<Long> ids);
 }
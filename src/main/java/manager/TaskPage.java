@@ -0,0 +1,57 @@
+package manager;
+
+import exception.ManagerTaskBadInputException;
+import task.Task;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+public class TaskPage {
+    private static final String CURSOR_SEPARATOR = "_";
+
+    private final List<Task> tasks;
+    private final String nextCursor;
+
+    public TaskPage(List<Task> tasks, String nextCursor) {
+        this.tasks = tasks;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Task> getTasks() {
+        return tasks;
+    }
+
+    /**
+     * Курсор следующей страницы или null, если страница последняя.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+
+    static String toCursor(Task task) {
+        return task.getStartTime() + CURSOR_SEPARATOR + task.getId();
+    }
+
+    /**
+     * Курсор - это позиция последней выданной задачи в отсортированном наборе (время начала и id),
+     * поэтому он остается корректным, даже если сама задача уже удалена.
+     */
+    static Task fromCursor(String cursor) throws ManagerTaskBadInputException {
+        int separator = cursor.lastIndexOf(CURSOR_SEPARATOR);
+        if (separator < 0) {
+            throw new ManagerTaskBadInputException("Некорректный курсор: " + cursor);
+        }
+        try {
+            LocalDateTime startTime = LocalDateTime.parse(cursor.substring(0, separator));
+            long id = Long.parseLong(cursor.substring(separator + 1));
+            return new Task().setStartTime(startTime).setId(id);
+        } catch (DateTimeParseException | NumberFormatException e) {
+            throw new ManagerTaskBadInputException("Некорректный курсор: " + cursor);
+        }
+    }
+}
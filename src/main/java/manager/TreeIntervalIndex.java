@@ -0,0 +1,80 @@
+package manager;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Индекс занятых временных интервалов. Время задается в минутах от эпохи, интервал [начало, окончание)
+ * расширяется до границ слотов размером granularity минут; задача, которая заканчивается там, где начинается
+ * другая, с ней не пересекается. Интервал нулевой длины занимает один слот. Занятые слоты не пересекаются,
+ * поэтому для проверки достаточно соседних записей дерева.
+ */
+public class TreeIntervalIndex implements IntervalIndex {
+    private final int granularity;
+    private final TreeMap<Long, Long> slots;
+
+    public TreeIntervalIndex() {
+        this(DEFAULT_GRANULARITY);
+    }
+
+    public TreeIntervalIndex(int granularity) {
+        if (granularity < 1) {
+            throw new IllegalArgumentException("Размер слота должен быть положительным: " + granularity);
+        }
+        this.granularity = granularity;
+        slots = new TreeMap<>();
+    }
+
+    public int getGranularity() {
+        return granularity;
+    }
+
+    @Override
+    public boolean claim(long startMinute, long endMinute) {
+        long start = slotStart(startMinute);
+        long end = slotEnd(start, endMinute);
+        if (!isFreeSlots(start, end)) {
+            return false;
+        }
+        slots.put(start, end);
+        return true;
+    }
+
+    @Override
+    public void release(long startMinute, long endMinute) {
+        long start = slotStart(startMinute);
+        slots.remove(start, slotEnd(start, endMinute));
+    }
+
+    @Override
+    public boolean isFree(long startMinute, long endMinute) {
+        long start = slotStart(startMinute);
+        return isFreeSlots(start, slotEnd(start, endMinute));
+    }
+
+    @Override
+    public void clear() {
+        slots.clear();
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    private boolean isFreeSlots(long start, long end) {
+        Map.Entry<Long, Long> before = slots.floorEntry(start);
+        if (before != null && before.getValue() > start) {
+            return false;
+        }
+        Long after = slots.higherKey(start);
+        return after == null || after >= end;
+    }
+
+    private long slotStart(long minute) {
+        return Math.floorDiv(minute, granularity) * granularity;
+    }
+
+    private long slotEnd(long start, long minute) {
+        return Math.max(start + granularity, -Math.floorDiv(-minute, granularity) * granularity);
+    }
+}
@@ -0,0 +1,130 @@
+package manager;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Настройки отложенного сохранения: изменения копятся и записываются одной операцией не позже чем через
+ * maxDelay после первого несохраненного изменения или сразу после maxPending изменений.
+ */
+public class WriteBehind {
+    private final long maxDelayMillis;
+    private final int maxPending;
+
+    public WriteBehind(Duration maxDelay, int maxPending) {
+        if (maxDelay == null || maxDelay.isNegative() || maxDelay.isZero()) {
+            throw new IllegalArgumentException("Задержка сохранения должна быть положительной: " + maxDelay);
+        }
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("Число несохраненных изменений должно быть положительным: " + maxPending);
+        }
+        this.maxDelayMillis = maxDelay.toMillis();
+        this.maxPending = maxPending;
+    }
+
+    public Duration getMaxDelay() {
+        return Duration.ofMillis(maxDelayMillis);
+    }
+
+    public int getMaxPending() {
+        return maxPending;
+    }
+
+    Flusher newFlusher(Object lock, Runnable writer) {
+        return new Flusher(lock, writer);
+    }
+
+    /**
+     * Фоновая запись изменений. Все методы выполняются под lock - тем же монитором, под которым
+     * менеджер меняет свое состояние, поэтому запись видит согласованное состояние.
+     */
+    class Flusher {
+        private final Object lock;
+        private final Runnable writer;
+        private final ScheduledExecutorService executor;
+        private final Thread shutdownHook;
+        private ScheduledFuture<?> scheduled;
+        private int pending;
+        private boolean closed;
+
+        private Flusher(Object lock, Runnable writer) {
+            this.lock = lock;
+            this.writer = writer;
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "task-manager-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            shutdownHook = new Thread(this::flush, "task-manager-flusher-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+
+        void markDirty() {
+            synchronized (lock) {
+                if (closed) {
+                    writer.run();
+                    return;
+                }
+                pending++;
+                if (pending >= maxPending) {
+                    flush();
+                } else if (scheduled == null) {
+                    scheduled = executor.schedule(this::flushInBackground, maxDelayMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        int getPending() {
+            synchronized (lock) {
+                return pending;
+            }
+        }
+
+        void flush() {
+            synchronized (lock) {
+                if (scheduled != null) {
+                    scheduled.cancel(false);
+                    scheduled = null;
+                }
+                if (pending == 0) {
+                    return;
+                }
+                writer.run();
+                pending = 0;
+            }
+        }
+
+        private void flushInBackground() {
+            synchronized (lock) {
+                scheduled = null;
+                try {
+                    flush();
+                } catch (RuntimeException e) {
+                    // изменения остаются несохраненными, следующая попытка - через maxDelay
+                    if (!closed) {
+                        scheduled = executor.schedule(this::flushInBackground, maxDelayMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        }
+
+        void close() {
+            synchronized (lock) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                executor.shutdownNow();
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // JVM уже завершается, хук выполнится сам
+                }
+                flush();
+            }
+        }
+    }
+}
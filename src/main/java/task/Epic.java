@@ -2,38 +2,130 @@ package task;
 
 import exception.TaskDataUndefinedException;
 
+import util.LongHashSet;
+import util.LongObjectHashMap;
+
 import java.time.LocalDateTime;
-import java.util.Collection;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class Epic extends Task {
     public static final LocalDateTime DEFAULT_END_TIME = LocalDateTime.MAX;
-    private final Collection<Long> subtaskIds;
+    private final LongHashSet subtaskIds;
     private LocalDateTime endTime;
+    // агрегаты по подзадачам: пересчитываются при каждом изменении за O(log n), а не полным обходом
+    private final transient int[] statusCounts;
+    private final transient TreeMap<LocalDateTime, Integer> startTimes;
+    private final transient TreeMap<LocalDateTime, Integer> endTimes;
+    private transient int subtasksDuration;
+    // вклад каждой подзадачи запоминается при учете: хранимый экземпляр могут изменить до вызова update
+    private final transient LongObjectHashMap<Contribution> contributions;
 
     public Epic() {
         super();
         type = TaskType.EPIC;
-        subtaskIds = new HashSet<>();
+        subtaskIds = new LongHashSet();
+        statusCounts = new int[Status.values().length];
+        startTimes = new TreeMap<>();
+        endTimes = new TreeMap<>();
+        contributions = new LongObjectHashMap<>();
         duration = Task.DEFAULT_DURATION;
         startTime = Task.DEFAULT_START_TIME;
         endTime = DEFAULT_END_TIME;
     }
 
-    public Collection<Long> getSubtaskIds() {
+    public LongHashSet getSubtaskIds() {
         return subtaskIds;
     }
 
-    public void addSubtaskId(long id) {
-        subtaskIds.add(id);
+    public void addSubtask(Subtask subtask) {
+        if (subtaskIds.add(subtask.getId())) {
+            account(subtask);
+            refresh();
+        }
     }
 
-    public void removeSubtaskId(long id) {
-        subtaskIds.remove(id);
+    public void updateSubtask(Subtask oldSubtask, Subtask newSubtask) {
+        if (subtaskIds.remove(oldSubtask.getId())) {
+            unaccount(oldSubtask.getId());
+        }
+        subtaskIds.add(newSubtask.getId());
+        unaccount(newSubtask.getId());
+        account(newSubtask);
+        refresh();
     }
 
-    public void clearSubtaskIds() {
+    public void removeSubtask(Subtask subtask) {
+        if (subtaskIds.remove(subtask.getId())) {
+            unaccount(subtask.getId());
+            refresh();
+        }
+    }
+
+    public void clearSubtasks() {
+        if (subtaskIds.isEmpty()) {
+            return;
+        }
         subtaskIds.clear();
+        Arrays.fill(statusCounts, 0);
+        startTimes.clear();
+        endTimes.clear();
+        contributions.clear();
+        subtasksDuration = 0;
+        refresh();
+    }
+
+    private void account(Subtask subtask) {
+        Contribution contribution = new Contribution(subtask);
+        contributions.put(subtask.getId(), contribution);
+        apply(contribution, 1);
+    }
+
+    private void unaccount(long subtaskId) {
+        Contribution contribution = contributions.remove(subtaskId);
+        if (contribution != null) {
+            apply(contribution, -1);
+        }
+    }
+
+    private void apply(Contribution contribution, int delta) {
+        statusCounts[contribution.status.ordinal()] += delta;
+        subtasksDuration += delta * contribution.duration;
+        if (!contribution.startTime.equals(Task.DEFAULT_START_TIME)) {
+            count(startTimes, contribution.startTime, delta);
+            count(endTimes, contribution.endTime, delta);
+        }
+    }
+
+    private static void count(TreeMap<LocalDateTime, Integer> times, LocalDateTime time, int delta) {
+        times.merge(time, delta, (a, b) -> a + b == 0 ? null : a + b);
+    }
+
+    private void refresh() {
+        Status newStatus = Status.IN_PROGRESS;
+        if (subtaskIds.isEmpty()) {
+            newStatus = Status.NEW;
+        } else {
+            for (Status status : Status.values()) {
+                if (statusCounts[status.ordinal()] == subtaskIds.size()) {
+                    newStatus = status;
+                    break;
+                }
+            }
+        }
+        setStatus(newStatus);
+
+        Map.Entry<LocalDateTime, Integer> first = startTimes.firstEntry();
+        if (first != null) {
+            duration = subtasksDuration;
+            startTime = first.getKey();
+            endTime = endTimes.lastKey();
+        } else {
+            duration = Task.DEFAULT_DURATION;
+            startTime = Task.DEFAULT_START_TIME;
+            endTime = DEFAULT_END_TIME;
+        }
     }
 
     public void setEndTime(LocalDateTime endTime) {
@@ -83,6 +175,20 @@ public class Epic extends Task {
         return duration == Task.DEFAULT_DURATION || startTime == Task.DEFAULT_START_TIME;
     }
 
+    private static final class Contribution {
+        private final Status status;
+        private final int duration;
+        private final LocalDateTime startTime;
+        private final LocalDateTime endTime;
+
+        private Contribution(Subtask subtask) {
+            status = subtask.getStatus();
+            duration = subtask.getDuration();
+            startTime = subtask.getStartTime();
+            endTime = startTime.equals(Task.DEFAULT_START_TIME) ? null : subtask.getEndTime();
+        }
+    }
+
     @Override
     public String toString() {
         return "Epic{" +
@@ -0,0 +1,30 @@
+package util;
+
+final class HashUtils {
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private HashUtils() {}
+
+    static int hash(long key) {
+        int h = (int) (key ^ (key >>> 32));
+        return h ^ (h >>> 16);
+    }
+
+    static int tableSize(int expectedSize, float loadFactor) {
+        int capacity = 2;
+        while (capacity < MAX_CAPACITY && capacity * loadFactor < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Лежит ли home циклически в полуинтервале (gap, index]: тогда элемент из index нельзя сдвигать в gap.
+     */
+    static boolean isBetween(int gap, int home, int index) {
+        if (gap <= index) {
+            return gap < home && home <= index;
+        }
+        return gap < home || home <= index;
+    }
+}
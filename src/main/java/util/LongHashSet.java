@@ -0,0 +1,172 @@
+package util;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.function.LongConsumer;
+
+/**
+ * Множество примитивов long на хеш-таблице с открытой адресацией. Методы Collection с Long оставлены
+ * для совместимости (в том числе для сериализации Gson), основной API - примитивный.
+ */
+public class LongHashSet extends AbstractSet<Long> {
+    private static final int DEFAULT_EXPECTED_SIZE = 4;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    private long[] keys;
+    private boolean[] used;
+    private int size;
+    private int threshold;
+
+    public LongHashSet() {
+        this(DEFAULT_EXPECTED_SIZE);
+    }
+
+    public LongHashSet(int expectedSize) {
+        allocate(HashUtils.tableSize(expectedSize, LOAD_FACTOR));
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(long key) {
+        return used[indexOf(key)];
+    }
+
+    public boolean add(long key) {
+        int index = indexOf(key);
+        if (used[index]) {
+            return false;
+        }
+        keys[index] = key;
+        used[index] = true;
+        if (++size > threshold) {
+            allocate(keys.length << 1);
+        }
+        return true;
+    }
+
+    public boolean remove(long key) {
+        int index = indexOf(key);
+        if (!used[index]) {
+            return false;
+        }
+        shiftBack(index);
+        size--;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Long && contains(((Long) o).longValue());
+    }
+
+    @Override
+    public boolean add(Long key) {
+        return add(key.longValue());
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return o instanceof Long && remove(((Long) o).longValue());
+    }
+
+    @Override
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(used, false);
+            size = 0;
+        }
+    }
+
+    public void forEachLong(LongConsumer action) {
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                action.accept(keys[i]);
+            }
+        }
+    }
+
+    public PrimitiveIterator.OfLong longIterator() {
+        return new KeyIterator();
+    }
+
+    @Override
+    public Iterator<Long> iterator() {
+        return longIterator();
+    }
+
+    private int indexOf(long key) {
+        int mask = keys.length - 1;
+        int index = HashUtils.hash(key) & mask;
+        while (used[index] && keys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private void shiftBack(int gap) {
+        int mask = keys.length - 1;
+        int index = gap;
+        while (true) {
+            index = (index + 1) & mask;
+            if (!used[index]) {
+                break;
+            }
+            int home = HashUtils.hash(keys[index]) & mask;
+            if (HashUtils.isBetween(gap, home, index)) {
+                continue;
+            }
+            keys[gap] = keys[index];
+            gap = index;
+        }
+        used[gap] = false;
+    }
+
+    private void allocate(int capacity) {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+        if (oldUsed != null) {
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (oldUsed[i]) {
+                    int index = indexOf(oldKeys[i]);
+                    keys[index] = oldKeys[i];
+                    used[index] = true;
+                }
+            }
+        }
+    }
+
+    private class KeyIterator implements PrimitiveIterator.OfLong {
+        private int next = advance(0);
+
+        private int advance(int from) {
+            while (from < used.length && !used[from]) {
+                from++;
+            }
+            return from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < used.length;
+        }
+
+        @Override
+        public long nextLong() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            long key = keys[next];
+            next = advance(next + 1);
+            return key;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package api;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Сравнение прежнего поиска конечной точки перебором со скомпилированной таблицей
+ * {@link HttpTaskServer.Endpoint#route}. JMH в проекте нет, поэтому это обычная программа с прогревом:
+ * {@code java -cp target/classes:target/test-classes api.EndpointRouteBenchmark}.
+ */
+public class EndpointRouteBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 5;
+    private static final int ITERATIONS = 1_000_000;
+    private static final String[][] REQUESTS = {
+            {"GET", "/tasks/task/", null},
+            {"GET", "/tasks/task/", "id=42"},
+            {"DELETE", "/tasks/epic/", "id=7"},
+            {"GET", "/tasks/subtask/epic/", "id=3"},
+            {"GET", "/tasks", "from=2023-01-01T00:00&to=2023-02-01T00:00&limit=50"},
+            {"POST", "/tasks/batch", null},
+            {"GET", "/wrong/path/", null}
+    };
+
+    public static void main(String[] args) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            measure(true);
+            measure(false);
+        }
+        for (int i = 0; i < ROUNDS; i++) {
+            System.out.printf("перебор: %.1f нс/запрос, таблица: %.1f нс/запрос%n", measure(true), measure(false));
+        }
+    }
+
+    private static double measure(boolean legacy) {
+        int blackhole = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            String[] request = REQUESTS[i % REQUESTS.length];
+            HttpTaskServer.Endpoint endpoint = legacy
+                    ? legacyRoute(request[0], request[1], request[2])
+                    : HttpTaskServer.Endpoint.route(request[0], request[1], request[2]);
+            blackhole += endpoint.ordinal();
+        }
+        double nanosPerRequest = (double) (System.nanoTime() - start) / ITERATIONS;
+        if (blackhole == -1) {
+            System.out.println(blackhole);
+        }
+        return nanosPerRequest;
+    }
+
+    // прежняя реализация Endpoint.getEndpoint
+    private static HttpTaskServer.Endpoint legacyRoute(String requestMethod, String requestPath,
+                                                       String requestParams) {
+        List<HttpTaskServer.Endpoint> endpoints = Arrays.stream(HttpTaskServer.Endpoint.values())
+                .filter(e -> e != HttpTaskServer.Endpoint.UNKNOWN)
+                .filter(endpoint -> String.valueOf(endpoint.getMethod()).equals(requestMethod))
+                .filter(endpoint -> endpoint.getPath().equals(requestPath))
+                .filter(endpoint -> {
+                    if (requestParams == null && endpoint.getParams().isEmpty()) {
+                        return true;
+                    } else if (requestParams == null) {
+                        return false;
+                    } else if (endpoint.getParams().isEmpty()) {
+                        return false;
+                    } else {
+                        String[] splitRequestParams = requestParams.split("&");
+                        Optional<String> mismatchParam = Arrays.stream(splitRequestParams)
+                                .map(p -> p.substring(0, p.indexOf("=")))
+                                .filter(p -> !endpoint.getParams().contains(p)).findFirst();
+                        return mismatchParam.isEmpty();
+                    }
+                }).collect(Collectors.toList());
+        if (endpoints.isEmpty()) {
+            return HttpTaskServer.Endpoint.UNKNOWN;
+        } else if (endpoints.size() == 1) {
+            return endpoints.get(0);
+        } else {
+            throw new RuntimeException("Конфликт конечных точек");
+        }
+    }
+}
@@ -3,6 +3,7 @@ package api;
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
 import exception.TaskDataUndefinedException;
+import manager.HttpTaskManager;
 import manager.Managers;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -14,13 +15,18 @@ import task.TaskType;
 
 import java.io.IOException;
 import java.net.URI;
+import java.net.URLEncoder;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -336,8 +342,11 @@ class HttpTaskServerTest {
         assertEquals(updatedTask.getName(), responseTask.getName());
         assertEquals(updatedTask.getDescription(), responseTask.getDescription());
 
-        assertThrows(TaskDataUndefinedException.class, responseTask::getStartTime);
-        assertThrows(TaskDataUndefinedException.class, responseTask::getDuration);
+        // подзадачи остаются в эпике, даже если присланная копия их не перечисляет
+        assertTrue(responseTask.getSubtaskIds().contains(serverSubtask.getId()));
+        final HttpResponse<String> subtasksResponse = sendGet(URI.create(TASK_SERVER_URI
+                + HttpTaskServer.Endpoint.GET_EPIC_SUBTASKS.getPath(Map.of("id", String.valueOf(serverEpic.getId())))));
+        assertEquals(1, JsonParser.parseString(subtasksResponse.body()).getAsJsonArray().size());
     }
 
     @Test
@@ -409,6 +418,79 @@ class HttpTaskServerTest {
         assertEquals(serverSubtask, prioritizedTasks.get(0));
     }
 
+    @Test
+    void should_getPrioritizedTasksRange() throws IOException, InterruptedException {
+        final URI postUri = URI.create(TASK_SERVER_URI + HttpTaskServer.Endpoint.POST_TASK.getPath());
+        final LocalDateTime startTime = LocalDateTime.of(2020, 1, 6, 8, 0);
+        for (int i = 0; i < 3; i++) {
+            sendPost(postUri, gson.toJson(new Task().setStartTime(startTime.plusHours(i)).setDuration(30)));
+        }
+        final String path = HttpTaskServer.Endpoint.GET_PRIORITIZED_TASKS_RANGE.getPath();
+
+        final HttpResponse<String> weekResponse = sendGet(URI.create(TASK_SERVER_URI + path
+                + "?from=2020-01-05T00:00&to=2020-01-06T09:00"));
+
+        assertEquals(200, weekResponse.statusCode());
+        assertEquals(2, JsonParser.parseString(weekResponse.body()).getAsJsonArray().size());
+        assertEquals(serverSubtask.getId().longValue(), JsonParser.parseString(weekResponse.body()).getAsJsonArray()
+                .get(0).getAsJsonObject().get("id").getAsLong());
+
+        final HttpResponse<String> firstPage = sendGet(URI.create(TASK_SERVER_URI + path + "?limit=3"));
+        final String cursor = firstPage.headers().firstValue("X-Next-Cursor").orElseThrow();
+        final HttpResponse<String> secondPage = sendGet(URI.create(TASK_SERVER_URI + path
+                + "?limit=3&cursor=" + URLEncoder.encode(cursor, StandardCharsets.UTF_8)));
+
+        assertEquals(3, JsonParser.parseString(firstPage.body()).getAsJsonArray().size());
+        assertEquals(2, JsonParser.parseString(secondPage.body()).getAsJsonArray().size());
+        assertTrue(secondPage.headers().firstValue("X-Next-Cursor").isEmpty());
+        assertEquals(400, sendGet(URI.create(TASK_SERVER_URI + path + "?from=yesterday")).statusCode());
+        assertEquals(400, sendGet(URI.create(TASK_SERVER_URI + path + "?limit=1&cursor=wrong")).statusCode());
+
+        final HttpResponse<String> outsidePage = sendGet(URI.create(TASK_SERVER_URI + path
+                + "?from=2020-01-06T08:00&to=2020-01-06T09:00&limit=3&cursor="
+                + URLEncoder.encode("2019-01-01T00:00_0", StandardCharsets.UTF_8)));
+
+        assertEquals(200, outsidePage.statusCode());
+        assertEquals(1, JsonParser.parseString(outsidePage.body()).getAsJsonArray().size());
+    }
+
+    @Test
+    void should_return400_When_QueryParamsMalformed() throws IOException, InterruptedException {
+        final String path = HttpTaskServer.Endpoint.GET_PRIORITIZED_TASKS_RANGE.getPath();
+
+        assertEquals(400, sendGet(URI.create(TASK_SERVER_URI + path + "?limit")).statusCode());
+        assertEquals(400, sendGet(URI.create(TASK_SERVER_URI + path + "?limit=")).statusCode());
+        assertEquals(400, sendGet(URI.create(TASK_SERVER_URI + path + "?limit=3&cursor=")).statusCode());
+        assertEquals(400, sendGet(URI.create(TASK_SERVER_URI + path + "?=3")).statusCode());
+        assertEquals(400, sendGet(URI.create(TASK_SERVER_URI
+                + HttpTaskServer.Endpoint.GET_TASK.getPath() + "?id")).statusCode());
+
+        final HttpResponse<String> trailingAmpersand = sendGet(URI.create(TASK_SERVER_URI + path + "?limit=1&"));
+
+        assertEquals(200, trailingAmpersand.statusCode());
+        assertEquals(1, JsonParser.parseString(trailingAmpersand.body()).getAsJsonArray().size());
+    }
+
+    @Test
+    void should_createBatch() throws IOException, InterruptedException {
+        final URI uri = URI.create(TASK_SERVER_URI + HttpTaskServer.Endpoint.POST_BATCH.getPath());
+        final JsonArray batch = new JsonArray();
+        batch.add(gson.toJsonTree(new Task().setName("batch task"), Task.class));
+        batch.add(gson.toJsonTree(new Subtask(serverEpic.getId()).setName("batch subtask"), Subtask.class));
+        batch.add(gson.toJsonTree(new Epic().setName("batch epic"), Epic.class));
+
+        final HttpResponse<String> response = sendPost(uri, batch.toString());
+
+        assertEquals(201, response.statusCode());
+        assertEquals(3, JsonParser.parseString(response.body()).getAsJsonArray().size());
+
+        final HttpResponse<String> subtasksResponse = sendGet(URI.create(TASK_SERVER_URI
+                + HttpTaskServer.Endpoint.GET_EPIC_SUBTASKS.getPath(Map.of("id", String.valueOf(serverEpic.getId())))));
+        assertEquals(2, JsonParser.parseString(subtasksResponse.body()).getAsJsonArray().size());
+        assertEquals(400, sendPost(uri, "[{\"type\":\"SUBTASK\",\"epicId\":-1}]").statusCode());
+        assertEquals(400, sendPost(uri, "{}").statusCode());
+    }
+
     @Test
     void should_getCorrectStatusCode() throws IOException, InterruptedException {
         assertEquals(404, sendGet(URI.create(TASK_SERVER_URI + "/wrong/path/")).statusCode());
@@ -426,6 +508,87 @@ class HttpTaskServerTest {
 
     }
 
+    @Test
+    void should_createAllTasks_When_RequestsAreConcurrent() throws IOException, InterruptedException {
+        final URI postUri = URI.create(TASK_SERVER_URI + HttpTaskServer.Endpoint.POST_TASK.getPath());
+        final int requests = 50;
+        final List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            final String body = gson.toJson(new Task().setName("Parallel task " + i));
+            responses.add(client.sendAsync(HttpRequest.newBuilder().uri(postUri)
+                    .POST(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.ofString()));
+        }
+        final Set<String> ids = new HashSet<>();
+        for (CompletableFuture<HttpResponse<String>> response : responses) {
+            assertEquals(201, response.join().statusCode());
+            ids.add(response.join().body());
+        }
+        assertEquals(requests, ids.size());
+
+        final HttpResponse<String> tasksResponse = sendGet(
+                URI.create(TASK_SERVER_URI + HttpTaskServer.Endpoint.GET_TASKS.getPath()));
+        assertEquals(requests + 1, JsonParser.parseString(tasksResponse.body()).getAsJsonArray().size());
+    }
+
+    @Test
+    void should_persistAcknowledgedWrites_When_Stopped() throws IOException, InterruptedException {
+        final URI postUri = URI.create(TASK_SERVER_URI + HttpTaskServer.Endpoint.POST_TASK.getPath());
+        final int requests = 20;
+        final List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            final String body = gson.toJson(new Task().setName("Stop task " + i));
+            responses.add(client.sendAsync(HttpRequest.newBuilder().uri(postUri)
+                    .POST(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.ofString()));
+        }
+        responses.forEach(response -> assertEquals(201, response.join().statusCode()));
+
+        taskServer.stop();
+
+        assertEquals(requests + 1, new HttpTaskManager(URI.create("http://localhost:8078")).getTasks().size());
+
+        taskServer = new HttpTaskServer();
+        taskServer.start();
+    }
+
+    @Test
+    void should_fallBackToPool_When_VirtualThreadsUnavailable() throws IOException, InterruptedException {
+        taskServer.stop();
+        taskServer = new HttpTaskServer(2, true);
+        taskServer.start();
+
+        assertEquals(Runtime.version().feature() >= 21, taskServer.isVirtualThreads());
+        assertEquals(200, sendGet(URI.create(TASK_SERVER_URI + HttpTaskServer.Endpoint.GET_TASKS.getPath()))
+                .statusCode());
+        assertThrows(IllegalArgumentException.class, () -> new HttpTaskServer(0, false));
+    }
+
+    @Test
+    void should_routeRequests_When_EndpointTableCompiled() {
+        assertEquals(HttpTaskServer.Endpoint.GET_TASKS, HttpTaskServer.Endpoint.route("GET", "/tasks/task/", null));
+        assertEquals(HttpTaskServer.Endpoint.GET_TASK, HttpTaskServer.Endpoint.route("GET", "/tasks/task/", "id=1"));
+        assertEquals(HttpTaskServer.Endpoint.DELETE_EPIC,
+                HttpTaskServer.Endpoint.route("DELETE", "/tasks/epic/", "id=1&"));
+        assertEquals(HttpTaskServer.Endpoint.GET_EPIC_SUBTASKS,
+                HttpTaskServer.Endpoint.route("GET", "/tasks/subtask/epic/", "id=3"));
+        assertEquals(HttpTaskServer.Endpoint.GET_PRIORITIZED_TASKS, HttpTaskServer.Endpoint.route("GET", "/tasks", null));
+        assertEquals(HttpTaskServer.Endpoint.GET_PRIORITIZED_TASKS_RANGE,
+                HttpTaskServer.Endpoint.route("GET", "/tasks", "limit=5&from=2023-01-01T00:00"));
+
+        assertEquals(HttpTaskServer.Endpoint.UNKNOWN, HttpTaskServer.Endpoint.route("PUT", "/tasks/task/", null));
+        assertEquals(HttpTaskServer.Endpoint.UNKNOWN, HttpTaskServer.Endpoint.route("GET", "/tasks/task", null));
+        assertEquals(HttpTaskServer.Endpoint.UNKNOWN, HttpTaskServer.Endpoint.route("GET", "/tasks/task/", "ids=1"));
+        assertEquals(HttpTaskServer.Endpoint.UNKNOWN, HttpTaskServer.Endpoint.route("GET", "/tasks/task/", "id=1&x=2"));
+        assertEquals(HttpTaskServer.Endpoint.UNKNOWN, HttpTaskServer.Endpoint.route("POST", "/tasks/task/", "id=1"));
+    }
+
+    @Test
+    void should_return404_When_MethodUnsupported() throws IOException, InterruptedException {
+        final URI uri = URI.create(TASK_SERVER_URI + HttpTaskServer.Endpoint.GET_TASKS.getPath());
+        final HttpResponse<String> response = client.send(HttpRequest.newBuilder().uri(uri)
+                .PUT(HttpRequest.BodyPublishers.ofString("{}")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, response.statusCode());
+    }
+
     private HttpResponse<String> sendPost(URI uri, String body) throws IOException, InterruptedException {
         final HttpRequest.BodyPublisher bodyPublisher = HttpRequest.BodyPublishers.ofString(body);
         final HttpRequest request = HttpRequest.newBuilder().uri(uri).POST(bodyPublisher).build();
@@ -0,0 +1,462 @@
+package api;
+
+import exception.KVStorageFullException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KVStorageTest {
+    private static final Duration FSYNC_INTERVAL = Duration.ofMillis(10);
+    private Path directory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("kv-storage");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private KVStorage open(KVStorage.FsyncPolicy policy) throws IOException {
+        return new KVStorage(directory.resolve("kv.log"), policy, FSYNC_INTERVAL);
+    }
+
+    @Test
+    void should_replayLog_When_Reopened() throws IOException {
+        for (KVStorage.FsyncPolicy policy : KVStorage.FsyncPolicy.values()) {
+            try (KVStorage storage = open(policy)) {
+                storage.put("key", "value " + policy);
+                storage.putAll(Map.of("a", "1", "b", "2"));
+                storage.put("a", "3");
+                storage.remove("b");
+            }
+
+            try (KVStorage storage = open(policy)) {
+                assertEquals("value " + policy, storage.get("key"));
+                assertEquals("3", storage.get("a"));
+                assertNull(storage.get("b"));
+                assertEquals(2, storage.size());
+            }
+        }
+    }
+
+    @Test
+    void should_keepBytes_When_Reopened() throws IOException {
+        final byte[] value = new byte[70_000];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) (i * 31);
+        }
+        try (KVStorage storage = new KVStorage(directory.resolve("kv.log"), KVStorage.FsyncPolicy.NEVER,
+                FSYNC_INTERVAL, 1)) {
+            storage.put("blob", value);
+            storage.put("text", "значение");
+            assertSame(value, storage.getBytes("blob"));
+            storage.compact();
+            storage.put("blob", value);
+        }
+
+        try (KVStorage storage = open(KVStorage.FsyncPolicy.NEVER)) {
+            assertArrayEquals(value, storage.getBytes("blob"));
+            assertEquals("значение", storage.get("text"));
+        }
+    }
+
+    @Test
+    void should_dropTornRecord_When_LogTailIsIncomplete() throws IOException {
+        final Path file = directory.resolve("kv.log");
+        try (KVStorage storage = open(KVStorage.FsyncPolicy.ALWAYS)) {
+            storage.put("first", "1");
+            storage.put("second", "2");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        try (KVStorage storage = open(KVStorage.FsyncPolicy.ALWAYS)) {
+            assertEquals("1", storage.get("first"));
+            assertNull(storage.get("second"));
+            storage.put("third", "3");
+        }
+
+        try (KVStorage storage = open(KVStorage.FsyncPolicy.ALWAYS)) {
+            assertEquals("1", storage.get("first"));
+            assertEquals("3", storage.get("third"));
+        }
+    }
+
+    @Test
+    void should_stopReplay_When_CrcMismatch() throws IOException {
+        final Path file = directory.resolve("kv.log");
+        long firstRecordEnd;
+        try (KVStorage storage = open(KVStorage.FsyncPolicy.ALWAYS)) {
+            storage.put("first", "1");
+            firstRecordEnd = Files.size(file);
+            storage.put("second", "2");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(raf.length() - 1);
+            raf.write('X');
+        }
+
+        try (KVStorage storage = open(KVStorage.FsyncPolicy.ALWAYS)) {
+            assertEquals("1", storage.get("first"));
+            assertNull(storage.get("second"));
+        }
+        assertEquals(firstRecordEnd, Files.size(file));
+    }
+
+    @Test
+    void should_compactLog_When_ThresholdExceeded() throws IOException {
+        final Path file = directory.resolve("kv.log");
+        try (KVStorage storage = new KVStorage(file, KVStorage.FsyncPolicy.NEVER, FSYNC_INTERVAL, 10)) {
+            storage.put("other", "value");
+            for (int i = 0; i < 1000; i++) {
+                storage.put("key", "value " + i);
+            }
+            assertTrue(Files.size(file) < 1000, "Журнал не сжат: " + Files.size(file) + " байт");
+        }
+
+        try (KVStorage storage = open(KVStorage.FsyncPolicy.NEVER)) {
+            assertEquals("value 999", storage.get("key"));
+            assertEquals("value", storage.get("other"));
+        }
+        assertFalse(Files.exists(directory.resolve("kv.log.tmp")));
+    }
+
+    @Test
+    void should_keepVersions_When_CompactedAndReopened() throws IOException {
+        final Path file = directory.resolve("kv.log");
+        long version;
+        long removedVersion;
+        try (KVStorage storage = new KVStorage(file, KVStorage.FsyncPolicy.NEVER, FSYNC_INTERVAL, 10)) {
+            assertTrue(storage.putIfVersion("key", "v1", KVStorage.NO_VERSION).isPresent());
+            assertTrue(storage.putIfVersion("key", "v2", KVStorage.NO_VERSION).isEmpty());
+            for (int i = 0; i < 50; i++) {
+                storage.put("other", "value " + i);
+            }
+            version = storage.getEntry("key").getVersion();
+            removedVersion = storage.put("removed", "value");
+            storage.remove("removed");
+            storage.compact();
+        }
+
+        try (KVStorage storage = open(KVStorage.FsyncPolicy.NEVER)) {
+            assertEquals(version, storage.getEntry("key").getVersion());
+            assertTrue(storage.putIfVersion("key", "v3", version + 1).isEmpty());
+            assertTrue(storage.putIfVersion("key", "v3", version).getAsLong() > removedVersion);
+            assertTrue(storage.put("removed", "again") > removedVersion);
+        }
+    }
+
+    @Test
+    void should_keepChangeFeed() {
+        final KVStorage storage = new KVStorage();
+        final List<Long> notified = new ArrayList<>();
+        storage.setChangeListener(notified::add);
+        final long first = storage.put("a", "1");
+        final long second = storage.putAll(Map.of("b", "2", "c", "3"));
+        storage.remove("a");
+
+        final List<KVStorage.Change> changes = storage.changesSince(first);
+
+        assertEquals(3, changes.size());
+        assertEquals(second, changes.get(0).getVersion());
+        assertEquals("a", changes.get(2).getKey());
+        assertTrue(changes.get(2).isRemoved());
+        assertEquals(storage.getRevision(), changes.get(2).getVersion());
+        assertEquals(List.of(first, second, storage.getRevision()), notified);
+        assertTrue(storage.changesSince(storage.getRevision()).isEmpty());
+        assertNull(storage.changesSince(storage.getRevision() + 1));
+
+        for (int i = 0; i < KVStorage.CHANGE_FEED_SIZE; i++) {
+            storage.put("key", "value " + i);
+        }
+        assertNull(storage.changesSince(first));
+    }
+
+    @Test
+    void should_keepAllWrites_When_ConcurrentPuts() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try (KVStorage storage = new KVStorage(directory.resolve("kv.log"), KVStorage.FsyncPolicy.ALWAYS,
+                FSYNC_INTERVAL, 100)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 8; thread++) {
+                final int threadId = thread;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        storage.put("key" + threadId + "-" + (i % 20), "value " + i);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        try (KVStorage storage = open(KVStorage.FsyncPolicy.ALWAYS)) {
+            assertEquals(8 * 20, storage.size());
+            for (int thread = 0; thread < 8; thread++) {
+                for (int i = 0; i < 20; i++) {
+                    assertEquals("value " + (80 + i), storage.get("key" + thread + "-" + i));
+                }
+            }
+        }
+    }
+
+    @Test
+    void should_keepData_When_KVServerRestarted() throws IOException {
+        final URI uri = URI.create("http://localhost:" + KVServer.PORT);
+        KVServer kvServer = new KVServer(2, false, open(KVStorage.FsyncPolicy.INTERVAL));
+        kvServer.start();
+        try {
+            final KVTaskClient client = new KVTaskClient(uri);
+            client.put("key", "value");
+            client.putAll(Map.of("a", "1", "b", "2"));
+        } finally {
+            kvServer.stop();
+        }
+
+        kvServer = new KVServer(2, false, open(KVStorage.FsyncPolicy.INTERVAL));
+        kvServer.start();
+        try {
+            final KVTaskClient client = new KVTaskClient(uri);
+            assertEquals("value", client.load("key"));
+            assertEquals(Map.of("a", "1", "b", "2"), client.loadAll(List.of("a", "b", "c")));
+        } finally {
+            kvServer.stop();
+        }
+    }
+
+    // 2 символа ключа, 100 байт значения и накладные расходы: бюджет 2000 байт вмещает 10 записей
+    private static final long TEN_ENTRIES = 10 * (2 * 2 + 100 + 96);
+
+    // без spill вытесняются только записи со сроком жизни
+    private static void putEntries(KVStorage storage, int from, int to) {
+        for (int i = from; i < to; i++) {
+            storage.put(String.format("%02d", i), new byte[100], Duration.ofHours(1));
+        }
+    }
+
+    @Test
+    void should_evictLeastRecentlyRead_When_LRU() throws IOException {
+        try (KVStorage storage = new KVStorage(new KVEviction(TEN_ENTRIES, KVEviction.Policy.LRU))) {
+            putEntries(storage, 0, 10);
+            assertNotNull(storage.getBytes("00"));
+
+            putEntries(storage, 10, 11);
+
+            assertNotNull(storage.getBytes("00"));
+            assertNull(storage.getBytes("01"));
+            assertNull(storage.getBytes("02"));
+            assertNotNull(storage.getBytes("03"));
+            assertNotNull(storage.getBytes("10"));
+            final KVStorage.Stats stats = storage.getStats();
+            assertEquals(2, stats.getEvictions());
+            assertEquals(9, stats.getKeysInMemory());
+            assertTrue(stats.getUsedBytes() <= TEN_ENTRIES);
+            assertEquals(4, stats.getHits());
+            assertEquals(2, stats.getMisses());
+        }
+    }
+
+    @Test
+    void should_evictLeastFrequentlyRead_When_LFU() throws IOException {
+        try (KVStorage storage = new KVStorage(new KVEviction(TEN_ENTRIES, KVEviction.Policy.LFU))) {
+            putEntries(storage, 0, 10);
+            for (int read = 0; read < 3; read++) {
+                for (int i = 0; i < 8; i++) {
+                    storage.getBytes(String.format("%02d", i));
+                }
+            }
+
+            putEntries(storage, 10, 11);
+
+            assertEquals(9, storage.size());
+            assertNull(storage.getEntry("08"));
+            assertNull(storage.getEntry("09"));
+            assertNotNull(storage.getEntry("10"));
+        }
+    }
+
+    @Test
+    void should_keepNonExpiringKeys_When_EvictedWithoutSpill() throws IOException {
+        try (KVStorage storage = new KVStorage(new KVEviction(TEN_ENTRIES, KVEviction.Policy.LRU))) {
+            storage.put("m", new byte[100]);
+            putEntries(storage, 0, 9);
+            storage.put("n", new byte[100]);
+            storage.put("o", new byte[100]);
+
+            assertNotNull(storage.getEntry("m"));
+            assertNotNull(storage.getEntry("n"));
+            assertNotNull(storage.getEntry("o"));
+            assertNull(storage.getEntry("00"));
+            assertEquals(2, storage.getStats().getEvictions());
+        }
+    }
+
+    @Test
+    void should_rejectWrite_When_NonExpiringKeysExceedBudgetWithoutSpill() throws IOException {
+        try (KVStorage storage = new KVStorage(new KVEviction(TEN_ENTRIES, KVEviction.Policy.LRU))) {
+            for (int i = 0; i < 10; i++) {
+                storage.put(String.format("%02d", i), new byte[100]);
+            }
+
+            assertThrows(KVStorageFullException.class, () -> storage.put("10", new byte[100]));
+            assertThrows(KVStorageFullException.class, () -> storage.putAll(Map.of("10", "value")));
+            assertThrows(KVStorageFullException.class,
+                    () -> storage.putIfVersion("10", new byte[100], KVStorage.NO_VERSION));
+            assertNull(storage.getEntry("10"));
+            // перезапись бессрочного ключа того же размера помещается
+            assertDoesNotThrow(() -> storage.put("00", new byte[100]));
+
+            final KVStorage.Stats stats = storage.getStats();
+            assertEquals(10, stats.getKeysInMemory());
+            assertEquals(TEN_ENTRIES, stats.getUsedBytes());
+            assertEquals(0, stats.getEvictions());
+        }
+    }
+
+    @Test
+    void should_readSpilledValues_When_Evicted() throws IOException {
+        final Path spillDirectory = directory.resolve("spill");
+        final KVEviction eviction = new KVEviction(TEN_ENTRIES, KVEviction.Policy.LRU, spillDirectory);
+        try (KVStorage storage = new KVStorage(directory.resolve("kv.log"), KVStorage.FsyncPolicy.NEVER,
+                FSYNC_INTERVAL, KVStorage.DEFAULT_COMPACTION_RECORDS, eviction)) {
+            for (int i = 0; i < 30; i++) {
+                storage.put(String.format("%02d", i), "value " + i);
+            }
+            assertTrue(storage.getStats().getKeysSpilled() > 0);
+            final long version = storage.getEntry("00").getVersion();
+
+            for (int i = 0; i < 30; i++) {
+                assertEquals("value " + i, storage.get(String.format("%02d", i)));
+            }
+            assertEquals(version, storage.getEntry("00").getVersion());
+            assertEquals(30, storage.size());
+            assertTrue(storage.getStats().getSpillReads() > 0);
+            assertEquals(0, storage.getStats().getMisses());
+            storage.remove("00");
+            assertNull(storage.get("00"));
+            storage.compact();
+        }
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            assertEquals(0, files.count());
+        }
+
+        try (KVStorage storage = open(KVStorage.FsyncPolicy.NEVER)) {
+            assertEquals(29, storage.size());
+            assertEquals("value 29", storage.get("29"));
+        }
+    }
+
+    @Test
+    void should_rejectValue_When_LargerThanBudget() throws IOException {
+        try (KVStorage storage = new KVStorage(new KVEviction(1000, KVEviction.Policy.LRU))) {
+            assertThrows(KVStorageFullException.class, () -> storage.put("key", new byte[1000]));
+            assertEquals(0, storage.size());
+        }
+    }
+
+    @Test
+    void should_removeKey_When_TtlExpired() throws Exception {
+        try (KVStorage storage = new KVStorage(directory.resolve("kv.log"), KVStorage.FsyncPolicy.NEVER,
+                FSYNC_INTERVAL)) {
+            final long version = storage.put("short", "value".getBytes(), Duration.ofMillis(50));
+            storage.put("long", "value".getBytes(), Duration.ofHours(1));
+            storage.put("forever", "value");
+            assertEquals("value", storage.get("short"));
+
+            Thread.sleep(60);
+
+            assertNull(storage.get("short"));
+            assertTrue(storage.putIfVersion("short", "new".getBytes(), KVStorage.NO_VERSION,
+                    Duration.ofMillis(50)).isPresent());
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (storage.getStats().getExpirations() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(KVStorage.REAPER_INTERVAL_MILLIS);
+            }
+            assertEquals(1, storage.getStats().getExpirations());
+            assertEquals(2, storage.size());
+            final List<KVStorage.Change> changes = storage.changesSince(version);
+            assertTrue(changes.get(changes.size() - 1).isRemoved());
+            storage.put("short", "value".getBytes(), Duration.ofMillis(50));
+        }
+        Thread.sleep(60);
+
+        try (KVStorage storage = open(KVStorage.FsyncPolicy.NEVER)) {
+            assertNull(storage.get("short"));
+            assertEquals("value", storage.get("long"));
+            assertEquals("value", storage.get("forever"));
+            assertEquals(2, storage.size());
+        }
+    }
+
+    @Test
+    void should_matchPrimary_When_ReplicationApplied() throws IOException {
+        final KVStorage primary = new KVStorage();
+        try (KVStorage replica = new KVStorage(directory.resolve("replica.log"), KVStorage.FsyncPolicy.NEVER,
+                FSYNC_INTERVAL)) {
+            replica.setReplica();
+            primary.put("a", "1");
+            primary.putAll(Map.of("b", "2", "c", "3"));
+            primary.put("a", "4");
+
+            assertTrue(replica.applyReplication(KVStorage.Replication.decode(primary.replicationSince(0).encode())));
+            primary.remove("b");
+            primary.put("d", "5");
+            final KVStorage.Replication next = primary.replicationSince(replica.getRevision());
+            assertEquals(2, next.getRecords().size());
+            assertTrue(replica.applyReplication(next));
+            assertFalse(replica.applyReplication(primary.replicationSince(0)));
+
+            assertEquals(primary.getRevision(), replica.getRevision());
+            for (String key : List.of("a", "b", "c", "d")) {
+                final KVStorage.Entry expected = primary.getEntry(key);
+                final KVStorage.Entry actual = replica.getEntry(key);
+                assertEquals(expected == null, actual == null, key);
+                if (expected != null) {
+                    assertArrayEquals(expected.getValue(), actual.getValue());
+                    assertEquals(expected.getVersion(), actual.getVersion());
+                }
+            }
+            assertTrue(replica.changesSince(next.getSince()).get(0).isRemoved());
+        }
+
+        try (KVStorage replica = new KVStorage(directory.resolve("replica.log"), KVStorage.FsyncPolicy.NEVER,
+                FSYNC_INTERVAL)) {
+            replica.setReplica();
+            assertEquals(primary.getRevision(), replica.getRevision());
+            final KVStorage other = new KVStorage();
+            other.put("x", "1");
+
+            assertTrue(replica.applyReplication(other.replicationSnapshot()));
+
+            assertEquals(1, replica.size());
+            assertEquals("1", replica.get("x"));
+            assertNull(replica.changesSince(0));
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package api;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import exception.KVTaskClientConflictException;
+import exception.KVTaskClientException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KVTaskClientTest {
+    private static final URI KV_SERVER_URI = URI.create("http://localhost:" + KVServer.PORT);
+    private KVServer kvServer;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        kvServer = new KVServer();
+        kvServer.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        kvServer.stop();
+    }
+
+    @Test
+    void should_coalescePuts_ToSameKey() {
+        final KVTaskClient client = KVTaskClient.async(KV_SERVER_URI, Duration.ofSeconds(1), Duration.ofSeconds(5), 1);
+        final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(client.put("key", "value " + i));
+        }
+
+        KVTaskClient.join(client.flush());
+
+        assertEquals("value 99", client.load("key"));
+        assertTrue(futures.stream().distinct().count() <= 3);
+        futures.forEach(future -> assertTrue(future.isDone() && !future.isCompletedExceptionally()));
+    }
+
+    @Test
+    void should_readOwnWrites_When_Async() {
+        final KVTaskClient client = KVTaskClient.async(KV_SERVER_URI, Duration.ofSeconds(1), Duration.ofSeconds(5), 4);
+        for (int i = 0; i < 50; i++) {
+            client.put("key" + i, "value " + i);
+        }
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals("value " + i, client.load("key" + i));
+        }
+    }
+
+    @Test
+    void should_failFuture_When_ServerUnavailable() {
+        final KVTaskClient client = KVTaskClient.async(KV_SERVER_URI, Duration.ofSeconds(1), Duration.ofSeconds(1), 4);
+        kvServer.stop();
+
+        final CompletableFuture<Void> future = client.put("key", "value");
+
+        assertThrows(KVTaskClientException.class, () -> KVTaskClient.join(future));
+        assertThrows(KVTaskClientException.class, () -> new KVTaskClient(KV_SERVER_URI).put("key", "value"));
+    }
+
+    @Test
+    void should_failFuture_And_FreeSlot_When_VersionMalformed() throws IOException {
+        final HttpServer stub = HttpServer.create(new InetSocketAddress(0), 0);
+        stub.createContext("/register", exchange -> respond(exchange, "DEBUG"));
+        stub.createContext("/save/", exchange -> {
+            exchange.getResponseHeaders().add("ETag", "\"not-a-version\"");
+            respond(exchange, "");
+        });
+        stub.start();
+        try {
+            final KVTaskClient client = KVTaskClient.async(URI.create("http://localhost:" + stub.getAddress().getPort()),
+                    Duration.ofSeconds(1), Duration.ofSeconds(1), 1);
+
+            final CompletableFuture<Void> first = client.put("first", "value");
+            final CompletableFuture<Void> second = client.put("second", "value");
+
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+                assertThrows(KVTaskClientException.class, () -> KVTaskClient.join(first));
+                assertThrows(KVTaskClientException.class, () -> KVTaskClient.join(second));
+                assertDoesNotThrow(() -> KVTaskClient.join(client.flush()));
+            });
+        } finally {
+            stub.stop(0);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, bytes.length == 0 ? -1 : bytes.length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+
+    @Test
+    void should_putAll_loadAll_InBatches() {
+        final KVTaskClient client = new KVTaskClient(KV_SERVER_URI);
+        final Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < KVTaskClient.MAX_BATCH_SIZE * 2 + 500; i++) {
+            values.put("key" + i, "{\"value\":" + i + "}");
+        }
+
+        client.putAll(values);
+        final List<String> keys = new ArrayList<>(values.keySet());
+        keys.add("missing");
+
+        assertEquals(values, client.loadAll(keys));
+        assertEquals("{\"value\":7}", client.load("key7"));
+        assertEquals(Map.of(), client.loadAll(List.of()));
+    }
+
+    @Test
+    void should_putIfVersion_When_VersionMatches() {
+        final KVTaskClient client = new KVTaskClient(KV_SERVER_URI);
+        final KVTaskClient other = new KVTaskClient(KV_SERVER_URI);
+
+        assertNull(client.loadVersioned("key").getValue());
+        assertEquals(KVTaskClient.NO_VERSION, client.loadVersioned("key").getVersion());
+        final long created = client.putIfVersion("key", "v1", KVTaskClient.NO_VERSION);
+        assertThrows(KVTaskClientConflictException.class,
+                () -> other.putIfVersion("key", "other", KVTaskClient.NO_VERSION));
+
+        final KVTaskClient.Versioned loaded = other.loadVersioned("key");
+        assertEquals("v1", loaded.getValue());
+        assertEquals(created, loaded.getVersion());
+        final long updated = other.putIfVersion("key", "v2", loaded.getVersion());
+
+        assertTrue(updated > created);
+        assertThrows(KVTaskClientConflictException.class, () -> client.putIfVersion("key", "v3", created));
+        client.put("key", "blind");
+        assertTrue(client.loadVersioned("key").getVersion() > updated);
+        assertEquals("blind", other.load("key"));
+    }
+
+    @Test
+    void should_watchChanges_When_KeysWritten() throws Exception {
+        final KVTaskClient client = new KVTaskClient(KV_SERVER_URI);
+        final long revision = client.getRevision();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        final Future<KVTaskClient.Changes> watched = executor.submit(() -> client.watch(revision, Duration.ofSeconds(10)));
+        executor.shutdown();
+        Thread.sleep(100);
+
+        final long version = new KVTaskClient(KV_SERVER_URI).putIfVersion("key", "value", KVTaskClient.NO_VERSION);
+        final KVTaskClient.Changes changes = watched.get(5, TimeUnit.SECONDS);
+
+        assertFalse(changes.isReset());
+        assertEquals(version, changes.getRevision());
+        assertEquals(1, changes.getChanges().size());
+        assertEquals("key", changes.getChanges().get(0).getKey());
+        assertEquals(version, changes.getChanges().get(0).getVersion());
+        assertTrue(client.watch(revision - 1, Duration.ofSeconds(1)).isReset());
+        assertTrue(client.watch(version + 100, Duration.ofSeconds(1)).isReset());
+    }
+
+    @Test
+    void should_returnNoChanges_When_WatchTimesOut() {
+        final KVTaskClient client = new KVTaskClient(KV_SERVER_URI);
+        client.put("key", "value");
+        final long revision = client.getRevision();
+
+        final KVTaskClient.Changes changes = client.watch(revision, Duration.ofMillis(200));
+
+        assertFalse(changes.isReset());
+        assertEquals(revision, changes.getRevision());
+        assertTrue(changes.getChanges().isEmpty());
+    }
+
+    @Test
+    void should_putBytes_loadBytes_Unchanged() {
+        final KVTaskClient client = new KVTaskClient(KV_SERVER_URI);
+        final byte[] value = new byte[4 * 1024 * 1024 + 3];
+        for (int i = 0; i < value.length; i++) {
+            value[i] = (byte) i; // не UTF-8
+        }
+
+        final long version = client.putBytes("blob", value);
+
+        assertArrayEquals(value, client.loadBytes("blob"));
+        assertEquals(version, client.loadVersioned("blob").getVersion());
+        assertNull(client.loadBytes("missing"));
+        client.put("text", "значение");
+        assertArrayEquals("значение".getBytes(StandardCharsets.UTF_8), client.loadBytes("text"));
+    }
+
+    @Test
+    void should_loadAllBytes_Unchanged() {
+        final KVTaskClient client = new KVTaskClient(KV_SERVER_URI);
+        final byte[] value = {(byte) 0xff, 0, (byte) 0xc3, 0x28, 'a'}; // не UTF-8
+        client.putBytes("blob", value);
+        client.put("text", "значение");
+
+        final Map<String, byte[]> loaded = client.loadAllBytes(List.of("blob", "text", "missing"));
+
+        assertEquals(2, loaded.size());
+        assertArrayEquals(value, loaded.get("blob"));
+        assertArrayEquals("значение".getBytes(StandardCharsets.UTF_8), loaded.get("text"));
+        assertEquals(Map.of("text", "значение"), client.loadAll(List.of("text", "missing")));
+    }
+
+    @Test
+    void should_expireKey_When_TtlPassed() throws InterruptedException {
+        final KVTaskClient client = new KVTaskClient(KV_SERVER_URI);
+
+        client.putBytes("session", new byte[]{1, 2, 3}, Duration.ofMillis(1));
+        client.putBytes("board", new byte[]{4}, Duration.ofHours(1));
+
+        assertArrayEquals(new byte[]{1, 2, 3}, client.loadBytes("session"));
+        Thread.sleep(1100);
+        assertNull(client.loadBytes("session"));
+        assertArrayEquals(new byte[]{4}, client.loadBytes("board"));
+    }
+
+    @Test
+    void should_returnStats() throws IOException, InterruptedException {
+        final KVTaskClient client = new KVTaskClient(KV_SERVER_URI);
+        client.putBytes("key", new byte[]{1});
+        client.loadBytes("key");
+        client.loadBytes("missing");
+        final HttpClient httpClient = HttpClient.newHttpClient();
+        final HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(KV_SERVER_URI + "/stats?API_TOKEN=DEBUG")).GET().build();
+
+        final JsonObject stats = JsonParser.parseString(
+                httpClient.send(request, HttpResponse.BodyHandlers.ofString()).body()).getAsJsonObject();
+
+        assertEquals(1, stats.get("hits").getAsLong());
+        assertEquals(1, stats.get("misses").getAsLong());
+        assertEquals(0, stats.get("evictions").getAsLong());
+        assertEquals(1, stats.get("keysInMemory").getAsInt());
+    }
+
+    @Test
+    void should_rejectValue_When_LargerThanMemoryBudget() throws IOException, InterruptedException {
+        kvServer.stop();
+        kvServer = new KVServer(2, false, new KVStorage(new KVEviction(1024, KVEviction.Policy.LRU)));
+        kvServer.start();
+        final HttpClient httpClient = HttpClient.newHttpClient();
+        final HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(KV_SERVER_URI + "/save/key?API_TOKEN=DEBUG"))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(new byte[2048])).build();
+        final HttpRequest badTtl = HttpRequest.newBuilder()
+                .uri(URI.create(KV_SERVER_URI + "/save/key?API_TOKEN=DEBUG&ttl=-1"))
+                .POST(HttpRequest.BodyPublishers.ofString("value")).build();
+
+        assertEquals(413, httpClient.send(request, HttpResponse.BodyHandlers.ofString()).statusCode());
+        assertEquals(400, httpClient.send(badTtl, HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    @Test
+    void should_spreadKeys_When_Sharded() throws IOException {
+        final List<KVServer> shards = startShards(2);
+        try {
+            final List<URI> uris = List.of(KV_SERVER_URI, shardUri(1), shardUri(2));
+            final KVTaskClient client = new KVTaskClient(uris, Duration.ofSeconds(1), Duration.ofSeconds(5));
+            final Map<String, String> values = new HashMap<>();
+            for (int i = 0; i < 300; i++) {
+                values.put("key" + i, "value " + i);
+            }
+
+            client.putAll(values);
+            client.putBytes("blob", new byte[]{1, 2});
+
+            assertEquals(values, client.loadAll(values.keySet()));
+            assertArrayEquals(new byte[]{1, 2}, client.loadBytes("blob"));
+            int stored = 0;
+            for (URI uri : uris) {
+                final int onShard = new KVTaskClient(uri).loadAll(values.keySet()).size();
+                assertTrue(onShard > 50, "на сервере " + uri + " ключей: " + onShard);
+                stored += onShard;
+            }
+            assertEquals(values.size(), stored);
+            assertThrows(KVTaskClientException.class, client::getRevision);
+        } finally {
+            shards.forEach(KVServer::stop);
+        }
+    }
+
+    @Test
+    void should_moveOnlyNewNodeKeys_When_NodeAdded() throws IOException {
+        final List<KVServer> shards = startShards(2);
+        try {
+            final KVTaskClient client = new KVTaskClient(List.of(KV_SERVER_URI, shardUri(1)),
+                    Duration.ofSeconds(1), Duration.ofSeconds(5));
+            final Map<String, String> values = new HashMap<>();
+            for (int i = 0; i < 300; i++) {
+                values.put("key" + i, "value " + i);
+            }
+            client.putAll(values);
+            final Map<String, String> firstBefore = new KVTaskClient(KV_SERVER_URI).loadAll(values.keySet());
+
+            client.addNode(shardUri(2));
+
+            assertEquals(values, client.loadAll(values.keySet()));
+            final Map<String, String> first = new KVTaskClient(KV_SERVER_URI).loadAll(values.keySet());
+            final Map<String, String> second = new KVTaskClient(shardUri(1)).loadAll(values.keySet());
+            final Map<String, String> added = new KVTaskClient(shardUri(2)).loadAll(values.keySet());
+            assertTrue(added.size() > 50, "на новый сервер перенесено ключей: " + added.size());
+            assertEquals(values.size(), first.size() + second.size() + added.size());
+            assertTrue(firstBefore.keySet().containsAll(first.keySet()));
+            client.put("key0", "new value");
+            assertEquals("new value", client.load("key0"));
+            assertThrows(IllegalArgumentException.class, () -> client.addNode(shardUri(2)));
+        } finally {
+            shards.forEach(KVServer::stop);
+        }
+    }
+
+    @Test
+    void should_readFromReplica_When_Replicated() throws Exception {
+        final KVTaskClient writer = new KVTaskClient(KV_SERVER_URI);
+        writer.put("before", "value");
+        final KVServer replica = KVServer.replica(KVServer.PORT + 1, 2, false, new KVStorage());
+        replica.start();
+        try {
+            kvServer.addReplica(shardUri(1));
+            final KVTaskClient client = KVTaskClient.withReplicas(KV_SERVER_URI, List.of(shardUri(1)),
+                    Duration.ofSeconds(1), Duration.ofSeconds(5));
+
+            client.put("key", "value 1");
+            assertEquals("value 1", client.load("key"));
+            client.put("key", "value 2");
+            assertEquals("value 2", client.load("key"));
+            assertEquals(Map.of("key", "value 2", "before", "value"), client.loadAll(List.of("key", "before")));
+
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (kvServer.getReplicatedRevision(shardUri(1)) < client.loadVersioned("key").getVersion()
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            final KVTaskClient replicaClient = new KVTaskClient(shardUri(1));
+            assertEquals("value", replicaClient.load("before"));
+            assertEquals(client.loadVersioned("key").getVersion(), replicaClient.loadVersioned("key").getVersion());
+            assertEquals("value 2", client.load("key"));
+            assertThrows(KVTaskClientException.class, () -> replicaClient.putBytes("key", new byte[]{1}));
+            final HttpRequest stats = HttpRequest.newBuilder()
+                    .uri(URI.create(shardUri(1) + "/stats?API_TOKEN=DEBUG")).GET().build();
+            final JsonObject replicaStats = JsonParser.parseString(HttpClient.newHttpClient()
+                    .send(stats, HttpResponse.BodyHandlers.ofString()).body()).getAsJsonObject();
+            assertTrue(replicaStats.get("hits").getAsLong() > 2);
+        } finally {
+            replica.stop();
+        }
+    }
+
+    private static URI shardUri(int shard) {
+        return URI.create("http://localhost:" + (KVServer.PORT + shard));
+    }
+
+    private static List<KVServer> startShards(int count) throws IOException {
+        final List<KVServer> shards = new ArrayList<>();
+        for (int shard = 1; shard <= count; shard++) {
+            final KVServer server = new KVServer(KVServer.PORT + shard, 2, false, new KVStorage());
+            server.start();
+            shards.add(server);
+        }
+        return shards;
+    }
+
+    @Test
+    void should_rejectBadIfMatch() throws IOException, InterruptedException {
+        final HttpClient httpClient = HttpClient.newHttpClient();
+        final HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(KV_SERVER_URI + "/save/key?API_TOKEN=DEBUG")).header("If-Match", "1")
+                .POST(HttpRequest.BodyPublishers.ofString("value")).build();
+
+        assertEquals(400, httpClient.send(request, HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    @Test
+    void should_readBody_WithoutContentLength() throws IOException, InterruptedException {
+        final byte[] value = "x".repeat(100_000).getBytes(StandardCharsets.UTF_8);
+        final HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(KV_SERVER_URI + "/save/key?API_TOKEN=DEBUG"))
+                .POST(HttpRequest.BodyPublishers.ofInputStream(() -> new ByteArrayInputStream(value))).build();
+
+        assertEquals(200, HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString()).statusCode());
+        assertArrayEquals(value, new KVTaskClient(KV_SERVER_URI).loadBytes("key"));
+    }
+
+    @Test
+    void should_rejectTooLargeBody() throws IOException {
+        final long tooLarge = KVServer.MAX_REQUEST_BYTES + 1L;
+        for (String path : List.of("/save/key", "/msave", "/mload")) {
+            assertEquals("HTTP/1.1 413 Request Entity Too Large", postStatus(KVServer.PORT, path, tooLarge, ""));
+        }
+        assertNull(new KVTaskClient(KV_SERVER_URI).load("key"));
+
+        final KVServer replica = KVServer.replica(KVServer.PORT + 1, 2, false, new KVStorage());
+        replica.start();
+        try {
+            // ответ 413 уже отправлен: разбор пачки не отвечает второй раз
+            assertEquals("HTTP/1.1 413 Request Entity Too Large",
+                    postStatus(KVServer.PORT + 1, "/replicate", tooLarge, ""));
+        } finally {
+            replica.stop();
+        }
+    }
+
+    // Первая строка ответа на POST с заданным Content-Length; тело дописывается и поток закрывается
+    private static String postStatus(int port, String path, long contentLength, String body) throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.getOutputStream().write(("POST " + path + "?API_TOKEN=DEBUG HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Length: " + contentLength + "\r\n\r\n" + body).getBytes(StandardCharsets.US_ASCII));
+            socket.shutdownOutput();
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))
+                    .readLine();
+        }
+    }
+
+    @Test
+    void should_rejectBadBatch() throws IOException, InterruptedException {
+        final HttpClient httpClient = HttpClient.newHttpClient();
+        final HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(KV_SERVER_URI + "/msave?API_TOKEN=DEBUG"))
+                .POST(HttpRequest.BodyPublishers.ofString("[\"key\"]")).build();
+
+        assertEquals(400, httpClient.send(request, HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    @Test
+    void should_serveConcurrentClients() throws InterruptedException {
+        final int clients = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(clients);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            final int clientId = c;
+            futures.add(executor.submit(() -> {
+                final KVTaskClient client = new KVTaskClient(KV_SERVER_URI);
+                for (int i = 0; i < 50; i++) {
+                    client.put("client" + clientId + "-" + i, "value " + i);
+                }
+            }));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        futures.forEach(future -> assertDoesNotThrow(() -> future.get()));
+
+        final KVTaskClient client = new KVTaskClient(KV_SERVER_URI);
+        for (int c = 0; c < clients; c++) {
+            assertEquals("value 49", client.load("client" + c + "-49"));
+        }
+    }
+}
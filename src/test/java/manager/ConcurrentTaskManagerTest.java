@@ -0,0 +1,165 @@
+package manager;
+
+import exception.ManagerTaskException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import task.Epic;
+import task.Status;
+import task.Subtask;
+import task.Task;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentTaskManagerTest extends TaskManagerTest<ConcurrentTaskManager> {
+
+    private static final LocalDateTime BASE_TIME = LocalDateTime.of(2024, 1, 1, 0, 0);
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 3_000;
+    private static final int SLOTS = 2_000;
+
+    @BeforeEach
+    public void setUp() {
+        taskManager = new ConcurrentTaskManager(new InMemoryTaskManager());
+    }
+
+    @Test
+    void should_keepInvariants_WhenModifiedConcurrently() throws Exception {
+        final List<Long> epicIds = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            epicIds.add(taskManager.createEpic(new Epic()));
+        }
+        final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS + 2);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final long seed = t;
+            futures.add(executor.submit(() -> {
+                await(start);
+                runWriter(new Random(seed), epicIds, errors);
+            }));
+        }
+        for (int t = 0; t < 2; t++) {
+            futures.add(executor.submit(() -> {
+                await(start);
+                for (int i = 0; i < OPERATIONS / 10; i++) {
+                    try {
+                        assertNoOverlaps(taskManager.getPrioritizedTasks());
+                        epicIds.forEach(taskManager::getEpicSubtasks);
+                        taskManager.getTasks();
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertTrue(errors.isEmpty(), () -> "Ошибки в потоках: " + errors);
+
+        final List<Task> prioritizedTasks = taskManager.getPrioritizedTasks();
+        assertEquals(taskManager.getTasks().size() + taskManager.getEpicSubtasks().size(), prioritizedTasks.size());
+        assertEquals(prioritizedTasks.size(), new HashSet<>(prioritizedTasks).size());
+        assertNoOverlaps(prioritizedTasks);
+        for (Long epicId : epicIds) {
+            final Epic epic = taskManager.getEpic(epicId);
+            final List<Subtask> epicSubtasks = taskManager.getEpicSubtasks(epicId);
+            final long expectedCount = taskManager.getEpicSubtasks().stream()
+                    .filter(subtask -> subtask.getEpicId() == epicId).count();
+            assertEquals(expectedCount, epicSubtasks.size());
+            final Set<Status> statuses = new HashSet<>();
+            epicSubtasks.forEach(subtask -> statuses.add(subtask.getStatus()));
+            final Status expectedStatus = statuses.isEmpty() ? Status.NEW
+                    : statuses.size() == 1 ? statuses.iterator().next() : Status.IN_PROGRESS;
+            assertEquals(expectedStatus, epic.getStatus());
+        }
+
+        taskManager.clearTasks();
+        taskManager.clearSubtasks();
+        assertDoesNotThrow(() -> taskManager.createTask(new Task().setStartTime(BASE_TIME).setDuration(SLOTS * 15)));
+    }
+
+    private void runWriter(Random random, List<Long> epicIds, Queue<Throwable> errors) {
+        final List<Long> ownTasks = new ArrayList<>();
+        final List<Long> ownSubtasks = new ArrayList<>();
+        for (int i = 0; i < OPERATIONS; i++) {
+            final LocalDateTime startTime = BASE_TIME.plusMinutes(random.nextInt(SLOTS) * 15L + random.nextInt(15));
+            final int duration = 1 + random.nextInt(40);
+            final long epicId = epicIds.get(random.nextInt(epicIds.size()));
+            try {
+                switch (random.nextInt(6)) {
+                    case 0:
+                        ownTasks.add(taskManager.createTask(new Task().setStartTime(startTime).setDuration(duration)));
+                        break;
+                    case 1:
+                        ownSubtasks.add(taskManager.createSubtask((Subtask) new Subtask(epicId)
+                                .setStatus(Status.values()[random.nextInt(Status.values().length)])
+                                .setStartTime(startTime).setDuration(duration)));
+                        break;
+                    case 2:
+                        if (!ownTasks.isEmpty()) {
+                            taskManager.removeTask(ownTasks.remove(random.nextInt(ownTasks.size())));
+                        }
+                        break;
+                    case 3:
+                        if (!ownSubtasks.isEmpty()) {
+                            taskManager.removeSubtask(ownSubtasks.remove(random.nextInt(ownSubtasks.size())));
+                        }
+                        break;
+                    case 4:
+                        if (!ownSubtasks.isEmpty()) {
+                            final long id = ownSubtasks.get(random.nextInt(ownSubtasks.size()));
+                            final Subtask existing = taskManager.getSubtask(id);
+                            taskManager.updateSubtask((Subtask) new Subtask(existing.getEpicId()).setId(id)
+                                    .setStatus(Status.values()[random.nextInt(Status.values().length)])
+                                    .setStartTime(startTime).setDuration(duration));
+                        }
+                        break;
+                    default:
+                        if (!ownTasks.isEmpty()) {
+                            taskManager.getTask(ownTasks.get(random.nextInt(ownTasks.size())));
+                        }
+                }
+            } catch (ManagerTaskException ignore) {
+                // пересечение интервалов - ожидаемый исход при конкурентной записи
+            } catch (Throwable e) {
+                errors.add(e);
+            }
+        }
+    }
+
+    private static void assertNoOverlaps(List<Task> prioritizedTasks) {
+        long previousEnd = Long.MIN_VALUE;
+        Task previous = null;
+        for (Task task : prioritizedTasks) {
+            if (task.getStartTime().equals(Task.DEFAULT_START_TIME)) {
+                continue;
+            }
+            final long startMinute = task.getStartTime().toEpochSecond(ZoneOffset.UTC) / 60;
+            final long slotStart = startMinute / 15 * 15;
+            final long slotEnd = Math.max(slotStart + 15, (startMinute + task.getDuration() + 14) / 15 * 15);
+            if (previous != null) {
+                assertTrue(slotStart >= previousEnd, "Пересекаются интервалы " + previous + " и " + task);
+            }
+            previousEnd = slotEnd;
+            previous = task;
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package manager;
 
 import exception.ManagerTaskException;
+import exception.ManagerTaskTimeIntersectionException;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import task.Epic;
@@ -13,24 +15,50 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class FileBackedTasksManagerTest extends TaskManagerTest<FileBackedTasksManager> {
 
-    private final static Path TEST_SAVE_FILE = Path.of("src/test/resources/save.CSV");
     private final static String FILE_HEADER = "id,type,name,status,description,epic,time,duration";
+    private Path directory;
+    private Path saveFile;
+    private Path journalFile;
+    private Path historyFile;
+    private Path binaryFile;
+    private Path binaryHistoryFile;
+    private Path convertedFile;
+    private Path convertedHistoryFile;
 
     @BeforeEach
     public void setUp() throws IOException {
-        if (Files.exists(TEST_SAVE_FILE)) {
-            Files.delete(TEST_SAVE_FILE);
+        directory = Files.createTempDirectory("file-backed-manager");
+        saveFile = directory.resolve("save.CSV");
+        journalFile = directory.resolve("save.journal");
+        historyFile = directory.resolve("save.CSV.history");
+        binaryFile = directory.resolve("save.bin");
+        binaryHistoryFile = directory.resolve("save.bin.history");
+        convertedFile = directory.resolve("converted.CSV");
+        convertedHistoryFile = directory.resolve("converted.CSV.history");
+        taskManager = new FileBackedTasksManager(saveFile);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
         }
-        taskManager = new FileBackedTasksManager(TEST_SAVE_FILE);
     }
 
     @Test
@@ -51,7 +79,7 @@ public class FileBackedTasksManagerTest extends TaskManagerTest<FileBackedTasksM
         taskManager.getEpic(epicId);
 
         List<String> lines = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(TEST_SAVE_FILE.toFile()))) {
+        try (BufferedReader br = new BufferedReader(new FileReader(saveFile.toFile()))) {
             while (br.ready()) {
                 lines.add(br.readLine());
             }
@@ -59,20 +87,17 @@ public class FileBackedTasksManagerTest extends TaskManagerTest<FileBackedTasksM
             throw new RuntimeException(e);
         }
 
-        assertEquals(7, lines.size());
+        assertEquals(6, lines.size());
         assertEquals(lines.get(0), FILE_HEADER);
         assertEquals(lines.get(1), task1Id + ",TASK,TASK NAME,NEW,null,,,");
         assertEquals(lines.get(2), task2Id + ",TASK,null,NEW,null,,,");
         assertEquals(lines.get(3), subtaskId + ",SUBTASK,null,IN_PROGRESS,null," + epicId + "," + startTime + ",50");
         assertEquals(lines.get(4), epicId + ",EPIC,null,IN_PROGRESS,null,," + startTime + ",50");
         assertTrue(lines.get(5).isEmpty());
-        assertEquals(lines.get(6), String.join(",",
-                String.valueOf(task1Id),
-                String.valueOf(task2Id),
-                String.valueOf(subtaskId),
-                String.valueOf(epicId)));
+        assertEquals(List.of(task2Id, task1Id, task2Id, subtaskId, epicId).stream().map(String::valueOf)
+                .collect(Collectors.toList()), Files.readAllLines(historyFile));
 
-        FileBackedTasksManager manager = FileBackedTasksManager.loadFromFile(TEST_SAVE_FILE);
+        FileBackedTasksManager manager = FileBackedTasksManager.loadFromFile(saveFile);
 
         assertEquals(List.of(task1Id, task2Id, subtaskId, epicId), manager.getHistory());
         assertEquals(4, manager.getHistory().size());
@@ -91,7 +116,7 @@ public class FileBackedTasksManagerTest extends TaskManagerTest<FileBackedTasksM
         taskManager.clearTasks();
 
         List<String> lines = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(TEST_SAVE_FILE.toFile()))) {
+        try (BufferedReader br = new BufferedReader(new FileReader(saveFile.toFile()))) {
             while (br.ready()) {
                 lines.add(br.readLine());
             }
@@ -103,7 +128,7 @@ public class FileBackedTasksManagerTest extends TaskManagerTest<FileBackedTasksM
         assertEquals(lines.get(0), FILE_HEADER);
         assertTrue(lines.get(1).isEmpty());
 
-        FileBackedTasksManager manager = FileBackedTasksManager.loadFromFile(TEST_SAVE_FILE);
+        FileBackedTasksManager manager = FileBackedTasksManager.loadFromFile(saveFile);
 
         assertEquals(0, manager.getHistory().size());
         assertEquals(0, manager.getTasks().size());
@@ -116,7 +141,7 @@ public class FileBackedTasksManagerTest extends TaskManagerTest<FileBackedTasksM
         long epicId = taskManager.createEpic(new Epic());
 
         List<String> lines = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(TEST_SAVE_FILE.toFile()))) {
+        try (BufferedReader br = new BufferedReader(new FileReader(saveFile.toFile()))) {
             while (br.ready()) {
                 lines.add(br.readLine());
             }
@@ -129,7 +154,7 @@ public class FileBackedTasksManagerTest extends TaskManagerTest<FileBackedTasksM
         assertEquals(lines.get(1), epicId + ",EPIC,null,NEW,null,,,");
         assertTrue(lines.get(2).isEmpty());
 
-        FileBackedTasksManager manager = FileBackedTasksManager.loadFromFile(TEST_SAVE_FILE);
+        FileBackedTasksManager manager = FileBackedTasksManager.loadFromFile(saveFile);
 
         assertEquals(0, manager.getHistory().size());
         assertEquals(0, manager.getTasks().size());
@@ -143,7 +168,7 @@ public class FileBackedTasksManagerTest extends TaskManagerTest<FileBackedTasksM
         final long task2Id = taskManager.createTask(new Task().setDuration(4));
 
         List<String> lines = new ArrayList<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(TEST_SAVE_FILE.toFile()))) {
+        try (BufferedReader br = new BufferedReader(new FileReader(saveFile.toFile()))) {
             while (br.ready()) {
                 lines.add(br.readLine());
             }
@@ -157,11 +182,330 @@ public class FileBackedTasksManagerTest extends TaskManagerTest<FileBackedTasksM
         assertEquals(lines.get(2), task2Id + ",TASK,null,NEW,null,,,4");
         assertTrue(lines.get(3).isEmpty());
 
-        FileBackedTasksManager manager = FileBackedTasksManager.loadFromFile(TEST_SAVE_FILE);
+        FileBackedTasksManager manager = FileBackedTasksManager.loadFromFile(saveFile);
 
         assertEquals(0, manager.getHistory().size());
         assertEquals(2, manager.getTasks().size());
         assertEquals(0, manager.getEpics().size());
         assertEquals(0, manager.getEpicSubtasks().size());
     }
-}
\ No newline at end of file
+
+    @Test
+    void should_createAll_SaveOnce() throws IOException, ManagerTaskException {
+        final int[] saves = {0};
+        final FileBackedTasksManager manager = new FileBackedTasksManager(saveFile) {
+            @Override
+            protected void save() {
+                saves[0]++;
+                super.save();
+            }
+        };
+        final List<Task> batch = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            batch.add(new Task().setStartTime(LocalDateTime.of(2024, 1, 1, 0, 0).plusHours(i)).setDuration(30));
+        }
+
+        manager.createAll(batch);
+        manager.removeAll(List.of(0L, 1L, 2L));
+
+        assertEquals(2, saves[0]);
+        assertEquals(997, FileBackedTasksManager.loadFromFile(saveFile).getTasks().size());
+    }
+
+    @Test
+    void should_replayJournal_WithoutSnapshot() throws IOException, ManagerTaskException {
+        final FileBackedTasksManager manager =
+                new FileBackedTasksManager(saveFile, new TaskJournal(journalFile));
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 20, 19, 0);
+        final long taskId = manager.createTask(new Task().setName("TASK"));
+        final long removedId = manager.createTask(new Task());
+        final long epicId = manager.createEpic(new Epic());
+        final Subtask subtask = (Subtask) new Subtask(epicId).setStartTime(startTime).setDuration(30);
+        final long subtaskId = manager.createSubtask(subtask);
+        subtask.setStatus(Status.DONE);
+        manager.updateSubtask(subtask);
+        manager.updateEpic((Epic) new Epic().setName("EPIC").setId(epicId));
+        manager.removeTask(removedId);
+        manager.getSubtask(subtaskId);
+        manager.getTask(taskId);
+
+        assertTrue(Files.notExists(saveFile));
+        assertEquals(7, Files.readAllLines(journalFile).size());
+        assertEquals(2, Files.readAllLines(historyFile).size());
+
+        final FileBackedTasksManager loaded =
+                FileBackedTasksManager.loadFromFile(saveFile, new TaskJournal(journalFile));
+
+        assertEquals(List.of(subtaskId, taskId), loaded.getHistory());
+        assertEquals(1, loaded.getTasks().size());
+        assertEquals("TASK", loaded.getTask(taskId).getName());
+        final Epic epic = loaded.getEpic(epicId);
+        assertEquals("EPIC", epic.getName());
+        assertEquals(Status.DONE, epic.getStatus());
+        assertEquals(startTime, epic.getStartTime());
+        assertTrue(epic.getSubtaskIds().contains(subtaskId));
+        assertEquals(List.of(subtaskId, taskId), ids(loaded.getPrioritizedTasks()));
+        assertTrue(loaded.createTask(new Task()) > subtaskId);
+    }
+
+    @Test
+    void should_compactJournal_IntoSnapshot() throws IOException, ManagerTaskException {
+        final FileBackedTasksManager manager =
+                new FileBackedTasksManager(saveFile, new TaskJournal(journalFile, 5));
+        for (int i = 0; i < 7; i++) {
+            manager.createTask(new Task().setName("TASK " + i));
+        }
+
+        assertTrue(Files.exists(saveFile));
+        assertEquals(2, Files.readAllLines(journalFile).size());
+
+        final FileBackedTasksManager loaded =
+                FileBackedTasksManager.loadFromFile(saveFile, new TaskJournal(journalFile, 5));
+
+        assertEquals(7, loaded.getTasks().size());
+        assertEquals(7L, loaded.createTask(new Task()).longValue());
+    }
+
+    @Test
+    void should_keepJournalOpen_Between_Appends() throws IOException, ManagerTaskException {
+        for (TaskJournal.SyncPolicy policy : TaskJournal.SyncPolicy.values()) {
+            final TaskJournal journal = new TaskJournal(journalFile, 3, policy);
+            final FileBackedTasksManager manager = new FileBackedTasksManager(saveFile, journal);
+            manager.createTask(new Task());
+            manager.createTask(new Task());
+            manager.flush();
+
+            assertEquals(2, Files.readAllLines(journalFile).size());
+
+            manager.createTask(new Task());
+            manager.createTask(new Task());
+
+            assertEquals(1, Files.readAllLines(journalFile).size());
+
+            manager.close();
+            manager.createTask(new Task());
+            manager.close();
+
+            assertEquals(2, Files.readAllLines(journalFile).size());
+            assertEquals(5, FileBackedTasksManager.loadFromFile(saveFile,
+                    new TaskJournal(journalFile, 3, policy)).getTasks().size());
+            Files.deleteIfExists(saveFile);
+            Files.deleteIfExists(journalFile);
+        }
+    }
+
+    @Test
+    void should_skipTornLastRecord_When_ReplayingJournal() throws IOException, ManagerTaskException {
+        final FileBackedTasksManager manager =
+                new FileBackedTasksManager(saveFile, new TaskJournal(journalFile));
+        final long taskId = manager.createTask(new Task());
+        Files.writeString(journalFile, "PUT,1,TA", StandardOpenOption.APPEND);
+
+        final FileBackedTasksManager loaded =
+                FileBackedTasksManager.loadFromFile(saveFile, new TaskJournal(journalFile));
+
+        assertEquals(1, loaded.getTasks().size());
+        assertEquals(taskId, loaded.getTasks().iterator().next().getId().longValue());
+    }
+
+    @Test
+    void should_coalesceWrites_When_WriteBehind() throws IOException, ManagerTaskException {
+        final int[] saves = {0};
+        final FileBackedTasksManager manager =
+                new FileBackedTasksManager(saveFile, null, new WriteBehind(Duration.ofHours(1), 10)) {
+                    @Override
+                    protected void save() {
+                        saves[0]++;
+                        super.save();
+                    }
+                };
+        for (int i = 0; i < 25; i++) {
+            manager.createTask(new Task());
+        }
+
+        assertEquals(2, saves[0]);
+        assertEquals(20, FileBackedTasksManager.loadFromFile(saveFile).getTasks().size());
+
+        manager.flush();
+        manager.flush();
+
+        assertEquals(3, saves[0]);
+        assertEquals(25, FileBackedTasksManager.loadFromFile(saveFile).getTasks().size());
+        manager.close();
+    }
+
+    @Test
+    void should_flushInBackground_After_MaxDelay() throws IOException, ManagerTaskException, InterruptedException {
+        final FileBackedTasksManager manager =
+                new FileBackedTasksManager(saveFile, null, new WriteBehind(Duration.ofMillis(50), 1_000));
+        manager.createTask(new Task());
+        manager.createTask(new Task());
+
+        for (int i = 0; i < 100 && Files.notExists(saveFile); i++) {
+            Thread.sleep(20);
+        }
+
+        assertEquals(2, FileBackedTasksManager.loadFromFile(saveFile).getTasks().size());
+        manager.close();
+    }
+
+    @Test
+    void should_writeJournal_On_Close() throws IOException, ManagerTaskException {
+        final FileBackedTasksManager manager = new FileBackedTasksManager(saveFile,
+                new TaskJournal(journalFile), new WriteBehind(Duration.ofHours(1), 1_000));
+        final long taskId = manager.createTask(new Task());
+        manager.createTask(new Task());
+        manager.removeTask(taskId);
+
+        assertTrue(Files.notExists(journalFile));
+
+        manager.close();
+
+        assertEquals(3, Files.readAllLines(journalFile).size());
+        assertEquals(1, FileBackedTasksManager.loadFromFile(saveFile, new TaskJournal(journalFile))
+                .getTasks().size());
+    }
+
+    @Test
+    void should_notSaveTasks_When_OnlyRead() throws IOException, ManagerTaskException {
+        final int[] saves = {0};
+        final FileBackedTasksManager manager = new FileBackedTasksManager(saveFile) {
+            @Override
+            protected void save() {
+                saves[0]++;
+                super.save();
+            }
+        };
+        final long taskId = manager.createTask(new Task());
+        final long epicId = manager.createEpic(new Epic());
+        for (int i = 0; i < 100; i++) {
+            manager.getTask(taskId);
+            manager.getEpic(epicId);
+        }
+
+        assertEquals(2, saves[0]);
+        assertEquals(200, Files.readAllLines(historyFile).size());
+        assertEquals(List.of(taskId, epicId), FileBackedTasksManager.loadFromFile(saveFile).getHistory());
+
+        manager.createTask(new Task());
+
+        assertTrue(Files.notExists(historyFile));
+        assertEquals(List.of(taskId, epicId), FileBackedTasksManager.loadFromFile(saveFile).getHistory());
+    }
+
+    @Test
+    void should_saveAndLoad_BinarySnapshot() throws IOException, ManagerTaskException {
+        final FileBackedTasksManager manager = new FileBackedTasksManager(binaryFile);
+        final LocalDateTime startTime = LocalDateTime.of(1969, 12, 31, 23, 59, 30, 500);
+        final long taskId = manager.createTask(new Task().setName("Имя, с запятой").setDescription("")
+                .setStartTime(LocalDateTime.of(2024, 1, 20, 19, 0)).setDuration(15));
+        final long epicId = manager.createEpic((Epic) new Epic().setName("EPIC"));
+        final long subtaskId = manager.createSubtask((Subtask) new Subtask(epicId).setStatus(Status.DONE)
+                .setStartTime(startTime).setDuration(90));
+        manager.getEpic(epicId);
+        manager.getTask(taskId);
+        manager.createTask(new Task());
+
+        assertTrue(Files.notExists(binaryHistoryFile));
+        assertTrue(BinarySnapshot.isBinary(binaryFile));
+
+        final FileBackedTasksManager loaded = FileBackedTasksManager.loadFromFile(binaryFile);
+
+        assertEquals(List.of(epicId, taskId), loaded.getHistory());
+        final Task task = loaded.getTask(taskId);
+        assertEquals("Имя, с запятой", task.getName());
+        assertEquals("", task.getDescription());
+        assertEquals(15, task.getDuration());
+        final Subtask subtask = loaded.getSubtask(subtaskId);
+        assertEquals(startTime, subtask.getStartTime());
+        assertEquals(Status.DONE, subtask.getStatus());
+        assertEquals(epicId, subtask.getEpicId());
+        final Epic epic = loaded.getEpic(epicId);
+        assertEquals(Status.DONE, epic.getStatus());
+        assertEquals(startTime, epic.getStartTime());
+        assertEquals(90, epic.getDuration());
+        assertEquals(null, epic.getDescription());
+        assertEquals(3, loaded.getTasks().size() + loaded.getEpicSubtasks().size());
+    }
+
+    @Test
+    void should_convertSnapshot_BetweenCsvAndBinary() throws IOException, ManagerTaskException {
+        final long epicId = taskManager.createEpic((Epic) new Epic().setName("EPIC"));
+        final long subtaskId = taskManager.createSubtask((Subtask) new Subtask(epicId).setName("SUBTASK")
+                .setStartTime(LocalDateTime.of(2024, 1, 20, 19, 0)).setDuration(30));
+        taskManager.getSubtask(subtaskId);
+
+        FileBackedTasksManager.convertSnapshot(saveFile, binaryFile);
+        FileBackedTasksManager.convertSnapshot(binaryFile, convertedFile);
+
+        assertTrue(BinarySnapshot.isBinary(binaryFile));
+        assertEquals(Files.readAllLines(saveFile).subList(0, 3), Files.readAllLines(convertedFile).subList(0, 3));
+        final FileBackedTasksManager loaded = FileBackedTasksManager.loadFromFile(convertedFile);
+        assertEquals(List.of(subtaskId), loaded.getHistory());
+        assertEquals("SUBTASK", loaded.getSubtask(subtaskId).getName());
+        assertEquals(30, loaded.getEpic(epicId).getDuration());
+    }
+
+    @Test
+    void should_loadLargeCsv_And_RebuildIndexes() throws IOException {
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 1, 0, 0);
+        final int count = 10_000;
+        final List<String> lines = new ArrayList<>();
+        lines.add(FILE_HEADER);
+        for (int i = 0; i < count; i++) {
+            lines.add(i + ",TASK,TASK " + i + ",NEW,null,," + startTime.plusHours(i) + ",30");
+        }
+        lines.add(count + ",SUBTASK,null,DONE,null," + (count + 1) + "," + startTime.minusHours(1) + ",15");
+        lines.add((count + 1) + ",EPIC,null,NEW,null,,,");
+        lines.add("");
+        lines.add("5," + count);
+        Files.write(saveFile, lines);
+
+        final FileBackedTasksManager manager = FileBackedTasksManager.loadFromFile(saveFile);
+
+        assertEquals(count, manager.getTasks().size());
+        assertEquals(List.of(5L, (long) count), manager.getHistory());
+        final List<Task> prioritized = manager.getPrioritizedTasks();
+        assertEquals(count + 1, prioritized.size());
+        assertEquals(count, prioritized.get(0).getId().longValue());
+        assertEquals(count - 1, prioritized.get(count).getId().longValue());
+        final Epic epic = manager.getEpic(count + 1L);
+        assertEquals(Status.DONE, epic.getStatus());
+        assertEquals(startTime.minusHours(1), epic.getStartTime());
+        assertThrows(ManagerTaskTimeIntersectionException.class,
+                () -> manager.createTask(new Task().setStartTime(startTime.plusMinutes(10)).setDuration(5)));
+        assertDoesNotThrow(() -> assertEquals(count + 2L,
+                manager.createTask(new Task().setStartTime(startTime.plusMinutes(45)).setDuration(10)).longValue()));
+    }
+
+    @Test
+    void should_keepClaimedInterval_When_LoadedTaskOverlaps() throws IOException {
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 1, 9, 0);
+        Files.write(saveFile, List.of(FILE_HEADER,
+                "0,TASK,first,NEW,null,," + startTime + ",30",
+                "1,TASK,overlapping,NEW,null,," + startTime + ",30",
+                ""));
+
+        final FileBackedTasksManager manager = FileBackedTasksManager.loadFromFile(saveFile);
+        manager.removeTask(1L);
+
+        assertThrows(ManagerTaskTimeIntersectionException.class,
+                () -> manager.createTask(new Task().setStartTime(startTime.plusMinutes(10)).setDuration(5)));
+        manager.removeTask(0L);
+        assertDoesNotThrow(() -> manager.createTask(new Task().setStartTime(startTime.plusMinutes(10)).setDuration(5)));
+    }
+
+    @Test
+    void should_rebuildIndexes_When_Loaded() throws IOException, ManagerTaskException {
+        fillBoard(taskManager);
+        FileBackedTasksManager.convertSnapshot(saveFile, binaryFile);
+        final FileBackedTasksManager journaled =
+                new FileBackedTasksManager(convertedFile, new TaskJournal(journalFile));
+        fillBoard(journaled);
+
+        assertSameBoard(taskManager, FileBackedTasksManager.loadFromFile(saveFile));
+        assertSameBoard(taskManager, FileBackedTasksManager.loadFromFile(binaryFile));
+        assertSameBoard(journaled,
+                FileBackedTasksManager.loadFromFile(convertedFile, new TaskJournal(journalFile)));
+    }
+}
@@ -1,6 +1,10 @@
 package manager;
 
 import api.KVServer;
+import api.KVTaskClient;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import exception.KVTaskClientException;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -10,11 +14,30 @@ import task.Subtask;
 import task.Task;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class HttpTaskManagerTest extends TaskManagerTest<HttpTaskManager> {
@@ -85,4 +108,468 @@ class HttpTaskManagerTest extends TaskManagerTest<HttpTaskManager> {
         assertEquals(0, taskManager.getEpics().size());
         assertEquals(0, taskManager.getHistory().size());
     }
-}
\ No newline at end of file
+
+    @Test
+    void should_saveHistory_Separately_From_Tasks() {
+        final long taskId = taskManager.createTask(new Task());
+        final KVTaskClient client = new KVTaskClient(defaultKVServerUrl);
+        final String allTasks = client.load("all-tasks");
+        taskManager.getTask(taskId);
+
+        assertEquals(allTasks, client.load("all-tasks"));
+        assertNull(client.load("history"));
+        assertTrue(client.load("history-0").contains(String.valueOf(taskId)));
+        assertEquals(List.of(taskId), new HttpTaskManager(defaultKVServerUrl).getHistory());
+    }
+
+    @Test
+    void should_appendHistory_And_CompactLog() throws IOException, InterruptedException {
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(taskManager.createTask(new Task()));
+        }
+        final int keys = countKeys();
+        for (int i = 0; i < 200; i++) {
+            taskManager.getTask(ids.get(i * 3 % ids.size()));
+        }
+
+        final KVTaskClient client = new KVTaskClient(defaultKVServerUrl);
+        assertTrue(client.load("history").startsWith("{"));
+        assertEquals(keys + 65, countKeys());
+        final HttpTaskManager loaded = new HttpTaskManager(defaultKVServerUrl);
+        assertEquals(taskManager.getHistory(), loaded.getHistory());
+
+        loaded.getTask(ids.get(0));
+        final List<Long> expected = new ArrayList<>(loaded.getHistory());
+        expected.remove(ids.get(0));
+        taskManager.removeTask(ids.get(0));
+
+        assertEquals(expected, new HttpTaskManager(defaultKVServerUrl).getHistory());
+    }
+
+    @Test
+    void should_mergeHistory_When_TwoManagersShareKVServer() {
+        final List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            ids.add(taskManager.createTask(new Task()));
+        }
+        final HttpTaskManager other = new HttpTaskManager(defaultKVServerUrl);
+        final LinkedHashSet<Long> expected = new LinkedHashSet<>();
+        for (int i = 0; i < 150; i++) {
+            final long id = ids.get(i * 5 % ids.size());
+            (i % 3 == 0 ? other : taskManager).getTask(id);
+            expected.remove(id);
+            expected.add(id);
+        }
+
+        assertEquals(new ArrayList<>(expected), new HttpTaskManager(defaultKVServerUrl).getHistory());
+
+        other.getTask(ids.get(2));
+        taskManager.getTask(ids.get(4));
+        expected.remove(ids.get(2));
+        expected.add(ids.get(2));
+        expected.remove(ids.get(4));
+        expected.add(ids.get(4));
+
+        assertEquals(new ArrayList<>(expected), new HttpTaskManager(defaultKVServerUrl).getHistory());
+    }
+
+    @Test
+    void should_failLoad_When_ManifestKeyMissing() {
+        final long taskId = taskManager.createTask(new Task());
+        taskManager.createTask(new Task());
+        final KVTaskClient client = new KVTaskClient(defaultKVServerUrl);
+        // так ключ пропадает, если KVServer удалил его при вытеснении
+        client.remove("task-" + taskId);
+
+        assertThrows(KVTaskClientException.class, () -> new HttpTaskManager(defaultKVServerUrl));
+    }
+
+    @Test
+    void should_notFailRead_When_HistoryWriteFails() throws IOException {
+        final HttpTaskManager manager = new HttpTaskManager(defaultKVServerUrl);
+        final long taskId = manager.createTask(new Task());
+        final long otherId = manager.createTask(new Task());
+        kvServer.stop();
+
+        assertDoesNotThrow(() -> manager.getTask(taskId));
+        assertDoesNotThrow(() -> manager.getTask(otherId));
+        assertEquals(List.of(taskId, otherId), manager.getHistory());
+        assertThrows(KVTaskClientException.class, manager::flush);
+
+        kvServer = new KVServer();
+        kvServer.start();
+    }
+
+    @Test
+    void should_load_HistoryArray() {
+        final long taskId = taskManager.createTask(new Task());
+        final long otherId = taskManager.createTask(new Task());
+        final KVTaskClient client = new KVTaskClient(defaultKVServerUrl);
+        client.put("history", "[" + otherId + "," + taskId + "]");
+
+        final HttpTaskManager loaded = new HttpTaskManager(defaultKVServerUrl);
+        loaded.getTask(otherId);
+
+        assertEquals(List.of(taskId, otherId), new HttpTaskManager(defaultKVServerUrl).getHistory());
+    }
+
+    @Test
+    void should_rebuildIndexes_When_Loaded() {
+        fillBoard(taskManager);
+
+        final HttpTaskManager newManager = new HttpTaskManager(defaultKVServerUrl);
+
+        assertSameBoard(taskManager, newManager);
+        final long maxId = taskManager.getTasks().stream().mapToLong(Task::getId).max().orElseThrow();
+        assertTrue(newManager.createTask(new Task()) > maxId);
+    }
+
+    @Test
+    void should_saveOnlyChangedTasks() {
+        final long task1Id = taskManager.createTask(new Task().setName("t1"));
+        final long task2Id = taskManager.createTask(new Task().setName("t2"));
+        final long epicId = taskManager.createEpic(new Epic());
+        final long subtaskId = taskManager.createSubtask(new Subtask(epicId));
+        final KVTaskClient client = new KVTaskClient(defaultKVServerUrl);
+        client.put("task-" + task2Id, client.load("task-" + task2Id).replace("t2", "changed outside"));
+
+        taskManager.updateTask(new Task().setId(task1Id).setName("t1 updated"));
+        HttpTaskManager newManager = new HttpTaskManager(defaultKVServerUrl);
+
+        assertNull(client.load("all-tasks"));
+        assertEquals("t1 updated", newManager.getTask(task1Id).getName());
+        assertEquals("changed outside", newManager.getTask(task2Id).getName());
+        assertTrue(newManager.getEpic(epicId).getSubtaskIds().contains(subtaskId));
+
+        taskManager.removeEpic(epicId);
+        newManager = new HttpTaskManager(defaultKVServerUrl);
+
+        assertEquals(0, newManager.getEpics().size());
+        assertEquals(0, newManager.getEpicSubtasks().size());
+        assertEquals(2, newManager.getTasks().size());
+    }
+
+    @Test
+    void should_removeTaskKeys_When_TasksRemoved() throws IOException, InterruptedException {
+        final long taskId = taskManager.createTask(new Task());
+        taskManager.createTask(new Task());
+        final long epicId = taskManager.createEpic(new Epic());
+        taskManager.createSubtask(new Subtask(epicId));
+        final int keys = countKeys();
+
+        taskManager.removeTask(taskId);
+
+        assertEquals(keys - 1, countKeys());
+        assertNull(new KVTaskClient(defaultKVServerUrl).load("task-" + taskId));
+
+        taskManager.clearTasks();
+        taskManager.removeEpic(epicId);
+
+        assertEquals(keys - 4, countKeys());
+    }
+
+    @Test
+    void should_removeTaskKeys_When_AsyncManagerRemovesTasks() throws IOException, InterruptedException {
+        final HttpTaskManager manager = new HttpTaskManager(KVTaskClient.async(defaultKVServerUrl,
+                Duration.ofSeconds(1), Duration.ofSeconds(5), 4), null);
+        final long epicId = manager.createEpic(new Epic());
+        for (int i = 0; i < 10; i++) {
+            manager.createTask(new Task());
+            manager.createSubtask(new Subtask(epicId));
+        }
+        manager.flush();
+        final int keys = countKeys();
+
+        manager.clearTasks();
+        manager.removeEpic(epicId);
+        manager.flush();
+
+        assertEquals(keys - 21, countKeys());
+        manager.close();
+    }
+
+    private static int countKeys() throws IOException, InterruptedException {
+        final HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(defaultKVServerUrl + "/keys?API_TOKEN=DEBUG")).GET().build();
+        final String keys = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString()).body();
+        return JsonParser.parseString(keys).getAsJsonArray().size();
+    }
+
+    @Test
+    void should_load_AllTasksKey() {
+        final KVTaskClient client = new KVTaskClient(defaultKVServerUrl);
+        client.put("all-tasks", "{\"TASKS\":[{\"id\":3,\"type\":\"TASK\",\"name\":\"old\",\"status\":\"NEW\"}],"
+                + "\"SUBTASKS\":[],\"EPICS\":[],\"HISTORY\":[3]}");
+
+        final HttpTaskManager manager = new HttpTaskManager(defaultKVServerUrl);
+
+        assertEquals(List.of(3L), manager.getHistory());
+        assertEquals("old", manager.getTasks().iterator().next().getName());
+
+        manager.createTask(new Task());
+
+        assertEquals(2, new HttpTaskManager(defaultKVServerUrl).getTasks().size());
+        assertTrue(client.load("manifest").contains("3"));
+    }
+
+    @Test
+    void should_mergeManifest_When_ChangedByOtherManager() {
+        final long removedId = taskManager.createTask(new Task().setName("removed"));
+        final HttpTaskManager other = new HttpTaskManager(defaultKVServerUrl);
+        final long epicId = other.createEpic((Epic) new Epic().setName("other epic"));
+        final long subtaskId = other.createSubtask(new Subtask(epicId));
+
+        final long taskId = taskManager.createTask(new Task().setName("own"));
+        other.removeTask(removedId);
+        taskManager.createTask(new Task().setName("after remove"));
+
+        assertTrue(taskId != epicId && taskId != subtaskId);
+        assertEquals("other epic", taskManager.getEpic(epicId).getName());
+        assertTrue(taskManager.getEpic(epicId).getSubtaskIds().contains(subtaskId));
+        assertNull(taskManager.getTask(removedId));
+        final HttpTaskManager loaded = new HttpTaskManager(defaultKVServerUrl);
+        assertEquals(2, loaded.getTasks().size());
+        assertTrue(loaded.getEpic(epicId).getSubtaskIds().contains(subtaskId));
+        assertNull(loaded.getTask(removedId));
+    }
+
+    @Test
+    void should_keepAllTasks_When_ManagersCreateConcurrently() throws InterruptedException {
+        final int managers = 4;
+        final List<Thread> threads = new ArrayList<>();
+        final List<Long> ids = Collections.synchronizedList(new ArrayList<>());
+        final List<HttpTaskManager> writers = new ArrayList<>();
+        for (int m = 0; m < managers; m++) {
+            final HttpTaskManager manager = new HttpTaskManager(defaultKVServerUrl);
+            writers.add(manager);
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 25; i++) {
+                    ids.add(manager.createTask(new Task()));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // manifest, проигравший все попытки под нагрузкой, дописывается при flush
+        writers.forEach(HttpTaskManager::flush);
+
+        assertEquals(managers * 25, new HashSet<>(ids).size());
+        assertEquals(managers * 25, new HttpTaskManager(defaultKVServerUrl).getTasks().size());
+    }
+
+    @Test
+    void should_keepAllTasks_When_AsyncManagersCreateConcurrently() throws InterruptedException {
+        final int managers = 4;
+        final List<Thread> threads = new ArrayList<>();
+        final List<HttpTaskManager> writers = new ArrayList<>();
+        for (int m = 0; m < managers; m++) {
+            final HttpTaskManager manager = new HttpTaskManager(KVTaskClient.async(defaultKVServerUrl,
+                    Duration.ofSeconds(1), Duration.ofSeconds(5), 4), null);
+            writers.add(manager);
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 25; i++) {
+                    manager.createTask(new Task());
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writers.forEach(HttpTaskManager::close);
+
+        assertEquals(managers * 25, new HttpTaskManager(defaultKVServerUrl).getTasks().size());
+    }
+
+    @Test
+    void should_applyRemoteChanges_When_Subscribed() throws InterruptedException {
+        final long taskId = taskManager.createTask(new Task().setName("before subscribe"));
+        final HttpTaskManager subscriber = new HttpTaskManager(defaultKVServerUrl);
+        final long lateTaskId = taskManager.createTask(new Task().setName("late"));
+        subscriber.subscribe();
+        assertEquals("late", subscriber.getTask(lateTaskId).getName());
+
+        final long epicId = taskManager.createEpic(new Epic());
+        final long subtaskId = taskManager.createSubtask((Subtask) new Subtask(epicId).setStatus(Status.DONE));
+        taskManager.updateTask(new Task().setId(taskId).setName("updated"));
+        taskManager.removeTask(lateTaskId);
+
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline && (subscriber.getTasks().size() != 1
+                || !"updated".equals(subscriber.getTask(taskId).getName()) || subscriber.getEpics().isEmpty())) {
+            Thread.sleep(20);
+        }
+        subscriber.close();
+
+        assertEquals("updated", subscriber.getTask(taskId).getName());
+        assertNull(subscriber.getTask(lateTaskId));
+        assertEquals(Status.DONE, subscriber.getEpic(epicId).getStatus());
+        assertTrue(subscriber.getEpic(epicId).getSubtaskIds().contains(subtaskId));
+    }
+
+    @Test
+    void should_readSafely_When_RemoteChangesArriveConcurrently() throws InterruptedException {
+        final HttpTaskManager subscriber = new HttpTaskManager(defaultKVServerUrl);
+        subscriber.subscribe();
+        final TaskManager concurrent = Managers.getConcurrent(subscriber);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 4; r++) {
+            readers.add(new Thread(() -> {
+                while (writing.get()) {
+                    try {
+                        concurrent.getTasks();
+                        concurrent.getPrioritizedTasks();
+                        concurrent.getHistory();
+                    } catch (RuntimeException e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        readers.forEach(Thread::start);
+
+        final LocalDateTime startTime = LocalDateTime.of(2024, 3, 1, 9, 0);
+        for (int i = 0; i < 60; i++) {
+            final long id = taskManager.createTask(new Task().setStartTime(startTime.plusHours(i)).setDuration(30));
+            if (i % 2 == 0) {
+                taskManager.removeTask(id);
+            }
+        }
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline && concurrent.getTasks().size() != 30) {
+            Thread.sleep(20);
+        }
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        subscriber.close();
+
+        assertEquals(0, errors.size());
+        assertEquals(30, concurrent.getTasks().size());
+    }
+
+    @Test
+    void should_notBlockReads_On_ManagerMonitor() throws InterruptedException {
+        taskManager.createTask(new Task());
+        final TaskManager concurrent = Managers.getConcurrent(taskManager);
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+        final Thread reader = new Thread(() -> sizes.add(concurrent.getTasks().size()));
+
+        synchronized (taskManager) {
+            reader.start();
+            reader.join(2000);
+            assertEquals(List.of(1), sizes);
+        }
+    }
+
+    @Test
+    void should_saveAsync_And_Flush() {
+        final HttpTaskManager manager = new HttpTaskManager(KVTaskClient.async(defaultKVServerUrl,
+                Duration.ofSeconds(1), Duration.ofSeconds(5), 4), null);
+        fillBoard(manager);
+
+        manager.flush();
+
+        assertSameBoard(manager, new HttpTaskManager(defaultKVServerUrl));
+    }
+
+    @Test
+    void should_keepLocalTask_When_OwnWriteNotified_Or_InFlight() throws IOException, InterruptedException {
+        final AtomicReference<CountDownLatch> gate = new AtomicReference<>(new CountDownLatch(0));
+        final HttpServer proxy = writeDelayingProxy(gate);
+        final HttpTaskManager manager = new HttpTaskManager(KVTaskClient.async(URI.create("http://localhost:"
+                + proxy.getAddress().getPort()), Duration.ofSeconds(1), Duration.ofSeconds(5), 4), null);
+        try {
+            manager.subscribe();
+            final long taskId = manager.createTask(new Task().setName("created"));
+            manager.flush();
+            manager.updateTask(new Task().setId(taskId).setName("updated"));
+            manager.flush();
+            final Task updated = findTask(manager, taskId);
+            awaitRemoteTask(manager, taskManager.createTask(new Task()));
+
+            assertSame(updated, findTask(manager, taskId));
+
+            // запись применена сервером, но ответ еще не получен; тем временем доску меняет другой менеджер
+            gate.set(new CountDownLatch(1));
+            manager.updateTask(new Task().setId(taskId).setName("in flight"));
+            final Task inFlight = findTask(manager, taskId);
+            final long remoteId = taskManager.createTask(new Task());
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> awaitRemoteTask(manager, remoteId));
+
+            assertSame(inFlight, findTask(manager, taskId));
+
+            gate.get().countDown();
+            manager.flush();
+            awaitRemoteTask(manager, taskManager.createTask(new Task()));
+
+            assertSame(inFlight, findTask(manager, taskId));
+            assertEquals("in flight", new HttpTaskManager(defaultKVServerUrl).getTask(taskId).getName());
+        } finally {
+            gate.get().countDown();
+            manager.close();
+            proxy.stop(0);
+        }
+    }
+
+    // Без записи в историю, в отличие от getTask
+    private static Task findTask(TaskManager manager, long id) {
+        return manager.getTasks().stream().filter(task -> task.getId() == id).findFirst().orElse(null);
+    }
+
+    private static void awaitRemoteTask(TaskManager manager, long id) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline && findTask(manager, id) == null) {
+            Thread.sleep(20);
+        }
+        assertNotNull(findTask(manager, id));
+    }
+
+    // Прокси к KVServer: записи задач применяются сервером сразу, а ответ на них ждет открытия gate
+    private static HttpServer writeDelayingProxy(AtomicReference<CountDownLatch> gate) throws IOException {
+        final HttpClient client = HttpClient.newHttpClient();
+        final HttpServer proxy = HttpServer.create(new InetSocketAddress(0), 0);
+        proxy.setExecutor(Executors.newCachedThreadPool());
+        proxy.createContext("/", exchange -> {
+            try {
+                final String path = exchange.getRequestURI().getPath();
+                final HttpRequest.Builder request = HttpRequest.newBuilder(defaultKVServerUrl.resolve(
+                        exchange.getRequestURI().toString())).method(exchange.getRequestMethod(),
+                        HttpRequest.BodyPublishers.ofByteArray(exchange.getRequestBody().readAllBytes()));
+                for (String header : List.of("If-Match", "If-None-Match")) {
+                    final String value = exchange.getRequestHeaders().getFirst(header);
+                    if (value != null) {
+                        request.header(header, value);
+                    }
+                }
+                final HttpResponse<byte[]> response = client.send(request.build(),
+                        HttpResponse.BodyHandlers.ofByteArray());
+                if (path.startsWith("/msave") || path.startsWith("/save/task-")) {
+                    gate.get().await();
+                }
+                response.headers().firstValue("ETag")
+                        .ifPresent(etag -> exchange.getResponseHeaders().add("ETag", etag));
+                final byte[] body = response.body();
+                if (body.length == 0) {
+                    exchange.sendResponseHeaders(response.statusCode(), -1);
+                } else {
+                    exchange.sendResponseHeaders(response.statusCode(), body.length);
+                    exchange.getResponseBody().write(body);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        proxy.start();
+        return proxy;
+    }
+}
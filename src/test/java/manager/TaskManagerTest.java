@@ -9,6 +9,7 @@ import task.Subtask;
 import task.Task;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -41,6 +42,38 @@ abstract class TaskManagerTest<T extends TaskManager> {
                 () -> taskManager.createTask(new Task()));
     }
 
+    @Test
+    void should_updateTask_updateSubtask_ReclaimIntervals_WhenStoredDurationMutatedInPlace() throws ManagerTaskException {
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 20, 19, 13, 0);
+        final long taskId = taskManager.createTask(new Task().setStartTime(startTime).setDuration(50));
+        final long epicId = taskManager.createEpic(new Epic());
+        final long subtaskId = taskManager.createSubtask(
+                (Subtask) new Subtask(epicId).setStartTime(startTime.plusHours(3)).setDuration(30));
+
+        final Task task = taskManager.getTask(taskId);
+        task.setDuration(90);
+        assertDoesNotThrow(() -> taskManager.updateTask(task));
+        final Subtask subtask = taskManager.getSubtask(subtaskId);
+        subtask.setDuration(60);
+        assertDoesNotThrow(() -> taskManager.updateSubtask(subtask));
+
+        assertThrows(ManagerTaskException.class,
+                () -> taskManager.createTask(new Task().setStartTime(startTime.plusMinutes(80)).setDuration(5)));
+        assertThrows(ManagerTaskException.class,
+                () -> taskManager.createTask(new Task().setStartTime(startTime.plusHours(3).plusMinutes(50)).setDuration(5)));
+        assertEquals(startTime.plusHours(3).plusMinutes(60), taskManager.getEpic(epicId).getEndTime());
+
+        task.setDuration(20);
+        taskManager.updateTask(task);
+
+        assertDoesNotThrow(
+                () -> taskManager.createTask(new Task().setStartTime(startTime.plusMinutes(80)).setDuration(5)));
+
+        taskManager.removeTask(taskId);
+
+        assertDoesNotThrow(() -> taskManager.createTask(new Task().setStartTime(startTime).setDuration(30)));
+    }
+
     @Test
     void should_createSubtask_updateSubtask_ThrowException_WhenIntervalsAlreadyClaimed() throws ManagerTaskException {
         final LocalDateTime startTime = LocalDateTime.of(2024, 1, 20, 19, 13, 0);
@@ -86,6 +119,201 @@ abstract class TaskManagerTest<T extends TaskManager> {
         assertEquals(2, prioritizedTasks.get(4).getId().longValue());
     }
 
+    @Test
+    void should_getPrioritizedTasks_ReturnTasksIntersectingWindow() throws ManagerTaskException {
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 20, 19, 0, 0);
+        final long epicId = taskManager.createEpic(new Epic());
+        final long task1Id = taskManager.createTask(new Task().setStartTime(startTime).setDuration(90));
+        final long task2Id = taskManager.createSubtask((Subtask) new Subtask(epicId).setStartTime(startTime.plusHours(2)).setDuration(30));
+        final long task3Id = taskManager.createTask(new Task().setStartTime(startTime.plusDays(1)).setDuration(30));
+        taskManager.createTask(new Task());
+
+        assertEquals(List.of(task1Id, task2Id), ids(taskManager.getPrioritizedTasks(startTime.plusHours(1), startTime.plusHours(3))));
+        assertEquals(List.of(task2Id), ids(taskManager.getPrioritizedTasks(startTime.plusMinutes(90), startTime.plusHours(3))));
+        assertEquals(List.of(task2Id, task3Id), ids(taskManager.getPrioritizedTasks(startTime.plusMinutes(90), null)));
+        assertEquals(List.of(task1Id), ids(taskManager.getPrioritizedTasks(null, startTime.plusHours(2))));
+        assertEquals(List.of(), ids(taskManager.getPrioritizedTasks(startTime.plusHours(3), startTime.plusHours(2))));
+        assertEquals(4, taskManager.getPrioritizedTasks(null, null).size());
+
+        taskManager.removeEpic(epicId);
+
+        assertEquals(List.of(task1Id), ids(taskManager.getPrioritizedTasks(startTime.plusHours(1), startTime.plusHours(3))));
+
+        taskManager.clearTasks();
+
+        assertTrue(taskManager.getPrioritizedTasks().isEmpty());
+    }
+
+    @Test
+    void should_getPrioritizedTasksPage_ReturnPagesByCursor() throws ManagerTaskException {
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 20, 19, 0, 0);
+        final List<Long> expectedIds = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            expectedIds.add(taskManager.createTask(new Task().setStartTime(startTime.plusHours(i)).setDuration(30)));
+        }
+        expectedIds.add(taskManager.createTask(new Task()));
+
+        final List<Long> actualIds = new ArrayList<>();
+        TaskPage page = taskManager.getPrioritizedTasksPage(null, null, null, 3);
+        actualIds.addAll(ids(page.getTasks()));
+        while (page.hasNext()) {
+            assertEquals(3, page.getTasks().size());
+            page = taskManager.getPrioritizedTasksPage(null, null, page.getNextCursor(), 3);
+            actualIds.addAll(ids(page.getTasks()));
+        }
+        assertEquals(expectedIds, actualIds);
+
+        final TaskPage firstPage = taskManager.getPrioritizedTasksPage(startTime.plusHours(2), startTime.plusHours(5), null, 2);
+        assertEquals(expectedIds.subList(2, 4), ids(firstPage.getTasks()));
+        taskManager.removeTask(expectedIds.get(3));
+        final TaskPage secondPage = taskManager.getPrioritizedTasksPage(startTime.plusHours(2), startTime.plusHours(5),
+                firstPage.getNextCursor(), 2);
+        assertEquals(expectedIds.subList(4, 5), ids(secondPage.getTasks()));
+        assertFalse(secondPage.hasNext());
+
+        assertThrows(ManagerTaskException.class, () -> taskManager.getPrioritizedTasksPage(null, null, "wrong", 2));
+        assertThrows(ManagerTaskException.class, () -> taskManager.getPrioritizedTasksPage(null, null, null, 0));
+    }
+
+    @Test
+    void should_getPrioritizedTasksPage_AcceptCursorOutsideWindow() throws ManagerTaskException {
+        final LocalDateTime windowStart = LocalDateTime.of(2024, 1, 1, 10, 0);
+        final LocalDateTime windowEnd = LocalDateTime.of(2024, 1, 1, 14, 0);
+        final long overlappingId = taskManager.createTask(new Task().setStartTime(windowStart.minusHours(1)).setDuration(120));
+        final long insideId = taskManager.createTask(new Task().setStartTime(windowStart.plusHours(2)).setDuration(30));
+        final long lastId = taskManager.createTask(new Task().setStartTime(windowStart.plusHours(3)).setDuration(30));
+
+        final TaskPage firstPage = taskManager.getPrioritizedTasksPage(windowStart, windowEnd, null, 1);
+        assertEquals(List.of(overlappingId), ids(firstPage.getTasks()));
+
+        // задача курсора начиналась до окна: после удаления курсор оказывается за нижней границей окна
+        taskManager.removeTask(overlappingId);
+        final TaskPage secondPage = taskManager.getPrioritizedTasksPage(windowStart, windowEnd, firstPage.getNextCursor(), 1);
+        assertEquals(List.of(insideId), ids(secondPage.getTasks()));
+        final TaskPage thirdPage = taskManager.getPrioritizedTasksPage(windowStart, windowEnd, secondPage.getNextCursor(), 1);
+        assertEquals(List.of(lastId), ids(thirdPage.getTasks()));
+        assertFalse(thirdPage.hasNext());
+
+        final String beforeWindow = windowStart.minusDays(1) + "_0";
+        final String afterWindow = windowEnd.plusDays(1) + "_0";
+        assertEquals(List.of(insideId, lastId),
+                ids(taskManager.getPrioritizedTasksPage(windowStart, windowEnd, beforeWindow, 5).getTasks()));
+        assertTrue(taskManager.getPrioritizedTasksPage(windowStart, windowEnd, afterWindow, 5).getTasks().isEmpty());
+        assertTrue(taskManager.getPrioritizedTasksPage(null, windowEnd, afterWindow, 5).getTasks().isEmpty());
+        assertTrue(taskManager.getPrioritizedTasksPage(windowEnd, windowStart, beforeWindow, 5).getTasks().isEmpty());
+    }
+
+    @Test
+    void should_createAll_CreateBatchAtomically() throws ManagerTaskException {
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 20, 19, 0, 0);
+        final long epicId = taskManager.createEpic(new Epic());
+        final Subtask subtask = (Subtask) new Subtask(epicId).setStatus(Status.DONE).setStartTime(startTime).setDuration(30);
+
+        final List<Long> ids = taskManager.createAll(List.of(
+                new Task().setStartTime(startTime.plusHours(1)).setDuration(30),
+                subtask,
+                new Epic()));
+
+        assertEquals(3, ids.size());
+        assertEquals(1, taskManager.getTasks().size());
+        assertEquals(2, taskManager.getEpics().size());
+        assertEquals(List.of(subtask), taskManager.getEpicSubtasks(epicId));
+        assertEquals(Status.DONE, taskManager.getEpic(epicId).getStatus());
+
+        assertThrows(ManagerTaskException.class, () -> taskManager.createAll(List.of(
+                new Task().setStartTime(startTime.plusHours(3)).setDuration(30),
+                new Task().setStartTime(startTime.plusHours(3).plusMinutes(20)).setDuration(30))));
+        assertThrows(ManagerTaskException.class, () -> taskManager.createAll(List.of(
+                new Task().setStartTime(startTime.plusHours(5)).setDuration(30),
+                new Subtask(-1))));
+        assertThrows(ManagerTaskException.class, () -> taskManager.createAll(List.of(
+                new Task().setStartTime(startTime.plusHours(6)).setDuration(30),
+                new Task().setStartTime(startTime).setDuration(10))));
+
+        assertEquals(1, taskManager.getTasks().size());
+        assertEquals(2, taskManager.getPrioritizedTasks().size());
+        assertDoesNotThrow(() -> taskManager.createTask(new Task().setStartTime(startTime.plusHours(3)).setDuration(30)));
+        assertDoesNotThrow(() -> taskManager.createTask(new Task().setStartTime(startTime.plusHours(6)).setDuration(30)));
+    }
+
+    @Test
+    void should_updateAll_removeAll_ChangeBatchAtomically() throws ManagerTaskException {
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 20, 19, 0, 0);
+        final long epicId = taskManager.createEpic(new Epic());
+        final long task1Id = taskManager.createTask(new Task().setStartTime(startTime).setDuration(30));
+        final long task2Id = taskManager.createTask(new Task().setStartTime(startTime.plusHours(1)).setDuration(30));
+        final long subtaskId = taskManager.createSubtask((Subtask) new Subtask(epicId).setStartTime(startTime.plusHours(2)));
+
+        // задачи меняются местами - допустимо только при атомарной проверке всего пакета
+        taskManager.updateAll(List.of(
+                new Task().setId(task1Id).setName("t1").setStartTime(startTime.plusHours(1)).setDuration(30),
+                new Task().setId(task2Id).setName("t2").setStartTime(startTime).setDuration(30),
+                new Subtask(epicId).setId(subtaskId).setStatus(Status.DONE).setStartTime(startTime.plusHours(2))));
+
+        assertEquals(List.of(task2Id, task1Id, subtaskId), ids(taskManager.getPrioritizedTasks()));
+        assertEquals(Status.DONE, taskManager.getEpic(epicId).getStatus());
+
+        assertThrows(ManagerTaskException.class, () -> taskManager.updateAll(List.of(
+                new Task().setId(task1Id).setName("new").setStartTime(startTime.plusHours(5)).setDuration(30),
+                new Task().setId(task2Id).setName("new").setStartTime(startTime.plusHours(2)).setDuration(30))));
+        assertThrows(ManagerTaskException.class, () -> taskManager.updateAll(List.of(
+                new Task().setId(task1Id).setName("new"),
+                new Task().setId(-1).setName("new"))));
+
+        assertEquals("t1", taskManager.getTask(task1Id).getName());
+        assertEquals(startTime, taskManager.getTask(task2Id).getStartTime());
+        assertThrows(ManagerTaskException.class,
+                () -> taskManager.createTask(new Task().setStartTime(startTime.plusHours(1)).setDuration(30)));
+
+        taskManager.removeAll(List.of(task1Id, subtaskId, -1L));
+
+        assertEquals(List.of(task2Id), ids(taskManager.getPrioritizedTasks()));
+        assertEquals(Status.NEW, taskManager.getEpic(epicId).getStatus());
+        assertDoesNotThrow(() -> taskManager.createTask(new Task().setStartTime(startTime.plusHours(1)).setDuration(30)));
+    }
+
+    /**
+     * Заполняет менеджер задачами и подзадачами со временем выполнения, эпиками и историей.
+     */
+    protected static void fillBoard(TaskManager manager) throws ManagerTaskException {
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 20, 9, 0);
+        final long epicId = manager.createEpic((Epic) new Epic().setName("epic"));
+        manager.createEpic((Epic) new Epic().setName("empty epic"));
+        for (int i = 0; i < 20; i++) {
+            manager.createTask(new Task().setName("task " + i).setStartTime(startTime.plusHours(i * 2)).setDuration(45));
+            manager.createSubtask((Subtask) new Subtask(epicId).setStatus(i % 2 == 0 ? Status.DONE : Status.NEW)
+                    .setStartTime(startTime.plusHours(i * 2 + 1)).setDuration(30));
+        }
+        manager.createTask(new Task().setName("unscheduled"));
+        manager.getEpic(epicId);
+    }
+
+    protected static void assertSameBoard(TaskManager expected, TaskManager actual) {
+        assertEquals(ids(expected.getPrioritizedTasks()), ids(actual.getPrioritizedTasks()));
+        assertEquals(expected.getHistory(), actual.getHistory());
+        assertEquals(expected.getTasks().size(), actual.getTasks().size());
+        final List<Epic> expectedEpics = expected.getEpics();
+        final List<Epic> actualEpics = actual.getEpics();
+        assertEquals(expectedEpics.size(), actualEpics.size());
+        for (int i = 0; i < expectedEpics.size(); i++) {
+            assertEquals(expectedEpics.get(i).getId(), actualEpics.get(i).getId());
+            assertEquals(expectedEpics.get(i).getStatus(), actualEpics.get(i).getStatus());
+            assertEquals(expectedEpics.get(i).getSubtaskIds(), actualEpics.get(i).getSubtaskIds());
+            if (!expectedEpics.get(i).getSubtaskIds().isEmpty()) {
+                assertEquals(expectedEpics.get(i).getStartTime(), actualEpics.get(i).getStartTime());
+                assertEquals(expectedEpics.get(i).getEndTime(), actualEpics.get(i).getEndTime());
+            }
+        }
+        final LocalDateTime busy = expected.getPrioritizedTasks().get(0).getStartTime();
+        assertThrows(ManagerTaskException.class, () -> actual.createTask(new Task().setStartTime(busy).setDuration(5)));
+    }
+
+    protected static List<Long> ids(List<Task> tasks) {
+        final List<Long> ids = new ArrayList<>();
+        tasks.forEach(task -> ids.add(task.getId()));
+        return ids;
+    }
+
     @Test
     void should_getStartTime_getEndTime_getDuration_ReturnCorrectData() throws ManagerTaskException {
         final LocalDateTime startTime1 = LocalDateTime.of(2024, 1, 20, 19, 13, 0);
@@ -366,6 +594,89 @@ abstract class TaskManagerTest<T extends TaskManager> {
         assertEquals("new_task_name", taskManager.getEpic(id).getName());
     }
 
+    @Test
+    void should_recalculateEpic_When_SubtasksChangeAfterEpicUpdate() throws ManagerTaskException {
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 20, 10, 0);
+        final long epicId = taskManager.createEpic((Epic) new Epic().setName("epic"));
+        final long firstId = taskManager.createSubtask((Subtask) new Subtask(epicId).setStartTime(startTime).setDuration(30));
+        final long secondId = taskManager.createSubtask(
+                (Subtask) new Subtask(epicId).setStartTime(startTime.plusHours(1)).setDuration(30));
+
+        // эпик, пришедший по HTTP, содержит id подзадач, но не сводные поля
+        final Epic received = Managers.getCustomGson().fromJson(
+                Managers.getCustomGson().toJson(taskManager.getEpic(epicId)), Epic.class);
+        taskManager.updateEpic((Epic) received.setName("updated"));
+        taskManager.updateSubtask((Subtask) new Subtask(epicId).setId(firstId).setStatus(Status.DONE)
+                .setStartTime(startTime).setDuration(30));
+        taskManager.updateSubtask((Subtask) new Subtask(epicId).setId(secondId).setStatus(Status.DONE)
+                .setStartTime(startTime.plusHours(1)).setDuration(30));
+
+        final Epic epic = taskManager.getEpic(epicId);
+        assertEquals("updated", epic.getName());
+        assertEquals(Status.DONE, epic.getStatus());
+        assertEquals(startTime, epic.getStartTime());
+        assertEquals(startTime.plusMinutes(90), epic.getEndTime());
+
+        final Epic batchReceived = Managers.getCustomGson().fromJson(Managers.getCustomGson().toJson(epic), Epic.class);
+        taskManager.updateAll(List.of(batchReceived));
+        taskManager.removeSubtask(secondId);
+
+        assertEquals(startTime.plusMinutes(30), taskManager.getEpic(epicId).getEndTime());
+        assertEquals(30, taskManager.getEpic(epicId).getDuration());
+    }
+
+    @Test
+    void should_recalculateEpic_When_StoredSubtaskMutatedInPlace() throws ManagerTaskException {
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 20, 10, 0);
+        final long epicId = taskManager.createEpic((Epic) new Epic().setName("epic"));
+        final long firstId = taskManager.createSubtask((Subtask) new Subtask(epicId).setStartTime(startTime).setDuration(30));
+        final long secondId = taskManager.createSubtask(
+                (Subtask) new Subtask(epicId).setStartTime(startTime.plusHours(1)).setDuration(30));
+
+        // getSubtask возвращает хранимый экземпляр: старое и новое состояние при обновлении - один объект
+        final Subtask first = taskManager.getSubtask(firstId);
+        first.setStatus(Status.DONE);
+        taskManager.updateSubtask(first);
+
+        assertEpicMatchesSubtasks(epicId);
+        assertEquals(Status.IN_PROGRESS, taskManager.getEpic(epicId).getStatus());
+
+        final Subtask second = taskManager.getSubtask(secondId);
+        second.setStatus(Status.DONE);
+        taskManager.updateSubtask(second);
+
+        assertEpicMatchesSubtasks(epicId);
+        assertEquals(Status.DONE, taskManager.getEpic(epicId).getStatus());
+
+        taskManager.removeSubtask(firstId);
+
+        assertEpicMatchesSubtasks(epicId);
+        assertEquals(startTime.plusHours(1), taskManager.getEpic(epicId).getStartTime());
+    }
+
+    /**
+     * Сверяет сводные поля эпика с полным пересчетом по его подзадачам.
+     */
+    private void assertEpicMatchesSubtasks(long epicId) {
+        final List<Subtask> epicSubtasks = taskManager.getEpicSubtasks(epicId);
+        final Epic epic = taskManager.getEpic(epicId);
+        Status status = Status.IN_PROGRESS;
+        if (epicSubtasks.stream().allMatch(subtask -> subtask.getStatus() == Status.NEW)) {
+            status = Status.NEW;
+        } else if (epicSubtasks.stream().allMatch(subtask -> subtask.getStatus() == Status.DONE)) {
+            status = Status.DONE;
+        }
+        assertEquals(status, epic.getStatus());
+        if (epicSubtasks.isEmpty()) {
+            return;
+        }
+        assertEquals(epicSubtasks.stream().map(Subtask::getStartTime).min(LocalDateTime::compareTo).orElseThrow(),
+                epic.getStartTime());
+        assertEquals(epicSubtasks.stream().map(Subtask::getEndTime).max(LocalDateTime::compareTo).orElseThrow(),
+                epic.getEndTime());
+        assertEquals(epicSubtasks.stream().mapToInt(Subtask::getDuration).sum(), epic.getDuration());
+    }
+
     @Test
     void should_removeEpic_RemoveExistingEpic() throws ManagerTaskException {
         assertEquals(0, taskManager.getEpics().size());
@@ -0,0 +1,93 @@
+package manager;
+
+import org.junit.jupiter.api.Test;
+import task.Task;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TreeIntervalIndexTest {
+
+    private static long minute(LocalDateTime dateTime) {
+        return dateTime.toEpochSecond(ZoneOffset.UTC) / 60;
+    }
+
+    @Test
+    void should_claim_RoundToSlots() {
+        final TreeIntervalIndex index = new TreeIntervalIndex();
+        final long start = minute(LocalDateTime.of(2024, 1, 20, 19, 13));
+
+        assertTrue(index.claim(start, start + 50));
+        // 19:00 - 20:15 заняты, 18:30 - 19:00 свободны
+        assertTrue(index.isFree(start - 30, start - 25));
+        assertFalse(index.isFree(start - 14, start - 10));
+        assertFalse(index.isFree(start + 60, start + 61));
+        assertTrue(index.isFree(start + 62, start + 70));
+        assertFalse(index.claim(start + 5, start + 6));
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void should_release_FreeClaimedSlots() {
+        final TreeIntervalIndex index = new TreeIntervalIndex();
+        final long start = minute(LocalDateTime.of(2024, 1, 20, 19, 13));
+
+        assertTrue(index.claim(start, start + 50));
+        index.release(start, start + 45);
+
+        assertFalse(index.isFree(start, start + 50));
+
+        index.release(start, start + 50);
+
+        assertTrue(index.isFree(start, start + 50));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    void should_claim_UseExactMinutes_WhenExactGranularity() {
+        final TreeIntervalIndex index = new TreeIntervalIndex(IntervalIndex.EXACT_GRANULARITY);
+        final long start = minute(LocalDateTime.of(2024, 1, 20, 19, 13));
+
+        assertTrue(index.claim(start, start + 50));
+        assertTrue(index.claim(start - 10, start - 1));
+        assertTrue(index.claim(start + 51, start + 60));
+        assertTrue(index.claim(start + 50, start + 51));
+        assertFalse(index.claim(start + 49, start + 50));
+        assertFalse(index.claim(start - 100, start + 100));
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    void should_claim_AdjacentIntervals() {
+        final long start = minute(LocalDateTime.of(2024, 1, 20, 19, 0));
+        for (int granularity : new int[]{IntervalIndex.EXACT_GRANULARITY, IntervalIndex.DEFAULT_GRANULARITY}) {
+            final TreeIntervalIndex index = new TreeIntervalIndex(granularity);
+
+            assertTrue(index.claim(start, start + 60));
+            assertTrue(index.claim(start + 60, start + 90));
+            assertTrue(index.claim(start - 30, start));
+            assertFalse(index.isFree(start + 59, start + 61));
+            index.release(start + 60, start + 90);
+
+            assertTrue(index.isFree(start + 60, start + 90));
+            assertFalse(index.isFree(start + 30, start + 90));
+            assertEquals(2, index.size());
+        }
+    }
+
+    @Test
+    void should_createTask_ThrowException_WhenExactGranularity() {
+        final InMemoryTaskManager manager = new InMemoryTaskManager(new TreeIntervalIndex(IntervalIndex.EXACT_GRANULARITY));
+        final LocalDateTime startTime = LocalDateTime.of(2024, 1, 20, 19, 13);
+
+        manager.createTask(new Task().setStartTime(startTime).setDuration(50));
+
+        assertDoesNotThrow(() -> manager.createTask(new Task().setStartTime(startTime.plusMinutes(51)).setDuration(5)));
+        assertDoesNotThrow(() -> manager.createTask(new Task().setStartTime(startTime.plusMinutes(50)).setDuration(1)));
+        assertThrows(IllegalArgumentException.class, () -> new TreeIntervalIndex(0));
+        assertThrows(RuntimeException.class,
+                () -> manager.createTask(new Task().setStartTime(startTime.plusMinutes(49)).setDuration(5)));
+    }
+}
@@ -0,0 +1,122 @@
+package task;
+
+import exception.TaskDataUndefinedException;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class EpicTest {
+
+    private static final LocalDateTime BASE_TIME = LocalDateTime.of(2024, 1, 1, 0, 0);
+
+    @Test
+    void should_aggregateIncrementally_SameAsFullRescan() {
+        final Random random = new Random(11);
+        final Epic epic = new Epic();
+        final Map<Long, Subtask> subtasks = new HashMap<>();
+        final List<Long> ids = new ArrayList<>();
+        long sequenceId = 0;
+
+        for (int i = 0; i < 20_000; i++) {
+            final int operation = random.nextInt(10);
+            if (operation < 4 || ids.isEmpty()) {
+                final Subtask subtask = randomSubtask(random, sequenceId++);
+                subtasks.put(subtask.getId(), subtask);
+                ids.add(subtask.getId());
+                epic.addSubtask(subtask);
+            } else if (operation < 7) {
+                final long id = ids.get(random.nextInt(ids.size()));
+                final Subtask subtask = randomSubtask(random, id);
+                epic.updateSubtask(subtasks.put(id, subtask), subtask);
+            } else if (operation < 9) {
+                final long id = ids.remove(random.nextInt(ids.size()));
+                epic.removeSubtask(subtasks.remove(id));
+            } else if (random.nextInt(50) == 0) {
+                epic.clearSubtasks();
+                subtasks.clear();
+                ids.clear();
+            }
+            assertRescanEquals(subtasks.values(), epic);
+        }
+    }
+
+    @Test
+    void should_addSubtask_IgnoreDuplicates() {
+        final Epic epic = new Epic();
+        final Subtask subtask = (Subtask) new Subtask(0).setId(1).setStatus(Status.DONE)
+                .setStartTime(BASE_TIME).setDuration(10);
+
+        epic.addSubtask(subtask);
+        epic.addSubtask(subtask);
+
+        assertEquals(1, epic.getSubtaskIds().size());
+        assertEquals(10, epic.getDuration());
+        assertEquals(Status.DONE, epic.getStatus());
+
+        epic.removeSubtask(subtask);
+        epic.removeSubtask(subtask);
+
+        assertEquals(0, epic.getSubtaskIds().size());
+        assertEquals(Status.NEW, epic.getStatus());
+        assertEquals(Epic.DEFAULT_END_TIME, endTimeOf(epic));
+    }
+
+    private static LocalDateTime endTimeOf(Epic epic) {
+        try {
+            return epic.getEndTime();
+        } catch (TaskDataUndefinedException e) {
+            return Epic.DEFAULT_END_TIME;
+        }
+    }
+
+    private static Subtask randomSubtask(Random random, long id) {
+        final Subtask subtask = new Subtask(0);
+        subtask.setId(id);
+        subtask.setStatus(Status.values()[random.nextInt(Status.values().length)]);
+        if (random.nextInt(5) > 0) {
+            subtask.setStartTime(BASE_TIME.plusMinutes(random.nextInt(100_000)));
+        }
+        subtask.setDuration(random.nextInt(4) == 0 ? 0 : random.nextInt(300));
+        return subtask;
+    }
+
+    // Полный пересчет, как его выполнял InMemoryTaskManager до инкрементальных агрегатов
+    private static void assertRescanEquals(Collection<Subtask> subtasks, Epic epic) {
+        Status expectedStatus = null;
+        for (Subtask subtask : subtasks) {
+            if (expectedStatus == null) {
+                expectedStatus = subtask.getStatus();
+            } else if (subtask.getStatus() != expectedStatus) {
+                expectedStatus = Status.IN_PROGRESS;
+                break;
+            }
+        }
+        if (expectedStatus == null) {
+            expectedStatus = Status.NEW;
+        }
+        LocalDateTime expectedStart = LocalDateTime.MAX;
+        LocalDateTime expectedEnd = LocalDateTime.MAX;
+        int expectedDuration = 0;
+        Optional<LocalDateTime> min = subtasks.stream()
+                .map(Subtask::getStartTime)
+                .filter(startTime -> !startTime.equals(Task.DEFAULT_START_TIME))
+                .min(LocalDateTime::compareTo);
+        if (min.isPresent()) {
+            expectedStart = min.get();
+            expectedEnd = subtasks.stream()
+                    .filter(t -> !t.getStartTime().equals(Task.DEFAULT_START_TIME))
+                    .map(Task::getEndTime)
+                    .max(LocalDateTime::compareTo).orElseThrow();
+            expectedDuration = subtasks.stream().mapToInt(Task::getDuration).sum();
+        }
+
+        assertEquals(subtasks.size(), epic.getSubtaskIds().size());
+        assertEquals(expectedStatus, epic.getStatus());
+        assertEquals(expectedStart, epic.startTime);
+        assertEquals(expectedEnd, endTimeOf(epic));
+        assertEquals(expectedDuration, epic.duration);
+    }
+}
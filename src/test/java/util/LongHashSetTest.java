@@ -0,0 +1,55 @@
+package util;
+
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongHashSetTest {
+
+    @Test
+    void should_addRemove_LikeHashSet() {
+        final LongHashSet set = new LongHashSet();
+        final Set<Long> expected = new HashSet<>();
+        final Random random = new Random(7);
+
+        for (int i = 0; i < 100_000; i++) {
+            final long key = random.nextInt(2_000) * 1_000_003L;
+            if (random.nextBoolean()) {
+                assertEquals(expected.remove(key), set.remove(key));
+            } else {
+                assertEquals(expected.add(key), set.add(key));
+            }
+        }
+
+        assertEquals(expected, set);
+        int count = 0;
+        final PrimitiveIterator.OfLong iterator = set.longIterator();
+        while (iterator.hasNext()) {
+            assertTrue(expected.contains(iterator.nextLong()));
+            count++;
+        }
+        assertEquals(expected.size(), count);
+    }
+
+    @Test
+    void should_serialize_AsJsonArray() {
+        final Gson gson = new Gson();
+        final LongHashSet set = new LongHashSet();
+        set.add(3);
+        set.add(1);
+
+        final String json = gson.toJson(set);
+        final LongHashSet restored = gson.fromJson(json, LongHashSet.class);
+
+        assertEquals("[1,3]", json);
+        assertEquals(set, restored);
+        assertTrue(restored.contains(1L));
+        assertFalse(restored.contains("1"));
+    }
+}
@@ -0,0 +1,65 @@
+package util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongObjectHashMapTest {
+
+    @Test
+    void should_putGetRemove_LikeHashMap() {
+        final LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        final Map<Long, String> expected = new HashMap<>();
+        final Random random = new Random(42);
+
+        for (int i = 0; i < 100_000; i++) {
+            final long key = random.nextInt(5_000) - 100;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                final String value = "v" + i;
+                assertEquals(expected.put(key, value), map.put(key, value));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        expected.forEach((key, value) -> assertEquals(value, map.get(key)));
+        map.forEach((key, value) -> assertEquals(expected.get(key), value));
+        assertEquals(expected.size(), new ArrayList<>(map.values()).size());
+    }
+
+    @Test
+    void should_iterate_InKeyOrder_ForSequentialKeys() {
+        final LongObjectHashMap<Long> map = new LongObjectHashMap<>();
+        for (long i = 0; i < 10; i++) {
+            map.put(i, i);
+        }
+        final List<Long> keys = new ArrayList<>();
+        map.forEachKey(keys::add);
+
+        assertEquals(List.of(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L), keys);
+        assertEquals(keys, new ArrayList<>(map.values()));
+    }
+
+    @Test
+    void should_clear_RemoveAllEntries() {
+        final LongObjectHashMap<String> map = new LongObjectHashMap<>();
+        map.put(-1, "a");
+        map.put(Long.MAX_VALUE, "b");
+
+        assertTrue(map.containsKey(Long.MAX_VALUE));
+        assertThrows(NullPointerException.class, () -> map.put(1, null));
+
+        map.clear();
+
+        assertTrue(map.isEmpty());
+        assertNull(map.get(-1));
+        assertFalse(map.values().iterator().hasNext());
+    }
+}